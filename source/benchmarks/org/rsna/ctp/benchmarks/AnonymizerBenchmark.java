@@ -0,0 +1,80 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.benchmarks;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
+import org.rsna.ctp.stdstages.anonymizer.IntegerTable;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DAScript;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizer;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMPixelAnonymizer;
+import org.rsna.ctp.stdstages.anonymizer.dicom.Regions;
+import org.rsna.util.FileUtil;
+
+/**
+ * Benchmarks of the DICOM element and pixel anonymizers. The element
+ * anonymizer uses the DICOM-PS3.15-Basic profile, whose location is
+ * specified by the ctp.benchmarks.profile system property.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AnonymizerBenchmark {
+
+	File in;
+	File out;
+	File dir;
+	Properties script;
+	IntegerTable intTable;
+	Regions regions;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		in = Fixtures.getFixture(0);
+		dir = File.createTempFile("AB-", "");
+		dir.delete();
+		dir.mkdirs();
+		out = new File(dir, "out.dcm");
+		File profile = new File(System.getProperty("ctp.benchmarks.profile",
+									"source/files/profiles/dicom/DICOM-PS3.15-Basic"));
+		if (!profile.exists()) throw new Exception("Missing profile: " + profile.getAbsolutePath());
+		script = DAScript.getInstance(profile).toProperties();
+		intTable = new IntegerTable(dir);
+		regions = new Regions();
+		regions.addRegion(0, 0, 200, 40);
+		regions.addRegion(300, 450, 200, 40);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		intTable.close();
+		FileUtil.deleteAll(dir);
+	}
+
+	@Benchmark
+	public AnonymizerStatus anonymize() {
+		return DICOMAnonymizer.anonymize(in, out, script, null, intTable, false, false);
+	}
+
+	@Benchmark
+	public AnonymizerStatus pixelAnonymize() {
+		return DICOMPixelAnonymizer.anonymize(in, out, regions, true, false);
+	}
+
+}
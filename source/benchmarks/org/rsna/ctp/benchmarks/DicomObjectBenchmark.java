@@ -0,0 +1,95 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.benchmarks;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.objects.FileObject;
+
+/**
+ * Benchmarks of parsing DicomObjects, evaluating filter scripts,
+ * and computing digests. Since the digest of a file is stored with
+ * the file after it is first computed, the getDigest benchmark removes
+ * the stored digest before each invocation, and the getStoredDigest
+ * benchmark measures the retrieval of the stored digest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DicomObjectBenchmark {
+
+	static final String script =
+		"Modality.equals(\"MR\") * PatientID.startsWith(\"PT\") * !SeriesDescription.contains(\"SCOUT\")";
+
+	File file;
+	DicomObject dob;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		file = Fixtures.getFixture(0);
+		dob = new DicomObject(file);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		dob.close();
+	}
+
+	@Benchmark
+	public DicomObject construct() throws Exception {
+		DicomObject d = new DicomObject(file);
+		d.close();
+		return d;
+	}
+
+	@Benchmark
+	public boolean matches() {
+		return dob.matches(script);
+	}
+
+	@Benchmark
+	public String getDigest(Unstored state) {
+		return new FileObject(state.file).getDigest();
+	}
+
+	@Benchmark
+	public String getStoredDigest() {
+		return new FileObject(file).getDigest();
+	}
+
+	//A file whose stored digest is removed before each invocation.
+	@State(Scope.Thread)
+	public static class Unstored {
+		File file;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			file = Fixtures.getFixture(0);
+		}
+
+		@Setup(Level.Invocation)
+		public void removeDigest() throws Exception {
+			UserDefinedFileAttributeView view =
+				Files.getFileAttributeView(file.toPath(), UserDefinedFileAttributeView.class);
+			if ((view != null) && view.list().contains("ctp.md5")) view.delete("ctp.md5");
+		}
+	}
+
+}
@@ -0,0 +1,167 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.benchmarks;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import org.dcm4che.data.Dataset;
+import org.dcm4che.data.DcmDecodeParam;
+import org.dcm4che.data.DcmObjectFactory;
+import org.dcm4che.dict.Tags;
+import org.dcm4che.dict.UIDs;
+
+/**
+ * A program to generate the synthetic DICOM objects used by the benchmarks.
+ * The objects are 16-bit MR images containing the patient and study elements
+ * which the anonymizer profiles modify. The same arguments always produce
+ * the same objects, so results from different builds are comparable.
+ * The createObject method is also used by the LoadGenerator to make
+ * objects of other modalities, sizes, and numbers of frames.
+ * <p>
+ * Usage: java org.rsna.ctp.benchmarks.Fixtures directory [count [size]]
+ */
+public class Fixtures {
+
+	static final DcmObjectFactory oFact = DcmObjectFactory.getInstance();
+	static final String uidRoot = "1.2.826.0.1.3680043.10.1000";
+
+	/** The name of the system property specifying the fixtures directory. */
+	public static final String fixturesProperty = "ctp.benchmarks.fixtures";
+
+	/**
+	 * Generate the fixtures.
+	 * @param args the directory in which to create the objects, the number
+	 * of objects to create (default 10), and the number of rows and columns
+	 * in each image (default 512).
+	 * @throws Exception if an object cannot be written.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: java org.rsna.ctp.benchmarks.Fixtures directory [count [size]]");
+			return;
+		}
+		File dir = new File(args[0]);
+		int count = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+		int size = (args.length > 2) ? Integer.parseInt(args[2]) : 512;
+		dir.mkdirs();
+		for (int i=0; i<count; i++) {
+			File file = new File(dir, "image" + i + ".dcm");
+			createImage(file, i, size);
+		}
+		System.out.println(count + " fixtures created in " + dir.getAbsolutePath());
+	}
+
+	/**
+	 * Get the fixtures directory from the system properties.
+	 * @return the directory containing the fixtures.
+	 */
+	public static File getDirectory() {
+		return new File(System.getProperty(fixturesProperty, "build/benchmarks/fixtures"));
+	}
+
+	/**
+	 * Get one of the fixtures.
+	 * @param index the index of the fixture.
+	 * @return the file containing the fixture.
+	 * @throws Exception if the fixture does not exist.
+	 */
+	public static File getFixture(int index) throws Exception {
+		File file = new File(getDirectory(), "image" + index + ".dcm");
+		if (!file.exists()) throw new Exception("Missing fixture: " + file.getAbsolutePath());
+		return file;
+	}
+
+	//Create one synthetic image.
+	static void createImage(File file, int index, int size) throws Exception {
+		String study = uidRoot + ".1";
+		String series = study + ".1";
+		String instance = series + "." + (index + 1);
+		createObject(file, "MR", study, series, instance, index, 1, size, 0);
+	}
+
+	/**
+	 * Create a synthetic DICOM object.
+	 * @param file the file in which to write the object.
+	 * @param modality the modality (CT, MR, CR, DX, US, or any other
+	 * value for a secondary capture object).
+	 * @param study the StudyInstanceUID.
+	 * @param series the SeriesInstanceUID.
+	 * @param instance the SOPInstanceUID.
+	 * @param index the index of the object, used for the InstanceNumber,
+	 * the PatientID, and the seed for the pixel values.
+	 * @param frames the number of frames.
+	 * @param size the number of rows and columns.
+	 * @param privateTags the number of private elements to include.
+	 * @throws Exception if the object cannot be written.
+	 */
+	public static void createObject(File file, String modality,
+									String study, String series, String instance,
+									int index, int frames, int size, int privateTags) throws Exception {
+		frames = Math.max(frames, 1);
+		Dataset ds = oFact.newDataset();
+		ds.putUI(Tags.SOPClassUID, getSOPClassUID(modality, frames));
+		ds.putUI(Tags.SOPInstanceUID, instance);
+		ds.putUI(Tags.StudyInstanceUID, study);
+		ds.putUI(Tags.SeriesInstanceUID, series);
+		ds.putCS(Tags.Modality, modality);
+		ds.putPN(Tags.PatientName, "BENCHMARK^PATIENT");
+		ds.putLO(Tags.PatientID, "PT" + (1000 + index));
+		ds.putDA(Tags.PatientBirthDate, "19600101");
+		ds.putCS(Tags.PatientSex, "F");
+		ds.putDA(Tags.StudyDate, "20150101");
+		ds.putTM(Tags.StudyTime, "120000");
+		ds.putSH(Tags.AccessionNumber, "ACC" + (1000 + index));
+		ds.putLO(Tags.InstitutionName, "BENCHMARK HOSPITAL");
+		ds.putPN(Tags.ReferringPhysicianName, "REFERRING^DOCTOR");
+		ds.putLO(Tags.StudyDescription, "BENCHMARK STUDY");
+		ds.putLO(Tags.SeriesDescription, "BENCHMARK SERIES");
+		ds.putIS(Tags.SeriesNumber, 1);
+		ds.putIS(Tags.InstanceNumber, index + 1);
+		ds.putCS(Tags.BurnedInAnnotation, "YES");
+		ds.putUS(Tags.SamplesPerPixel, 1);
+		ds.putCS(Tags.PhotometricInterpretation, "MONOCHROME2");
+		ds.putUS(Tags.Rows, size);
+		ds.putUS(Tags.Columns, size);
+		ds.putUS(Tags.BitsAllocated, 16);
+		ds.putUS(Tags.BitsStored, 12);
+		ds.putUS(Tags.HighBit, 11);
+		ds.putUS(Tags.PixelRepresentation, 0);
+		if (frames > 1) ds.putIS(Tags.NumberOfFrames, frames);
+
+		if (privateTags > 0) {
+			ds.putLO(0x00090010, "CTP LOADGEN");
+			for (int i=0; i<Math.min(privateTags, 255); i++) {
+				ds.putLO(0x00091000 + i, "PRIVATE VALUE " + i);
+			}
+		}
+
+		Random random = new Random(index);
+		int pixelCount = size * size * frames;
+		ByteBuffer pixels = ByteBuffer.allocate(pixelCount * 2).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i=0; i<pixelCount; i++) pixels.putShort((short)random.nextInt(4096));
+		pixels.rewind();
+		ds.putOW(Tags.PixelData, pixels);
+
+		String tsuid = UIDs.ExplicitVRLittleEndian;
+		ds.setFileMetaInfo(oFact.newFileMetaInfo(ds, tsuid));
+		ds.writeFile(file, DcmDecodeParam.valueOf(tsuid));
+	}
+
+	//Get the SOP Class for a modality.
+	static String getSOPClassUID(String modality, int frames) {
+		if (modality.equals("CT")) return UIDs.CTImageStorage;
+		if (modality.equals("MR")) return UIDs.MRImageStorage;
+		if (modality.equals("CR")) return UIDs.ComputedRadiographyImageStorage;
+		if (modality.equals("DX")) return UIDs.DigitalXRayImageStorageForPresentation;
+		if (modality.equals("US")) return (frames > 1) ? UIDs.UltrasoundMultiframeImageStorage : UIDs.UltrasoundImageStorage;
+		return UIDs.SecondaryCaptureImageStorage;
+	}
+
+}
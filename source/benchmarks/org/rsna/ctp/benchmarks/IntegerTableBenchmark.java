@@ -0,0 +1,60 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.rsna.ctp.stdstages.anonymizer.IntegerTable;
+import org.rsna.util.FileUtil;
+
+/**
+ * Benchmarks of IntegerTable lookups for a working set of 1000 values,
+ * most of which are already in the table.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IntegerTableBenchmark {
+
+	File dir;
+	IntegerTable intTable;
+	String[] values;
+	int next = 0;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		dir = File.createTempFile("IB-", "");
+		dir.delete();
+		dir.mkdirs();
+		intTable = new IntegerTable(dir);
+		values = new String[1000];
+		for (int i=0; i<values.length; i++) values[i] = "PT" + (1000 + i);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		intTable.close();
+		FileUtil.deleteAll(dir);
+	}
+
+	@Benchmark
+	public String getInteger() {
+		next = (next + 1) % values.length;
+		return intTable.getInteger("ptid", values[next], 6);
+	}
+
+}
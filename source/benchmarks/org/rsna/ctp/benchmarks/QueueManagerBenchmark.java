@@ -0,0 +1,62 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.rsna.ctp.pipeline.QueueManager;
+import org.rsna.util.FileUtil;
+
+/**
+ * Benchmarks of enqueuing objects in a QueueManager and dequeuing them.
+ * Each operation keeps the source file, as an ExportService does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueueManagerBenchmark {
+
+	File source;
+	File dir;
+	File active;
+	QueueManager queueManager;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		source = Fixtures.getFixture(0);
+		dir = File.createTempFile("QB-", "");
+		dir.delete();
+		dir.mkdirs();
+		active = new File(dir, "active");
+		active.mkdirs();
+		queueManager = new QueueManager(new File(dir, "queue"), 0, 0);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		FileUtil.deleteAll(dir);
+	}
+
+	@Benchmark
+	public File enqueueDequeue() {
+		queueManager.enqueue(source, true);
+		File file = queueManager.dequeue(active);
+		if (file != null) file.delete();
+		return file;
+	}
+
+}
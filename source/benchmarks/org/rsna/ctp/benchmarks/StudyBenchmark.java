@@ -0,0 +1,71 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.benchmarks;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.stdstages.storage.FileSystem;
+import org.rsna.ctp.stdstages.storage.ImageQualifiers;
+import org.rsna.ctp.stdstages.storage.Study;
+import org.rsna.util.FileUtil;
+
+/**
+ * Benchmarks of storing objects in a Study of a FileSystem. The fixtures
+ * are stored in turn, replacing the previous copies, so the size of the
+ * study index stays constant.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StudyBenchmark {
+
+	File dir;
+	Study study;
+	DicomObject[] objects;
+	int next = 0;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		dir = File.createTempFile("SB-", "");
+		dir.delete();
+		dir.mkdirs();
+		FileSystem fs = new FileSystem(dir, "benchmark", "none", false, false, false, false,
+										new LinkedList<ImageQualifiers>());
+		study = new Study(fs, "study", new File(fs.getRootDirectory(), "study"));
+		LinkedList<DicomObject> list = new LinkedList<DicomObject>();
+		File fixtures = Fixtures.getDirectory();
+		for (int i=0; new File(fixtures, "image"+i+".dcm").exists(); i++) {
+			list.add(new DicomObject(Fixtures.getFixture(i)));
+		}
+		objects = list.toArray(new DicomObject[list.size()]);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		for (DicomObject dob : objects) dob.close();
+		FileUtil.deleteAll(dir);
+	}
+
+	@Benchmark
+	public File store() throws Exception {
+		next = (next + 1) % objects.length;
+		return study.store(objects[next], false);
+	}
+
+}
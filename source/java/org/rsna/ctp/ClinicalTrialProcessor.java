@@ -188,6 +188,7 @@ public class ClinicalTrialProcessor {
 		selector.addServlet("logs",			LogServlet.class);
 		selector.addServlet("configuration",ConfigurationServlet.class);
 		selector.addServlet("status",		StatusServlet.class);
+		selector.addServlet("metrics",		MetricsServlet.class);
 		selector.addServlet("quarantines",	QuarantineServlet.class);
 		selector.addServlet("idmap",		IDMapServlet.class);
 		selector.addServlet("objectlogger",	ObjectLoggerServlet.class);
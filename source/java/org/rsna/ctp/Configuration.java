@@ -19,6 +19,7 @@ import java.util.jar.*;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import org.apache.log4j.Logger;
+import org.rsna.ctp.pipeline.Backpressure;
 import org.rsna.ctp.pipeline.ExportService;
 import org.rsna.ctp.pipeline.ImportService;
 import org.rsna.ctp.pipeline.Pipeline;
@@ -190,6 +191,9 @@ public class Configuration {
 
 						//Set the SSL params
 						SSLConfiguration.getInstance(serverElement);
+
+						//Set the backpressure watermarks
+						Backpressure.getInstance(serverElement);
 					}
 					else if (tagName.equals("Pipeline") && !childElement.getAttribute("enabled").equals("no")) {
 						Pipeline pipe = new Pipeline(childElement, pipelines.size());
@@ -253,6 +257,9 @@ public class Configuration {
 			pipe.start();
 		}
 
+		//Start the backpressure monitor.
+		Backpressure.getInstance().start();
+
 		//Start the web server.
 		if (httpServer != null) httpServer.start();
 
@@ -264,6 +271,7 @@ public class Configuration {
 	 * Initiate a shutdown for all the pipelines.
 	 */
 	public void shutdownPipelines() {
+		Backpressure.getInstance().stop();
 		for (Pipeline pipe : pipelines) pipe.shutdown();
 	}
 
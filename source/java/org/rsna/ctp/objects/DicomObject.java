@@ -23,6 +23,7 @@ import org.dcm4che.data.Dataset;
 import org.dcm4che.data.DcmDecodeParam;
 import org.dcm4che.data.DcmElement;
 import org.dcm4che.data.DcmEncodeParam;
+import org.dcm4che.data.DcmHandler;
 import org.dcm4che.data.DcmObject;
 import org.dcm4che.data.DcmObjectFactory;
 import org.dcm4che.data.DcmParser;
@@ -66,6 +67,10 @@ public class DicomObject extends FileObject {
 	DcmDecodeParam fileParam = null;
 	FileMetaInfo fileMetaInfo = null;
 	BufferedInputStream in = null;
+	volatile boolean complete = true;
+	volatile boolean imageKnown = true;
+	int lastTag = -1;
+	long resumePosition = -1;
 
 	/**
 	 * Class constructor; parses a file to create a new DicomObject.
@@ -88,7 +93,33 @@ public class DicomObject extends FileObject {
 	 * @throws IOException if the file cannot be read or the file does not parse.
 	 */
 	public DicomObject(File file, boolean leaveOpen) throws Exception {
+		this(file, leaveOpen, -1);
+	}
+
+	/**
+	 * Class constructor; parses a file to create a new DicomObject, stopping
+	 * after the elements of the top-level dataset whose tags are not greater
+	 * than a specified tag. This constructor is intended for stages which need
+	 * only a few elements near the beginning of the header, such as filters and
+	 * routers, so that the cost of the parse does not depend on the size of the
+	 * rest of the header. The rest of the header is parsed on demand, the first
+	 * time a method needs an element beyond the specified tag. The input stream
+	 * is closed after parsing.
+	 * @param file the file containing the DicomObject.
+	 * @param lastTag the highest tag to parse, or -1 to parse everything
+	 * up to, but not including, the pixel data.
+	 * @throws IOException if the file cannot be read or the file does not parse.
+	 */
+	public DicomObject(File file, int lastTag) throws Exception {
+		this(file, false, lastTag);
+	}
+
+	private DicomObject(File file, boolean leaveOpen, int lastTag) throws Exception {
 		super(file);
+		int stopTag = Tags.PixelData;
+		if (!leaveOpen && (lastTag != -1) && (unsigned(lastTag) + 1 < unsigned(Tags.PixelData))) {
+			stopTag = lastTag + 1;
+		}
 		try {
 			in = new BufferedInputStream(new FileInputStream(file));
 			parser = pFact.newDcmParser(in);
@@ -100,7 +131,7 @@ public class DicomObject extends FileObject {
 			parser.setDcmHandler(dataset.getDcmHandler());
 
 			//Parse the file, but don't get the pixels in order to save heap space.
-			parser.parseDcmFile(fileFormat, Tags.PixelData);
+			parser.parseDcmFile(fileFormat, stopTag);
 
 			//Get the charset
 			charset = dataset.getSpecificCharacterSet();
@@ -117,11 +148,27 @@ public class DicomObject extends FileObject {
 			}
 
 			//See if this is a real image.
-			isImage = (parser.getReadTag() == Tags.PixelData);
+			int readTag = parser.getReadTag();
+			isImage = (readTag == Tags.PixelData);
 
 			//Get the decode parameter
 			fileParam = parser.getDcmDecodeParam();
 
+			//See if the header was parsed completely. It was unless the parser
+			//stopped at the requested tag before reaching the pixel data. In that
+			//case, remember where the header of the element at which the parser
+			//stopped begins, so the parse can be resumed from there, and note
+			//that it is not yet known whether the object contains pixel data.
+			if ((stopTag != Tags.PixelData)
+					&& !parser.hasSeenEOF()
+						&& (unsigned(readTag) >= unsigned(stopTag))
+							&& (unsigned(readTag) < unsigned(Tags.PixelData))) {
+				resumePosition = parser.getStreamPosition() - getHeaderLength(parser.getReadVR());
+				complete = false;
+				imageKnown = false;
+				this.lastTag = lastTag;
+			}
+
 			//See if this is a DICOMDIR
 			isDICOMDIR = isDICOMDIR();
 			directoryRecordSeq = dataset.get(Tags.DirectoryRecordSeq);
@@ -141,6 +188,124 @@ public class DicomObject extends FileObject {
 		}
 	}
 
+	/**
+	 * Class constructor; creates a new DicomObject from a Dataset which has
+	 * just been written to a file, avoiding the need to parse the file again.
+	 * The Dataset must contain the elements up to, but not including,
+	 * the pixel data, and its FileMetaInfo must describe the transfer syntax
+	 * in which the file was written. The object is created with no open
+	 * input stream, as if it had been parsed by the DicomObject(File) constructor.
+	 * @param file the file containing the DicomObject.
+	 * @param dataset the Dataset that was written to the file.
+	 * @param isImage true if the file contains a PixelData element; false otherwise.
+	 * @throws Exception if the Dataset has no FileMetaInfo.
+	 */
+	public DicomObject(File file, Dataset dataset, boolean isImage) throws Exception {
+		super(file);
+		this.dataset = dataset;
+		this.isImage = isImage;
+		fileMetaInfo = dataset.getFileMetaInfo();
+		if (fileMetaInfo == null) {
+			throw new IOException("Dataset has no FileMetaInfo: "+file);
+		}
+		fileFormat = FileFormat.DICOM_FILE;
+		fileParam = DcmDecodeParam.valueOf(fileMetaInfo.getTransferSyntaxUID());
+
+		//Get the charset
+		charset = dataset.getSpecificCharacterSet();
+		if (charset == null) {
+			dataset.putCS(Tags.SpecificCharacterSet, "ISO_IR 100");
+			charset = dataset.getSpecificCharacterSet();
+		}
+
+		isDICOMDIR = isDICOMDIR();
+		directoryRecordSeq = dataset.get(Tags.DirectoryRecordSeq);
+		isManifest = checkManifest();
+		isAdditionalTFInfo = checkAdditionalTFInfo();
+	}
+
+	//Compare tags as unsigned values.
+	private static long unsigned(int tag) {
+		return tag & 0xFFFFFFFFL;
+	}
+
+	//Get the length of the header of an element of the top-level dataset.
+	private int getHeaderLength(int vr) {
+		if (!fileParam.explicitVR) return 8;
+		if ((vr == VRs.OB) || (vr == VRs.OW) || (vr == VRs.OF)
+				|| (vr == VRs.SQ) || (vr == VRs.UT) || (vr == VRs.UN)) return 12;
+		return 8;
+	}
+
+	/**
+	 * Determine whether the header has been parsed completely (up to
+	 * the pixel data). This is false only for objects created with a
+	 * lastTag whose remaining elements have not yet been needed.
+	 * @return true if the header has been parsed completely; false otherwise.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	//Make sure that an element of the top-level dataset has been parsed.
+	private void needTag(int tag) {
+		if (!complete && (unsigned(tag) > unsigned(lastTag))) parseAll();
+	}
+
+	//Make sure that an element specified as in getElementValue(String)
+	//has been parsed. Specifiers which are not standard tags, such as
+	//private element names, require the whole header.
+	private void needTag(String tagName) {
+		if (complete) return;
+		int tag = getElementTag(tagName.split("::")[0].trim());
+		if (tag == 0) parseAll();
+		else needTag(tag);
+	}
+
+	/**
+	 * Parse the rest of the header of an object which was created with a lastTag.
+	 * The parse resumes at the element where the first parse stopped, and the
+	 * elements are added to the existing dataset. This method is called
+	 * automatically by the methods which need elements beyond the lastTag,
+	 * so applications only need to call it before working with the Dataset
+	 * returned by getDataset() in other threads.
+	 * @throws RuntimeException if the rest of the header does not parse. The
+	 * object remains incomplete, so every subsequent attempt to get the elements
+	 * beyond the lastTag fails in the same way, and the stage which needs them
+	 * quarantines the object rather than processing a truncated dataset.
+	 */
+	public synchronized void parseAll() {
+		if (complete) return;
+		try {
+			int readTag = resume(dataset.getDcmHandler());
+			isImage = (readTag == Tags.PixelData);
+			imageKnown = true;
+			complete = true;
+			logger.debug("Completed the parse of "+file);
+		}
+		catch (Exception ex) {
+			throw new RuntimeException("Unable to complete the parse of "+file, ex);
+		}
+	}
+
+	//Parse the rest of the top-level dataset, starting at the element where
+	//the first parse stopped, and return the tag at which the parse stopped.
+	//If the handler is null, the elements are skipped rather than stored.
+	private int resume(DcmHandler handler) throws Exception {
+		BufferedInputStream bis = null;
+		try {
+			FileInputStream fis = new FileInputStream(file);
+			bis = new BufferedInputStream(fis);
+			fis.getChannel().position(resumePosition);
+			DcmParser p = pFact.newDcmParser(bis);
+			p.setStreamPosition(resumePosition);
+			p.setDcmHandler(handler);
+			p.parseDataset(fileParam, Tags.PixelData);
+			return p.getReadTag();
+		}
+		finally { FileUtil.close(bis); }
+	}
+
 	/**
 	 * Close the input stream.
 	 */
@@ -186,6 +351,7 @@ public class DicomObject extends FileObject {
 	 * @return the Dataset containing all the elements up to the pixel data.
 	 */
 	public Dataset getDataset() {
+		parseAll();
 		return dataset;
 	}
 
@@ -262,8 +428,10 @@ public class DicomObject extends FileObject {
 		long streamPosition = parser.getStreamPosition();
 		byte[] buffer = new byte[4096];
 		FileOutputStream out = null;
+		ElementTransfer transfer = null;
 		try {
             out = new FileOutputStream(file);
+            transfer = new ElementTransfer(this.file, out, out);
 
 			//Set the encoding
 			DcmDecodeParam fileParam = parser.getDcmDecodeParam();
@@ -310,7 +478,7 @@ public class DicomObject extends FileObject {
                             parser.getReadTag(),
                             parser.getReadVR(),
                             parser.getReadLength());
-                        writeValueTo(parser, buffer, out, false);
+                        writeValueTo(parser, buffer, out, false, transfer);
                         parser.parseHeader();
                     }
                     if (parser.getReadTag() != Tags.SeqDelimitationItem) {
@@ -329,7 +497,7 @@ public class DicomObject extends FileObject {
                         0);
                 }
                 else {
-                    writeValueTo(parser, buffer, out, swap && (parser.getReadVR() == VRs.OW));
+                    writeValueTo(parser, buffer, out, swap && (parser.getReadVR() == VRs.OW), transfer);
                 }
                 logger.debug("Pixels element written");
 				parser.parseHeader(); //get ready for the next element
@@ -352,7 +520,7 @@ public class DicomObject extends FileObject {
 					parser.getReadTag(),
 					parser.getReadVR(),
 					parser.getReadLength());
-				writeValueTo(parser, buffer, out, swap);
+				writeValueTo(parser, buffer, out, swap, transfer);
 				logger.debug("Wrote "+String.format("%08x element", tag));
 				parser.parseHeader();
 				logger.debug("Parsed header for next element.");
@@ -362,10 +530,12 @@ public class DicomObject extends FileObject {
 			logger.debug("Done writing dataset");
 			out.flush();
 			out.close();
+			transfer.close();
 			parser.setStreamPosition(streamPosition);
 		}
 		catch (Exception ex) {
 			logger.debug("Exception caught in saveAS",ex);
+			if (transfer != null) transfer.close();
 			if (out != null) {
 				try { out.close(); }
 				catch (Exception unable) { logger.warn("Unable to close the output stream."); }
@@ -376,6 +546,17 @@ public class DicomObject extends FileObject {
 		}
     }
 
+	//Write out an element value, transferring it directly from the input
+	//file to the output file if it is large and need not be swapped.
+	private static void writeValueTo(
+					DcmParser parser,
+					byte[] buffer,
+					OutputStream out,
+					boolean swap,
+					ElementTransfer transfer) throws Exception {
+		if (!transfer.transferValue(parser, swap)) writeValueTo(parser, buffer, out, swap);
+	}
+
 	//Write out an element value, handling swapping if required.
 	private static void writeValueTo(
 					DcmParser parser,
@@ -440,6 +621,7 @@ public class DicomObject extends FileObject {
 	 * @throws Exception if the image could not be loaded.
 	 */
 	public synchronized BufferedImage getBufferedImage(int frame, boolean forceReload) throws Exception {
+		parseAll();
 		if (!isImage) throw new IOException("Not an image: "+file);
 		if (!forceReload && (bufferedImage != null) && (currentFrame == frame)) return bufferedImage;
 
@@ -1208,6 +1390,7 @@ public class DicomObject extends FileObject {
 	 * @return the value of the element as a floating point number.
 	 */
 	public float getFloat(int tag, float defaultValue) {
+		needTag(tag);
 		try { return dataset.getFloat(tag, defaultValue); }
 		catch (Exception e) { return defaultValue; }
 	}
@@ -1218,6 +1401,7 @@ public class DicomObject extends FileObject {
 	 * @return the value of the element.
 	 */
 	public ByteBuffer getElementByteBuffer(int tag) {
+		needTag(tag);
 		return dataset.getByteBuffer(tag);
 	}
 
@@ -1243,6 +1427,7 @@ public class DicomObject extends FileObject {
 	 * @return the text of the element, or defaultString if the element does not exist.
 	 */
 	public String getElementValue(String tagName, String defaultString) {
+		needTag(tagName);
 		String value = getElementValue(fileMetaInfo, dataset, tagName, null);
 		if (value == null) value = defaultString;
 		return value;
@@ -1269,6 +1454,7 @@ public class DicomObject extends FileObject {
 	 * @return the text of the element, or defaultString if the element does not exist.
 	 */
 	public String getElementValue(int tag, String defaultString) {
+		needTag(tag);
 		DcmElement de = null;
 		if ((tag & 0x7FFFFFFF) < 0x80000) {
 			de = fileMetaInfo.get(tag);
@@ -1279,6 +1465,32 @@ public class DicomObject extends FileObject {
 		return value;
 	}
 
+	//Get the contents of an element specified by a sequence of tags,
+	//where all the tags but the last must refer to an SQ element, in the
+	//same way as getElementValue(String, String). This method is used by
+	//DicomScript, which resolves the identifiers in a script in advance.
+	String getElementValue(int[] tags, String defaultString) {
+		needTag(tags[0]);
+		Dataset ds = dataset;
+		DcmElement de = null;
+		for (int k=0; k<tags.length; k++) {
+			int tag = tags[k];
+			if ((fileMetaInfo != null) && ((tag & 0x7FFFFFFF) < 0x80000)) {
+				de = fileMetaInfo.get(tag);
+			}
+			else de = ds.get(tag);
+			if (de == null) return defaultString;
+			if (k < tags.length-1) {
+				if (!VRs.toString(de.vr()).equals("SQ")) return defaultString;
+				ds = de.getItem(0);
+				if (ds == null) return defaultString;
+			}
+		}
+		String value = getElementValue(de, ds);
+		if (value == null) value = defaultString;
+		return value;
+	}
+
 	/**
 	 * Get the array of ints identifying an element.
 	 * To specify an element in an SQ item dataset,
@@ -1334,8 +1546,9 @@ public class DicomObject extends FileObject {
 	//This method is used by getElementBytes and getElementString
 	private DcmElement getElement(int[] tags) {
 		DcmElement de = null;
+		if (tags.length == 0) return null;
+		needTag(tags[0]);
 		try {
-			if (tags.length == 0) return null;
 			Dataset ds = dataset;
 			//Walk the SQ datasets to get to the last one
 			for (int k=0; k<tags.length-1; k++) {
@@ -1387,6 +1600,7 @@ public class DicomObject extends FileObject {
 	 * if the element does not exist.
 	 */
 	public byte[] getElementBytes(int tag) {
+		needTag(tag);
 		try {
 			DcmElement de = dataset.get(tag);
 			if (de == null) return null;
@@ -1437,9 +1651,10 @@ public class DicomObject extends FileObject {
 	 * if the element does not exist.
 	 */
 	public String getElementString(String spec) {
+		spec = spec.trim();
+		if (spec.equals("")) return "";
+		needTag(spec);
 		try {
-			spec = spec.trim();
-			if (spec.equals("")) return "";
 			Dataset ds = dataset;
 			DcmElement de = null;
 			String[] tagSpecs = spec.split("::");
@@ -1507,6 +1722,7 @@ public class DicomObject extends FileObject {
 	 * @throws Exception on any error
 	 */
 	public void setElementValue(int tag, String value) throws Exception {
+		parseAll();
 		if ((tag&0x10000) != 0) dataset.putUT(tag,value);
 		else {
 			int vr = 0;
@@ -1845,6 +2061,7 @@ public class DicomObject extends FileObject {
 	 * @return the integer value of the Columns element or -1 if the element does not exist.
 	 */
 	public int getColumns() {
+		needTag(Tags.Columns);
 		try { return dataset.getInteger(Tags.Columns).intValue(); }
 		catch (Exception e) { return -1; }
 	}
@@ -1854,6 +2071,7 @@ public class DicomObject extends FileObject {
 	 * @return the integer value of the Rows element or -1 if the element does not exist.
 	 */
 	public int getRows() {
+		needTag(Tags.Rows);
 		try { return dataset.getInteger(Tags.Rows).intValue(); }
 		catch (Exception e) { return -1; }
 	}
@@ -1863,6 +2081,7 @@ public class DicomObject extends FileObject {
 	 * @return the integer value of the BitsAllocated element or 12 if the element does not exist.
 	 */
 	public int getBitsAllocated() {
+		needTag(Tags.BitsAllocated);
 		try { return dataset.getInteger(Tags.BitsAllocated).intValue(); }
 		catch (Exception e) { return 16; }
 	}
@@ -1872,6 +2091,7 @@ public class DicomObject extends FileObject {
 	 * @return the integer value of the BitsStored element or 12 if the element does not exist.
 	 */
 	public int getBitsStored() {
+		needTag(Tags.BitsStored);
 		try { return dataset.getInteger(Tags.BitsStored).intValue(); }
 		catch (Exception e) { return 12; }
 	}
@@ -1881,6 +2101,7 @@ public class DicomObject extends FileObject {
 	 * @return the integer value of the HighBit element or 0 if the element does not exist.
 	 */
 	public int getHighBit() {
+		needTag(Tags.HighBit);
 		try { return dataset.getInteger(Tags.HighBit).intValue(); }
 		catch (Exception e) { return 0; }
 	}
@@ -1891,6 +2112,7 @@ public class DicomObject extends FileObject {
 	 * value is not available.
 	 */
 	public int getNumberOfFrames() {
+		needTag(Tags.NumberOfFrames);
 		try { return dataset.getInteger(Tags.NumberOfFrames).intValue(); }
 		catch (Exception e) { return 0; }
 	}
@@ -1910,6 +2132,7 @@ public class DicomObject extends FileObject {
 	 * value is not available.
 	 */
 	public int getSamplesPerPixel() {
+		needTag(Tags.SamplesPerPixel);
 		try { return dataset.getInteger(Tags.SamplesPerPixel).intValue(); }
 		catch (Exception e) { return 1; }
 	}
@@ -1920,6 +2143,7 @@ public class DicomObject extends FileObject {
 	 * value is not available.
 	 */
 	public int getPlanarConfiguration() {
+		needTag(Tags.PlanarConfiguration);
 		try { return dataset.getInteger(Tags.PlanarConfiguration).intValue(); }
 		catch (Exception e) { return 1; }
 	}
@@ -1930,6 +2154,7 @@ public class DicomObject extends FileObject {
 	 * value is not available.
 	 */
 	public int getWindowCenter() {
+		needTag(Tags.WindowCenter);
 		try {
 			DcmElement de = dataset.get(Tags.WindowCenter);
 			if (de == null) return 0;
@@ -1944,6 +2169,7 @@ public class DicomObject extends FileObject {
 	 * value is not available.
 	 */
 	public int getWindowWidth() {
+		needTag(Tags.WindowWidth);
 		try {
 			DcmElement de = dataset.get(Tags.WindowWidth);
 			if (de == null) return 0;
@@ -1958,15 +2184,29 @@ public class DicomObject extends FileObject {
 	 * @return true if the object contains an image; false otherwise.
 	 */
 	public boolean isImage() {
+		if (!imageKnown) findPixelData();
 		return isImage;
 	}
 
+	//Determine whether an object whose header has not been parsed
+	//completely contains pixel data, by skipping the rest of the header.
+	private synchronized void findPixelData() {
+		if (imageKnown) return;
+		try {
+			isImage = (resume(null) == Tags.PixelData);
+			imageKnown = true;
+		}
+		catch (Exception ex) {
+			throw new RuntimeException("Unable to complete the parse of "+file, ex);
+		}
+	}
+
 	/**
 	 * Tests whether the DicomObject contains an image with encapsulated pixel data.
 	 * @return true if the object contains an image with encapsulated pixel data; false otherwise.
 	 */
 	public boolean isEncapsulated() {
-		return (isImage && fileParam.encapsulated);
+		return (isImage() && fileParam.encapsulated);
 	}
 
 	/**
@@ -2015,6 +2255,7 @@ public class DicomObject extends FileObject {
 	//Check whether this object is a TCE Manifest
 	private boolean checkManifest() {
 		if (!isKIN()) return false;
+		needTag(Tags.ConceptNameCodeSeq);
 		try {
 			DcmElement cncsElement = dataset.get(Tags.ConceptNameCodeSeq);
 			Dataset sq = cncsElement.getItem(0);
@@ -2038,6 +2279,7 @@ public class DicomObject extends FileObject {
 	//Check whether this object is a TCE ATFI Object
 	private boolean checkAdditionalTFInfo() {
 		if (!isSR()) return false;
+		needTag(Tags.ConceptNameCodeSeq);
 		try {
 			DcmElement cncsElement = dataset.get(Tags.ConceptNameCodeSeq);
 			Dataset sq = cncsElement.getItem(0);
@@ -2055,6 +2297,7 @@ public class DicomObject extends FileObject {
 	 */
 	public Hashtable getAdditionalTFInfo() {
 		if (!isAdditionalTFInfo()) return null;
+		parseAll();
 		return new ATFI(dataset);
 	}
 
@@ -2091,6 +2334,7 @@ public class DicomObject extends FileObject {
 	 */
 	public String getKeyObjectDescription() {
 		if (!isManifest()) return null;
+		needTag(Tags.ContentSeq);
 		DcmElement cs = dataset.get(Tags.ContentSeq);
 		Dataset csItem;
 		int i = 0;
@@ -2148,6 +2392,7 @@ public class DicomObject extends FileObject {
 	//element in the dataset, and finding all instances of a specific tag.
 	private String[] getList(int startingTag, int tagToFind) {
 		if (!isManifest()) return null;
+		needTag(startingTag);
 		try {
 			ArrayList<String> list = new ArrayList<String>();
 			DcmElement el = dataset.get(startingTag);
@@ -2249,6 +2494,7 @@ public class DicomObject extends FileObject {
 						"<th>Length</th>" +
 						"<th style=\"text-align:left;\">Data</th>" +
 					"</tr>\n");
+		parseAll();
 		walkDataset(dataset.getFileMetaInfo(), table, "", false);
 		walkDataset(dataset, table, "", decipherLinks);
 		table.append("</table>\n");
@@ -2486,15 +2732,15 @@ public class DicomObject extends FileObject {
 	/**
 	 * Evaluate a boolean script for this DicomObject. See the RSNA
 	 * CTP wiki article (The CTP DicomFilter) for information on the
-	 * script language.
+	 * script language. The script is read and compiled only when
+	 * the file changes.
 	 * @param scriptFile the text file containing the expression to
 	 * compute based on the values in this DicomObject.
 	 * @return the computed boolean value of the script.
 	 */
 	public boolean matches(File scriptFile) {
 		if (scriptFile != null) {
-			String script = FileUtil.getText(scriptFile);
-			return matches(script);
+			return DicomScript.getInstance(scriptFile).matches(this);
 		}
 		return true;
 	}
@@ -2508,395 +2754,6 @@ public class DicomObject extends FileObject {
 	 * @return the computed boolean value of the script.
 	 */
 	public boolean matches(String script) {
-		logger.debug("Match script:\n"+script);
-
-		Tokenizer tokenizer = new Tokenizer(script);
-		Stack<Operator> operators = new Stack<Operator>();
-		Stack<Token> tokens = new Stack<Token>();
-		operators.push(Operator.createSentinel());
-
-		//Get the expression, evaluate it, and return the result.
-		boolean result = false;
-		try {
-			expression(tokenizer, operators, tokens);
-			tokenizer.expect(Token.END);
-			result = unstack(tokens);
-		}
-		catch (Exception ex) { logger.error("", ex); }
-		logger.debug("Match result = "+result);
-		return result;
-	}
-
-	boolean unstack(Stack<Token> tokens) {
-		if (tokens.size() == 0) return false;
-		Token tok = tokens.pop();
-		if (tok instanceof Operand) {
-			return ((Operand)tok).getValue();
-		}
-		else {
-			Operator op = (Operator)tok;
-			boolean value = false;
-			boolean v1, v2;
-			if (op.c == '!')
-				value = !unstack(tokens);
-			else if (op.c == '+') {
-				//note: you must unstack separately and then do the logic
-				//or the optimizer may omit one unstack, leaving the stack
-				//in a mess.
-				v1 = unstack(tokens);
-				v2 = unstack(tokens);
-				value = v1 || v2;
-			}
-			else if (op.c == '*') {
-				//see the note above.
-				v1 = unstack(tokens);
-				v2 = unstack(tokens);
-				value = v1 && v2;
-			}
-			return value;
-		}
-	}
-
-	void expression(Tokenizer t, Stack<Operator> ops, Stack<Token> toks) throws Exception {
-		parse(t,ops,toks);
-		while (t.next().isOperator() &&
-				((Operator)t.next()).isBinary()) {
-			pushOperator(t.next(),ops,toks);
-			t.consume();
-			parse(t,ops,toks);
-		}
-		while (!ops.peek().isSentinel()) {
-			popOperator(ops,toks);
-		}
-	}
-
-	void parse(Tokenizer t, Stack<Operator> ops, Stack<Token> toks) throws Exception {
-		if (t.next().isOperand()) {
-			toks.push(t.next());
-			t.consume();
-		}
-		else if (t.next().isLP()) {
-			t.consume();
-			ops.push(Operator.createSentinel());
-			expression(t,ops,toks);
-			t.expect(Token.RP);
-			ops.pop();
-		}
-		else if (t.next().isOperator() &&
-				((Operator)t.next()).isUnary()) {
-			pushOperator(t.next(),ops,toks);
-			t.consume();
-			parse(t,ops,toks);
-		}
-		else throw new Exception("Failure in parsing the script.");
-	}
-
-	void popOperator(Stack<Operator> ops, Stack<Token> toks) {
-		toks.push(ops.pop());
-	}
-
-	void pushOperator(Token tok, Stack<Operator> ops, Stack<Token> toks) {
-		Operator op = (Operator)tok;
-		while (ops.peek().isHigherThan(op))
-			popOperator(ops,toks);
-		ops.push(op);
-	}
-
-
-	//The rest of the code is for parsing the script and evaluating the result.
-	class Tokenizer {
-		String script;
-		int index;
-		Token nextToken;
-
-		public Tokenizer(String script) {
-			this.script = script;
-			index = 0;
-			nextToken = getToken();
-		}
-		public void expect(int type) throws Exception {
-			if (nextToken.equals(type))
-				consume();
-			else
-				throw new Exception(
-					"Error in script: "
-					+Token.getTypeName(type)
-					+" expected, but "
-					+Token.getTypeName(nextToken.getType())
-					+" found:\n"
-					+script);
-		}
-		public Token next() {
-			return nextToken;
-		}
-		public Token consume() {
-			Token temp = nextToken;
-			nextToken = getToken();
-			return temp;
-		}
-		Token getToken() {
-			skipWhitespace();
-			if (index >= script.length())
-				return new End();
-			char c = script.charAt(index);
-			if ((c == '[') || Character.isLetter(c))
-				return new Operand(this);
-			else if (c == '(')
-				return new LP(this);
-			else if (c == ')')
-				return new RP(this);
-			else if (Operator.isOperator(c))
-				return new Operator(this);
-			return new Unknown();
-		}
-		void skipWhitespace() {
-			boolean inComment = false;
-			while (index < script.length()) {
-				char c = script.charAt(index);
-				if (inComment) {
-					if (c == '\n') inComment = false;
-					index++;
-				}
-				else if (c == '/') {
-					int k = index + 1;
-					if ((k < script.length()) && (script.charAt(k) == '/')) {
-						inComment = true;
-						index += 2;
-					}
-					else return;
-				}
-				else if (Character.isWhitespace(c)) index++;
-				else return;
-			}
-		}
-		public char getChar() {
-			if (index < script.length())
-				return script.charAt(index++);
-			return 0;
-		}
-	}
-
-	static class Operator extends Token {
-		public char c;	//the operator character
-		public int p;	//the precedence
-		static String ops = "?+*!";
-		static int[] prec = {0,1,2,3};
-
-		public Operator(Tokenizer t) {
-			super(OPERATOR);
-			this.c = t.getChar();
-			this.p = ops.indexOf(c);
-			if (p != -1) p = prec[p];
-		}
-		public Operator(char c) {
-			super(OPERATOR);
-			this.c = c;
-			this.p = ops.indexOf(c);
-			if (p != -1) p = prec[p];
-		}
-		public static Operator createSentinel() {
-			return new Operator('?');
-		}
-		public static boolean isOperator(char c) {
-			int x = ops.indexOf(c);
-			return (x > 0);
-		}
-		public boolean isOperator() {
-			return (p != -1);
-		}
-		public boolean isSentinel() {
-			return (c == '?');
-		}
-		public boolean isUnary() {
-			return (c == '!');
-		}
-		public boolean isBinary() {
-			return (c == '+') || (c == '*');
-		}
-		public boolean isHigherThan(Operator q) {
-			return (p >= q.p);
-		}
-		public boolean isLowerThan(Operator q) {
-			return (p < q.p);
-		}
-		public String toString() {
-			return "" + c;
-		}
-	}
-
-	class Operand extends Token {
-		public boolean value = false;
-		public Operand(Tokenizer t) {
-			super(OPERAND);
-			String identifier = getField(t,'.').trim();
-			if (identifier.equals("true"))
-				value = true;
-			else if (identifier.equals("false"))
-				value = false;
-			else {
-				String method = getField(t,'(').trim();
-				String match = getField(t,')').trim();
-				if ((match.length() > 1) &&
-						(match.charAt(0) == '"') &&
-							(match.charAt(match.length()-1) == '"')) {
-
-					//Update the properties for the value of the identifier.
-					String element = getElementValue(identifier);
-
-					String elementLC = element.toLowerCase();
-					match = match.substring(1, match.length()-1);
-					String matchLC = match.toLowerCase();
-
-					if (method.equals("equals"))
-						value = element.equals(match);
-
-					else if (method.equals("equalsIgnoreCase"))
-						value = element.equalsIgnoreCase(match);
-
-					else if (method.equals("matches"))
-						value = element.matches(match);
-
-					else if (method.equals("contains"))
-						value = (element.contains(match));
-
-					else if (method.equals("containsIgnoreCase"))
-						value = (elementLC.contains(matchLC));
-
-					else if (method.equals("startsWith"))
-						value = element.startsWith(match);
-
-					else if (method.equals("startsWithIgnoreCase"))
-						value = elementLC.startsWith(matchLC);
-
-					else if (method.equals("endsWith"))
-						value = element.endsWith(match);
-
-					else if (method.equals("endsWithIgnoreCase"))
-						value = elementLC.endsWith(matchLC);
-
-					else if (method.equals("isLessThan")) {
-						try {
-							String v1 = elementLC.replaceAll("[^0-9\\.]", "");
-							String v2 = matchLC.replaceAll("[^0-9\\.]", "");
-							double d1 = Double.parseDouble(v1);
-							double d2 = Double.parseDouble(v2);
-							value = (d1 < d2);
-						}
-						catch (Exception ex) { value = false; }
-					}
-
-					else if (method.equals("isGreaterThan")) {
-						try {
-							String v1 = elementLC.replaceAll("[^0-9\\.]", "");
-							String v2 = matchLC.replaceAll("[^0-9\\.]", "");
-							double d1 = Double.parseDouble(v1);
-							double d2 = Double.parseDouble(v2);
-							value = (d1 > d2);
-						}
-						catch (Exception ex) { value = false; }
-					}
-
-					else {
-						logger.error("Unknown function: "+identifier+"."+method+"(\""+match+"\")");
-						value = false;
-					}
-					logger.debug(identifier+"="+element+" -> { "+identifier+"."+method+"(\""+match+"\")="+value+" }");
-				}
-			}
-		}
-		String getField(Tokenizer t, char delim) {
-			String f = "";
-			char c;
-			boolean inQuote = false;
-			while ((c = t.getChar()) != 0) {
-				if (c == '"') inQuote = !inQuote;
-				if (!inQuote && (c == delim)) break;
-				f += c;
-			}
-			return f;
-		}
-		public boolean getValue() {
-			return value;
-		}
-		public String toString() {
-			return value ? "true" : "false";
-		}
-	}
-
-	class LP extends Token {
-		public LP(Tokenizer t) {
-			super(LP);
-			t.getChar();
-		}
-	}
-
-	class RP extends Token {
-		public RP(Tokenizer t) {
-			super(RP);
-			t.getChar();
-		}
-	}
-
-	class End extends Token {
-		public End() {
-			super(END);
-		}
-	}
-
-	class Unknown extends Token {
-		public Unknown() {
-			super(UNKNOWN);
-		}
-	}
-
-	static class Token {
-		static int OPERATOR = 0;
-		static int OPERAND = 1;
-		static int LP = 2;
-		static int RP = 3;
-		static int END = -1;
-		static int UNKNOWN = -2;
-		int type;
-		public Token(int type) {
-			this.type = type;
-		}
-		public boolean equals(int type) {
-			return (this.type == type);
-		}
-		public boolean isOperator() {
-			return (type == OPERATOR);
-		}
-		public boolean isOperand() {
-			return (type == OPERAND);
-		}
-		public boolean isLP() {
-			return (type == LP);
-		}
-		public boolean isRP() {
-			return (type == RP);
-		}
-		public boolean isEND() {
-			return (type == END);
-		}
-		public int getType() {
-			return type;
-		}
-		public String getTypeName() {
-			return getTypeName(this.type);
-		}
-		public static String getTypeName(int type) {
-			if (type == OPERATOR) return "OPERATOR";
-			else if (type == OPERAND) return "OPERAND";
-			else if (type == LP) return "LP";
-			else if (type == RP) return "RP";
-			else if (type == END) return "END";
-			else return "UNKNOWN";
-		}
-		public String toString() {
-			return getTypeName();
-		}
+		return DicomScript.getInstance(script).matches(this);
 	}
-	//**********************************
-	// End of the code for the matcher
-	//**********************************
 }
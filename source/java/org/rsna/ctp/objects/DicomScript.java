@@ -0,0 +1,506 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.objects;
+
+import java.io.File;
+import java.util.Hashtable;
+import java.util.Stack;
+import java.util.regex.Pattern;
+import org.apache.log4j.Logger;
+
+/**
+ * A compiled boolean script for DicomObjects. See the RSNA CTP wiki
+ * article (The CTP DicomFilter) for information on the script language.
+ * <p>
+ * A script is parsed once into an immutable expression tree in which the
+ * element identifiers are resolved to tags, the regular expressions are
+ * compiled, and the numeric arguments are converted, so evaluating it for
+ * an object only requires getting the values of the elements it tests.
+ * Compiled scripts are cached by their text, and script files are cached
+ * by the ScriptCache, so a script file is read and compiled only when
+ * it changes. Instances are thread-safe.
+ */
+public class DicomScript {
+
+	static final Logger logger = Logger.getLogger(DicomScript.class);
+
+	static final int maxCacheSize = 256;
+	static final Hashtable<String,DicomScript> cache = new Hashtable<String,DicomScript>();
+
+	final String script;
+	final Node root;
+
+	/**
+	 * Get the compiled script for a script file.
+	 * @param scriptFile the text file containing the script.
+	 * @return the compiled script.
+	 */
+	public static DicomScript getInstance(File scriptFile) {
+		return getInstance(ScriptCache.getText(scriptFile));
+	}
+
+	/**
+	 * Get the compiled script for the text of a script.
+	 * @param script the text of the script.
+	 * @return the compiled script.
+	 */
+	public static DicomScript getInstance(String script) {
+		if (script == null) script = "";
+		DicomScript ds = cache.get(script);
+		if (ds == null) {
+			ds = new DicomScript(script);
+			if (cache.size() >= maxCacheSize) cache.clear();
+			cache.put(script, ds);
+		}
+		return ds;
+	}
+
+	/**
+	 * Compile a script. Errors in the script are logged, and a script
+	 * which cannot be compiled does not match any object.
+	 * @param script the text of the script.
+	 */
+	public DicomScript(String script) {
+		this.script = script;
+		Node node = null;
+		try {
+			Parser parser = new Parser(script);
+			parser.expression();
+			parser.expect(Token.END);
+			node = parser.getTree();
+		}
+		catch (Exception ex) {
+			logger.error("", ex);
+			node = null;
+		}
+		this.root = node;
+	}
+
+	/**
+	 * Evaluate the script for a DicomObject.
+	 * @param dob the object.
+	 * @return the computed boolean value of the script, or false
+	 * if the script could not be compiled.
+	 */
+	public boolean matches(DicomObject dob) {
+		if (logger.isDebugEnabled()) logger.debug("Match script:\n"+script);
+		boolean result = (root != null) && root.evaluate(dob);
+		if (logger.isDebugEnabled()) logger.debug("Match result = "+result);
+		return result;
+	}
+
+	/**
+	 * Determine whether the script was compiled successfully.
+	 * @return true if the script could be compiled; false otherwise.
+	 */
+	public boolean isValid() {
+		return (root != null);
+	}
+
+	/**
+	 * Get the highest tag of the top-level dataset referenced by the script.
+	 * This can be used to decide how much of an object's header must be
+	 * parsed to evaluate the script.
+	 * @return the highest tag referenced by the script, 0 if the script
+	 * references no elements, or -1 if the script references an element
+	 * which cannot be identified by its tag (e.g., a private element
+	 * specified by its creator) or if the script could not be compiled.
+	 */
+	public int getLastTag() {
+		if (root == null) return -1;
+		long lastTag = root.getLastTag();
+		return (lastTag < 0) ? -1 : (int)lastTag;
+	}
+
+	//The nodes of the expression tree. The getLastTag methods return
+	//the highest tag as an unsigned value, or -1 for an unknown tag.
+	static abstract class Node {
+		abstract boolean evaluate(DicomObject dob);
+		abstract long getLastTag();
+	}
+
+	static class Constant extends Node {
+		final boolean value;
+		Constant(boolean value) {
+			this.value = value;
+		}
+		boolean evaluate(DicomObject dob) {
+			return value;
+		}
+		long getLastTag() {
+			return 0;
+		}
+	}
+
+	static class Not extends Node {
+		final Node node;
+		Not(Node node) {
+			this.node = node;
+		}
+		boolean evaluate(DicomObject dob) {
+			return !node.evaluate(dob);
+		}
+		long getLastTag() {
+			return node.getLastTag();
+		}
+	}
+
+	static class Binary extends Node {
+		final char op;
+		final Node left;
+		final Node right;
+		Binary(char op, Node left, Node right) {
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+		boolean evaluate(DicomObject dob) {
+			if (op == '+') return left.evaluate(dob) || right.evaluate(dob);
+			return left.evaluate(dob) && right.evaluate(dob);
+		}
+		long getLastTag() {
+			long l = left.getLastTag();
+			long r = right.getLastTag();
+			if ((l < 0) || (r < 0)) return -1;
+			return Math.max(l, r);
+		}
+	}
+
+	static final String[] methods = {
+		"equals", "equalsIgnoreCase", "matches",
+		"contains", "containsIgnoreCase",
+		"startsWith", "startsWithIgnoreCase",
+		"endsWith", "endsWithIgnoreCase",
+		"isLessThan", "isGreaterThan"
+	};
+	static final int EQUALS = 0;
+	static final int EQUALS_IGNORE_CASE = 1;
+	static final int MATCHES = 2;
+	static final int CONTAINS = 3;
+	static final int CONTAINS_IGNORE_CASE = 4;
+	static final int STARTS_WITH = 5;
+	static final int STARTS_WITH_IGNORE_CASE = 6;
+	static final int ENDS_WITH = 7;
+	static final int ENDS_WITH_IGNORE_CASE = 8;
+	static final int IS_LESS_THAN = 9;
+	static final int IS_GREATER_THAN = 10;
+
+	//A test of the value of an element, e.g. Modality.equals("CT").
+	static class Test extends Node {
+		final String identifier;
+		final int[] tags;
+		final String methodName;
+		final int method;
+		final String match;
+		final String matchLC;
+		final Pattern pattern;
+		final double number;
+		final boolean numberValid;
+
+		Test(String identifier, String methodName, String match) {
+			this.identifier = identifier;
+			this.methodName = methodName;
+			this.match = match;
+			this.matchLC = match.toLowerCase();
+			int m = -1;
+			for (int i=0; i<methods.length; i++) {
+				if (methods[i].equals(methodName)) { m = i; break; }
+			}
+			this.method = m;
+			if (m == -1) logger.error("Unknown function: "+identifier+"."+methodName+"(\""+match+"\")");
+			this.pattern = (m == MATCHES) ? Pattern.compile(match) : null;
+			double d = 0;
+			boolean valid = false;
+			if ((m == IS_LESS_THAN) || (m == IS_GREATER_THAN)) {
+				try {
+					d = Double.parseDouble(matchLC.replaceAll("[^0-9\\.]", ""));
+					valid = true;
+				}
+				catch (Exception ex) { valid = false; }
+			}
+			this.number = d;
+			this.numberValid = valid;
+			this.tags = getTags(identifier);
+		}
+
+		//Resolve the identifier to a sequence of tags, or return null if the
+		//identifier can only be resolved against the dataset of an object.
+		static int[] getTags(String identifier) {
+			String spec = identifier.trim();
+			if (spec.equals("") || spec.startsWith("root:")) return null;
+			String[] specs = spec.split("::");
+			int[] tags = new int[specs.length];
+			for (int i=0; i<specs.length; i++) {
+				tags[i] = DicomObject.getElementTag(specs[i]);
+				if (tags[i] == 0) return null;
+			}
+			return tags;
+		}
+
+		boolean evaluate(DicomObject dob) {
+			if (method == -1) return false;
+			String element = (tags != null)
+				? dob.getElementValue(tags, "")
+				: dob.getElementValue(identifier);
+			boolean value = false;
+			switch (method) {
+				case EQUALS: value = element.equals(match); break;
+				case EQUALS_IGNORE_CASE: value = element.equalsIgnoreCase(match); break;
+				case MATCHES: value = pattern.matcher(element).matches(); break;
+				case CONTAINS: value = element.contains(match); break;
+				case CONTAINS_IGNORE_CASE: value = element.toLowerCase().contains(matchLC); break;
+				case STARTS_WITH: value = element.startsWith(match); break;
+				case STARTS_WITH_IGNORE_CASE: value = element.toLowerCase().startsWith(matchLC); break;
+				case ENDS_WITH: value = element.endsWith(match); break;
+				case ENDS_WITH_IGNORE_CASE: value = element.toLowerCase().endsWith(matchLC); break;
+				case IS_LESS_THAN: value = compare(element) < 0; break;
+				case IS_GREATER_THAN: value = compare(element) > 0; break;
+			}
+			if (logger.isDebugEnabled()) {
+				logger.debug(identifier+"="+element+" -> { "+identifier+"."+methodName+"(\""+match+"\")="+value+" }");
+			}
+			return value;
+		}
+
+		//Compare the numeric value of an element to the argument,
+		//returning 0 if either cannot be parsed, so the test fails.
+		int compare(String element) {
+			if (!numberValid) return 0;
+			try {
+				double d = Double.parseDouble(element.toLowerCase().replaceAll("[^0-9\\.]", ""));
+				return (d < number) ? -1 : ((d > number) ? 1 : 0);
+			}
+			catch (Exception ex) { return 0; }
+		}
+
+		long getLastTag() {
+			if (tags == null) return -1;
+			return tags[0] & 0xFFFFFFFFL;
+		}
+	}
+
+	//The parser, which converts the script to postfix with the same
+	//tokens, operator precedence, and stack discipline as the original
+	//interpreter ('!' binds tighter than '*', which binds tighter than '+'),
+	//and then builds the tree by unstacking the postfix tokens in the order
+	//in which the interpreter evaluated them, so every script keeps its meaning.
+	static class Parser {
+		final String script;
+		int index;
+		Token nextToken;
+		final Stack<Operator> ops = new Stack<Operator>();
+		final Stack<Token> toks = new Stack<Token>();
+
+		Parser(String script) throws Exception {
+			this.script = script;
+			index = 0;
+			nextToken = getToken();
+			ops.push(Operator.createSentinel());
+		}
+
+		void expression() throws Exception {
+			parse();
+			while (nextToken.isOperator() && ((Operator)nextToken).isBinary()) {
+				pushOperator((Operator)nextToken);
+				consume();
+				parse();
+			}
+			while (!ops.peek().isSentinel()) popOperator();
+		}
+
+		void parse() throws Exception {
+			if (nextToken.isOperand()) {
+				toks.push(nextToken);
+				consume();
+			}
+			else if (nextToken.isLP()) {
+				consume();
+				ops.push(Operator.createSentinel());
+				expression();
+				expect(Token.RP);
+				ops.pop();
+			}
+			else if (nextToken.isOperator() && ((Operator)nextToken).isUnary()) {
+				pushOperator((Operator)nextToken);
+				consume();
+				parse();
+			}
+			else throw new Exception("Failure in parsing the script.");
+		}
+
+		void popOperator() {
+			toks.push(ops.pop());
+		}
+
+		//Build the tree from the postfix tokens. As in the interpreter,
+		//a missing operand is false and any tokens left over are ignored.
+		Node getTree() {
+			if (toks.size() == 0) return new Constant(false);
+			Token tok = toks.pop();
+			if (tok.isOperand()) return ((Operand)tok).node;
+			Operator op = (Operator)tok;
+			if (op.isUnary()) return new Not(getTree());
+			Node right = getTree();
+			Node left = getTree();
+			return new Binary(op.c, left, right);
+		}
+
+		void pushOperator(Operator op) {
+			while (ops.peek().isHigherThan(op)) popOperator();
+			ops.push(op);
+		}
+
+		void expect(int type) throws Exception {
+			if (nextToken.equals(type)) consume();
+			else
+				throw new Exception(
+					"Error in script: "
+					+Token.getTypeName(type)
+					+" expected, but "
+					+Token.getTypeName(nextToken.getType())
+					+" found:\n"
+					+script);
+		}
+
+		void consume() throws Exception {
+			nextToken = getToken();
+		}
+
+		Token getToken() throws Exception {
+			skipWhitespace();
+			if (index >= script.length()) return new Token(Token.END);
+			char c = script.charAt(index);
+			if ((c == '[') || Character.isLetter(c)) return new Operand(getOperand());
+			else if (c == '(') { index++; return new Token(Token.LP); }
+			else if (c == ')') { index++; return new Token(Token.RP); }
+			else if (Operator.isOperator(c)) { index++; return new Operator(c); }
+			return new Token(Token.UNKNOWN);
+		}
+
+		Node getOperand() {
+			String identifier = getField('.').trim();
+			if (identifier.equals("true")) return new Constant(true);
+			if (identifier.equals("false")) return new Constant(false);
+			String method = getField('(').trim();
+			String match = getField(')').trim();
+			if ((match.length() > 1)
+					&& (match.charAt(0) == '"')
+						&& (match.charAt(match.length()-1) == '"')) {
+				return new Test(identifier, method, match.substring(1, match.length()-1));
+			}
+			return new Constant(false);
+		}
+
+		String getField(char delim) {
+			StringBuffer sb = new StringBuffer();
+			boolean inQuote = false;
+			while (index < script.length()) {
+				char c = script.charAt(index++);
+				if (c == '"') inQuote = !inQuote;
+				if (!inQuote && (c == delim)) break;
+				sb.append(c);
+			}
+			return sb.toString();
+		}
+
+		void skipWhitespace() {
+			boolean inComment = false;
+			while (index < script.length()) {
+				char c = script.charAt(index);
+				if (inComment) {
+					if (c == '\n') inComment = false;
+					index++;
+				}
+				else if (c == '/') {
+					int k = index + 1;
+					if ((k < script.length()) && (script.charAt(k) == '/')) {
+						inComment = true;
+						index += 2;
+					}
+					else return;
+				}
+				else if (Character.isWhitespace(c)) index++;
+				else return;
+			}
+		}
+	}
+
+	static class Token {
+		static final int OPERATOR = 0;
+		static final int OPERAND = 1;
+		static final int LP = 2;
+		static final int RP = 3;
+		static final int END = -1;
+		static final int UNKNOWN = -2;
+		final int type;
+		Token(int type) {
+			this.type = type;
+		}
+		boolean equals(int type) {
+			return (this.type == type);
+		}
+		boolean isOperator() {
+			return (type == OPERATOR);
+		}
+		boolean isOperand() {
+			return (type == OPERAND);
+		}
+		boolean isLP() {
+			return (type == LP);
+		}
+		int getType() {
+			return type;
+		}
+		static String getTypeName(int type) {
+			if (type == OPERATOR) return "OPERATOR";
+			else if (type == OPERAND) return "OPERAND";
+			else if (type == LP) return "LP";
+			else if (type == RP) return "RP";
+			else if (type == END) return "END";
+			else return "UNKNOWN";
+		}
+	}
+
+	static class Operand extends Token {
+		final Node node;
+		Operand(Node node) {
+			super(OPERAND);
+			this.node = node;
+		}
+	}
+
+	static class Operator extends Token {
+		static final String ops = "?+*!";
+		final char c;	//the operator character
+		final int p;	//the precedence
+		Operator(char c) {
+			super(OPERATOR);
+			this.c = c;
+			this.p = ops.indexOf(c);
+		}
+		static Operator createSentinel() {
+			return new Operator('?');
+		}
+		static boolean isOperator(char c) {
+			return (ops.indexOf(c) > 0);
+		}
+		boolean isSentinel() {
+			return (c == '?');
+		}
+		boolean isUnary() {
+			return (c == '!');
+		}
+		boolean isBinary() {
+			return (c == '+') || (c == '*');
+		}
+		boolean isHigherThan(Operator q) {
+			return (p >= q.p);
+		}
+	}
+
+}
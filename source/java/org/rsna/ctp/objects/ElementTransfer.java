@@ -0,0 +1,123 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.objects;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import org.apache.log4j.Logger;
+import org.dcm4che.data.DcmParser;
+import org.rsna.util.FileUtil;
+
+/**
+ * A class to copy large element values, such as the pixels and any elements
+ * which follow them, from a DICOM file being parsed to a file being written,
+ * without passing them through the Java heap. The values are moved between
+ * the files with FileChannel.transferTo, which lets the operating system copy
+ * the bytes directly.
+ * <p>
+ * The parser must be reading the input file through a BufferedInputStream
+ * wrapping a FileInputStream, which is how all the parsers in CTP are created.
+ * The position of the value in the file is computed from the length of the file
+ * and the number of bytes still available from the stream.
+ */
+public class ElementTransfer {
+
+	static final Logger logger = Logger.getLogger(ElementTransfer.class);
+
+	/** The shortest value that is worth a transfer; shorter values are copied. */
+	static final int minTransferLength = 32768;
+
+	final File inFile;
+	final long inLength;
+	final FileOutputStream fileOut;
+	final OutputStream out;
+	FileInputStream channelIn = null;
+	FileChannel inChannel = null;
+	boolean disabled = false;
+
+	/**
+	 * Construct an ElementTransfer.
+	 * @param inFile the file being parsed.
+	 * @param fileOut the stream of the file being written.
+	 * @param out the stream through which the other elements are being
+	 * written to fileOut. It may be fileOut itself or a stream which
+	 * buffers it. It is flushed before each transfer.
+	 */
+	public ElementTransfer(File inFile, FileOutputStream fileOut, OutputStream out) {
+		this.inFile = inFile;
+		this.inLength = inFile.length();
+		this.fileOut = fileOut;
+		this.out = out;
+		//The position is computed from InputStream.available,
+		//which cannot represent more than Integer.MAX_VALUE bytes.
+		this.disabled = (inLength >= Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Transfer the value of the element whose header has just been parsed
+	 * from the input file to the output file, leaving the parser positioned
+	 * at the next element, in the same way as reading the value from the
+	 * parser's input stream.
+	 * @param parser the parser of the input file.
+	 * @param swap true if the bytes of the value must be swapped.
+	 * @return true if the value was transferred; false if the value must be
+	 * copied by the caller because it is short, it must be swapped, or
+	 * it cannot be located in the file.
+	 * @throws IOException if the transfer fails after it has started.
+	 */
+	public boolean transferValue(DcmParser parser, boolean swap) throws IOException {
+		int len = parser.getReadLength();
+		if (disabled || swap || (len < minTransferLength)) return false;
+		InputStream in = parser.getInputStream();
+		long position = inLength - in.available();
+		if ((position < 0) || (position + len > inLength)) return false;
+		if (inChannel == null) {
+			channelIn = new FileInputStream(inFile);
+			inChannel = channelIn.getChannel();
+		}
+		out.flush();
+		FileChannel outChannel = fileOut.getChannel();
+		long done = 0;
+		while (done < len) {
+			long n = inChannel.transferTo(position + done, len - done, outChannel);
+			if (n <= 0) throw new EOFException("Transfer stopped at "+(position + done)+" in "+inFile);
+			done += n;
+		}
+		skip(in, len);
+		return true;
+	}
+
+	//Move the parser's input stream past the transferred value.
+	private void skip(InputStream in, long len) throws IOException {
+		while (len > 0) {
+			long n = in.skip(len);
+			if (n <= 0) {
+				if (in.read() == -1) throw new EOFException("EOF while skipping element value");
+				n = 1;
+			}
+			len -= n;
+		}
+	}
+
+	/**
+	 * Close the channel on the input file, if one was opened.
+	 * This method does not close either of the output streams.
+	 */
+	public void close() {
+		FileUtil.close(channelIn);
+		channelIn = null;
+		inChannel = null;
+	}
+
+}
@@ -0,0 +1,159 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.objects;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.security.MessageDigest;
+import org.apache.log4j.Logger;
+import org.rsna.util.FileUtil;
+
+/**
+ * A class to store the MD5 digest of a file with the file, so it is
+ * computed once, preferably while the file is first written, instead of
+ * every time a stage asks for it. The digest is stored in a user-defined
+ * extended attribute of the file, together with the last-modified time and
+ * the length of the file when the digest was computed. A stored digest is
+ * used only while the file still has that time and length. Extended attributes
+ * follow the file when it is renamed or linked into a queue; when a file is
+ * copied, the digest can be copied with it.
+ * <p>
+ * A sidecar file is not used because the queues treat every file in
+ * their directories as a queued object. On file systems which do not
+ * support extended attributes, the digest is computed whenever it is
+ * requested, as before.
+ */
+public class FileDigest {
+
+	static final Logger logger = Logger.getLogger(FileDigest.class);
+
+	static final String algorithm = "MD5";
+	static final String attributeName = "ctp.md5";
+	static final int digestLength = 16;
+	static final int attributeLength = digestLength + 16;
+
+	/**
+	 * Get a MessageDigest for computing the digest of a file while it is
+	 * being written. When the file is closed, the result must be stored
+	 * by calling put.
+	 * @return the MessageDigest, or null if the algorithm is not available.
+	 */
+	public static MessageDigest getMessageDigest() {
+		try { return MessageDigest.getInstance(algorithm); }
+		catch (Exception ex) { return null; }
+	}
+
+	/**
+	 * Store the digest of a file which has just been written.
+	 * @param file the file.
+	 * @param digest the digest of the contents of the file. If the digest
+	 * is null or has the wrong length, nothing is stored.
+	 */
+	public static void put(File file, byte[] digest) {
+		if ((digest == null) || (digest.length != digestLength)) return;
+		try {
+			UserDefinedFileAttributeView view = getView(file);
+			if (view == null) return;
+			ByteBuffer bb = ByteBuffer.allocate(attributeLength);
+			bb.put(digest);
+			bb.putLong(file.lastModified());
+			bb.putLong(file.length());
+			bb.flip();
+			view.write(attributeName, bb);
+		}
+		catch (Exception unsupported) {
+			logger.debug("Unable to store the digest of "+file);
+		}
+	}
+
+	/**
+	 * Get the stored digest of a file, if the file has not
+	 * been modified since the digest was stored.
+	 * @param file the file.
+	 * @return the digest, or null if no valid digest is stored.
+	 */
+	public static byte[] getStored(File file) {
+		try {
+			UserDefinedFileAttributeView view = getView(file);
+			if ((view == null) || (view.size(attributeName) != attributeLength)) return null;
+			ByteBuffer bb = ByteBuffer.allocate(attributeLength);
+			view.read(attributeName, bb);
+			bb.flip();
+			byte[] digest = new byte[digestLength];
+			bb.get(digest);
+			long lastModified = bb.getLong();
+			long length = bb.getLong();
+			if ((lastModified == file.lastModified()) && (length == file.length())) return digest;
+		}
+		catch (Exception noDigest) { }
+		return null;
+	}
+
+	/**
+	 * Get the digest of a file, using the stored digest if it is valid,
+	 * and otherwise computing the digest and storing it.
+	 * @param file the file.
+	 * @return the digest, or null if the file cannot be read.
+	 */
+	public static byte[] getDigest(File file) {
+		byte[] digest = getStored(file);
+		if (digest != null) return digest;
+		MessageDigest md = getMessageDigest();
+		if (md == null) return null;
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(file));
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) md.update(buffer, 0, n);
+			in.close();
+			in = null;
+			digest = md.digest();
+			put(file, digest);
+			return digest;
+		}
+		catch (Exception ex) { return null; }
+		finally { FileUtil.close(in); }
+	}
+
+	/**
+	 * Get the digest of a file as a string in a specified base,
+	 * in the same form as DigestUtil.digest.
+	 * @param file the file.
+	 * @param base the base of the string.
+	 * @return the digest string, or the empty string if
+	 * the file cannot be read.
+	 */
+	public static String getDigest(File file, int base) {
+		byte[] digest = getDigest(file);
+		if (digest == null) return "";
+		return new BigInteger(1, digest).toString(base);
+	}
+
+	/**
+	 * Store the valid digest of one file, if it has one, as the digest
+	 * of another file with the same contents, such as a copy.
+	 * @param from the file whose digest is to be copied.
+	 * @param to the file which is to receive the digest.
+	 */
+	public static void copy(File from, File to) {
+		byte[] digest = getStored(from);
+		if (digest != null) put(to, digest);
+	}
+
+	private static UserDefinedFileAttributeView getView(File file) {
+		return Files.getFileAttributeView(file.toPath(), UserDefinedFileAttributeView.class);
+	}
+
+}
@@ -9,7 +9,6 @@ package org.rsna.ctp.objects;
 
 import java.io.*;
 import org.apache.log4j.Logger;
-import org.rsna.util.DigestUtil;
 import org.rsna.util.FileUtil;
 import org.rsna.util.StringUtil;
 
@@ -52,11 +51,13 @@ public class FileObject {
 	/**
 	 * Compute the MD5 digest of the contents of the file
 	 * and return a string representing the result in the specified base.
+	 * The digest is stored with the file (see FileDigest) and is only
+	 * computed again if the file is modified.
 	 * @param base the the base of the digest string to be returned
 	 * @return the MD5 digest of the file.
 	 */
 	public String getDigest(int base) {
-		return DigestUtil.digest("MD5", file, base);
+		return FileDigest.getDigest(file, base);
 	}
 
 	/**
@@ -362,7 +363,9 @@ public class FileObject {
 	 */
 	public boolean copyTo(File destination) {
 		if (file == null) return false;
-		return FileUtil.copy(file, destination);
+		boolean ok = FileUtil.copy(file, destination);
+		if (ok) FileDigest.copy(file, destination);
+		return ok;
 	}
 
 	/**
@@ -393,6 +396,7 @@ public class FileObject {
 			if (!ok) {
 				//That didn't work; try to do a copy.
 				ok = FileUtil.copy(file,newFile);
+				if (ok) FileDigest.copy(file, newFile);
 			}
 			if (ok) return newFile;
 			return null;
@@ -426,7 +430,10 @@ public class FileObject {
 			//That didn't work; try to do a copy.
 			ok = FileUtil.copy(file,newFile);
 			//If that worked, then delete the original.
-			if (ok) file.delete();
+			if (ok) {
+				FileDigest.copy(file, newFile);
+				file.delete();
+			}
 		}
 		if (ok) file = newFile;
 		return ok;
@@ -506,7 +513,10 @@ public class FileObject {
 			//That didn't work; try to do a copy.
 			ok = FileUtil.copy(file,newFile);
 			//If that worked, then delete the original.
-			if (ok) file.delete();
+			if (ok) {
+				FileDigest.copy(file, newFile);
+				file.delete();
+			}
 		}
 		if (ok) file = newFile;
 		return ok;
@@ -561,44 +571,86 @@ public class FileObject {
 	 * @return the instantiated FileObject.
 	 */
 	public static FileObject getInstance(File file) {
+		return getInstance(file, -1);
+	}
 
-		//First try to parse the object based on its extension.
-		String name = file.getName().toLowerCase();
-		boolean triedDICOM = false;
-		boolean triedXML = false;
-		boolean triedZip = false;
-		FileObject fileObject = null;
-		if (name.endsWith(".xml")) {
-			fileObject = tryXml(file);
-			triedXML = true;
-		}
-		else if (name.endsWith(".zip")) {
-			fileObject = tryZip(file);
-			triedZip = true;
-		}
-		else {
-			fileObject = tryDicom(file);
-			triedDICOM = true;
-		}
-		if (fileObject != null) return fileObject;
-
-		//That didn't work, now try the untried possibilities.
-		if (!triedDICOM)
-			fileObject = tryDicom(file);
-
-		if ((fileObject == null) && !triedZip)
-			fileObject = tryZip(file);
+	/**
+	 * Factory to create a FileObject from a File, instantiating the
+	 * correct subclass of FileObject. If the file is a DicomObject,
+	 * its header is parsed only up to a specified tag; the rest is
+	 * parsed when it is needed (see DicomObject(File, int)).
+	 * @param file the file to use to instantiate the FileObject.
+	 * @param lastTag the highest tag of a DicomObject to parse, or -1
+	 * to parse everything up to the pixel data.
+	 * @return the instantiated FileObject.
+	 */
+	public static FileObject getInstance(File file, int lastTag) {
 
-		if ((fileObject == null) && !triedXML)
-			fileObject = tryXml(file);
+		//Parse the object as the type identified by its content.
+		//Content that is not recognized can only be a DicomObject,
+		//perhaps a raw dataset that dcm4che can still identify.
+		FileObject fileObject = null;
+		int type = getContentType(file);
+		if (type == ZIP) fileObject = tryZip(file);
+		else if (type == XML) fileObject = tryXml(file);
+		else fileObject = tryDicom(file, lastTag);
 
 		if (fileObject == null)
 			fileObject = new FileObject(file);
 		return fileObject;
 	}
 
-	private static DicomObject tryDicom(File file) {
-		try { return new DicomObject(file); }
+	static final int UNKNOWN = 0;
+	static final int DICOM = 1;
+	static final int ZIP = 2;
+	static final int XML = 3;
+	static final int sniffLength = 256;
+
+	/**
+	 * Identify the type of a file from its first bytes:
+	 * <ul>
+	 * <li>DICOM if the bytes at offset 128 are "DICM", or if the file starts
+	 * with the tag of an element in group 0000, 0002, or 0008, in either byte order
+	 * <li>ZIP if the file starts with a local file header signature (PK\003\004)
+	 * <li>XML if the first character after any byte order mark and whitespace is '&lt;'
+	 * </ul>
+	 * @param file the file.
+	 * @return the type: DICOM, ZIP, XML, or UNKNOWN.
+	 */
+	static int getContentType(File file) {
+		byte[] b = new byte[sniffLength];
+		int n = 0;
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			int k;
+			while ((n < b.length) && ((k = in.read(b, n, b.length - n)) != -1)) n += k;
+		}
+		catch (Exception ex) { return UNKNOWN; }
+		finally { FileUtil.close(in); }
+
+		if ((n >= 132) && (b[128] == 'D') && (b[129] == 'I') && (b[130] == 'C') && (b[131] == 'M'))
+			return DICOM;
+		if ((n >= 4) && (b[0] == 'P') && (b[1] == 'K') && (b[2] == 3) && (b[3] == 4))
+			return ZIP;
+		int i = 0;
+		if ((n >= 3) && ((b[0] & 0xff) == 0xef) && ((b[1] & 0xff) == 0xbb) && ((b[2] & 0xff) == 0xbf)) i = 3;
+		else if ((n >= 2) && ((b[0] & 0xff) == 0xfe) && ((b[1] & 0xff) == 0xff)) return XML;
+		else if ((n >= 2) && ((b[0] & 0xff) == 0xff) && ((b[1] & 0xff) == 0xfe)) return XML;
+		while ((i < n) && Character.isWhitespace((char)b[i])) i++;
+		if ((i < n) && (b[i] == '<')) return XML;
+		if ((n >= 2) && (b[0] == 0) && (b[1] == '<')) return XML;
+		if (n >= 8) {
+			int groupLE = (b[0] & 0xff) | ((b[1] & 0xff) << 8);
+			int groupBE = ((b[0] & 0xff) << 8) | (b[1] & 0xff);
+			if ((groupLE == 0x0000) || (groupLE == 0x0002) || (groupLE == 0x0008)
+					|| (groupBE == 0x0002) || (groupBE == 0x0008)) return DICOM;
+		}
+		return UNKNOWN;
+	}
+
+	private static DicomObject tryDicom(File file, int lastTag) {
+		try { return new DicomObject(file, lastTag); }
 		catch (Exception ex) { return null; }
 	}
 
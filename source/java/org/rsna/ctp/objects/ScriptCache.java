@@ -0,0 +1,56 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.objects;
+
+import java.io.File;
+import java.util.Hashtable;
+import org.rsna.util.FileUtil;
+
+/**
+ * A cache of the text of filter script files. Filter stages evaluate their
+ * scripts for every object, but the scripts rarely change, so the text of
+ * each file is kept in memory and read again only when the last-modified
+ * time or the length of the file changes. Because the same String instance
+ * is returned until the file changes, it can also be used as the key of a
+ * cache of compiled scripts.
+ */
+public class ScriptCache {
+
+	static final Hashtable<String,Entry> cache = new Hashtable<String,Entry>();
+
+	/**
+	 * Get the text of a script file.
+	 * @param scriptFile the file.
+	 * @return the text of the file, or the empty String if the
+	 * file is null or cannot be read.
+	 */
+	public static String getText(File scriptFile) {
+		if (scriptFile == null) return "";
+		String path = scriptFile.getAbsolutePath();
+		long lastModified = scriptFile.lastModified();
+		long length = scriptFile.length();
+		Entry entry = cache.get(path);
+		if ((entry == null) || (entry.lastModified != lastModified) || (entry.length != length)) {
+			entry = new Entry(FileUtil.getText(scriptFile), lastModified, length);
+			cache.put(path, entry);
+		}
+		return entry.text;
+	}
+
+	static class Entry {
+		final String text;
+		final long lastModified;
+		final long length;
+		Entry(String text, long lastModified, long length) {
+			this.text = text;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+
+}
@@ -321,7 +321,7 @@ public class XmlObject extends FileObject {
 	 */
 	public boolean matches(File scriptFile) {
 		if (scriptFile != null) {
-			String script = FileUtil.getText(scriptFile);
+			String script = ScriptCache.getText(scriptFile);
 			return XmlUtil.matches(document, script);
 		}
 		return true;
@@ -448,7 +448,7 @@ public class ZipObject extends FileObject {
 	public boolean matches(File scriptFile) {
 		if (scriptFile != null) {
 			if (manifestXML != null) {
-				String script = FileUtil.getText(scriptFile);
+				String script = ScriptCache.getText(scriptFile);
 				return XmlUtil.matches(manifestXML, script);
 			}
 			return false;
@@ -9,6 +9,9 @@ package org.rsna.ctp.pipeline;
 
 import java.io.File;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.Configuration;
 import org.rsna.ctp.objects.DicomObject;
@@ -27,6 +30,18 @@ import org.w3c.dom.Element;
  * This class provides the queue management and status functions so
  * normal ExportServices only have to receive files and add them
  * to the queue directory.
+ * <p>
+ * The queue is exported by a pool of Exporter Threads whose size is set
+ * by the poolSize attribute (default 1). ExportServices that keep
+ * connection state between exports should keep one instance of that state
+ * for each Exporter, indexed by getExporterIndex(), so that the Exporters
+ * do not have to serialize their calls to the export methods.
+ * <p>
+ * When the adaptive attribute is "yes", a RateController adjusts the number
+ * of Exporters allowed to export at once and the rate at which they export,
+ * according to the round-trip times and retries seen from the destination.
+ * A file whose export returns Status.RETRY is then retried in place after
+ * a randomized backoff instead of being requeued immediately.
  */
 public abstract class AbstractExportService extends AbstractQueuedExportService {
 
@@ -36,13 +51,19 @@ public abstract class AbstractExportService extends AbstractQueuedExportService
 	static final int minInterval = 1000;
 	static final int maxInterval = 2 * defaultInterval;
 	static final int maxThrottle = 5000;
-
-	int successCount = 0;
-	int retryCount = 0;
+	static final int maxBatchSize = 100;
+	static final int minPoolSize = 1;
+	static final int maxPoolSize = 10;
+	static final int maxAttempts = 6;
 
 	int throttle = 0;
+	final Object throttleLock = new Object();
 	int interval = defaultInterval;
-	Exporter exporter = null;
+	int batchSize = 1;
+	int poolSize = minPoolSize;
+	Exporter[] exporters = null;
+	RateController rateController = null;
+	final Semaphore signal = new Semaphore(0);
 	public boolean enableExport = true;
 
 	AuditLog auditLog = null;
@@ -65,7 +86,20 @@ public abstract class AbstractExportService extends AbstractQueuedExportService
 			interval = StringUtil.getInt(element.getAttribute("interval").trim());
 			if ((interval < minInterval) || (interval > maxInterval)) interval = defaultInterval;
 			enableExport = !element.getAttribute("enableExport").trim().equals("no");
-			exporter = new Exporter();
+			batchSize = StringUtil.getInt(element.getAttribute("batchSize").trim(), 1);
+			if (batchSize < 1) batchSize = 1;
+			if (batchSize > maxBatchSize) batchSize = maxBatchSize;
+			poolSize = StringUtil.getInt(element.getAttribute("poolSize").trim(), minPoolSize);
+			if (poolSize < minPoolSize) poolSize = minPoolSize;
+			if (poolSize > maxPoolSize) poolSize = maxPoolSize;
+			if (element.getAttribute("adaptive").trim().equals("yes")) {
+				rateController = new RateController(name, poolSize, throttle, interval);
+			}
+			exporters = new Exporter[poolSize];
+			for (int i=0; i<poolSize; i++) {
+				exporters[i] = new Exporter(i);
+			}
+			queueManager.addSignal(signal);
 		}
 
 		//Get the AuditLog parameters
@@ -83,27 +117,71 @@ public abstract class AbstractExportService extends AbstractQueuedExportService
 	}
 
 	/**
-	 * Start the export thread. This method is called by the subclass
+	 * Start the export threads. This method is called by the subclass
 	 * that does the actual exporting after it has had time to set up.
 	 */
 	public void start() {
 		//Get the AuditLog plugin, if there is one.
 		auditLog = (AuditLog)Configuration.getInstance().getRegisteredPlugin(auditLogID);
 
-		if (enableExport && (exporter != null)) {
-			exporter.start();
+		if (enableExport && (exporters != null)) {
+			for (Exporter exporter : exporters) exporter.start();
 		}
 	}
 
+	/**
+	 * Stop the pipeline stage, waking the Exporters if they are waiting.
+	 */
+	public synchronized void shutdown() {
+		super.shutdown();
+		if (rateController != null) rateController.close();
+		signal.release(getPoolSize());
+	}
+
 	/**
 	 * Determine whether the pipeline stage has shut down.
 	 */
 	public synchronized boolean isDown() {
-		if ((exporter != null) && !exporter.getState().equals(Thread.State.TERMINATED))
-			return false;
+		if (exporters != null) {
+			for (Exporter exporter : exporters) {
+				if (!exporter.getState().equals(Thread.State.TERMINATED)) return false;
+			}
+		}
 		return stop;
 	}
 
+	/**
+	 * Get the number of Exporter Threads in the pool.
+	 * @return the number of Exporter Threads, or 1 if the stage has no root.
+	 */
+	public int getPoolSize() {
+		return (exporters != null) ? exporters.length : minPoolSize;
+	}
+
+	/**
+	 * Get the adaptive flow controller of the stage.
+	 * @return the RateController, or null if the stage is not adaptive.
+	 */
+	public RateController getRateController() {
+		return rateController;
+	}
+
+	/**
+	 * Get the index of the Exporter Thread which is calling this method.
+	 * ExportServices which keep connection state between exports use
+	 * the index to select the state belonging to the calling Exporter.
+	 * @return the index of the calling Exporter (0 to getPoolSize()-1),
+	 * or 0 if the method is not called from an Exporter of this stage.
+	 */
+	protected int getExporterIndex() {
+		Thread thread = Thread.currentThread();
+		if (thread instanceof Exporter) {
+			Exporter exporter = (Exporter)thread;
+			if (exporter.getService() == this) return exporter.index;
+		}
+		return 0;
+	}
+
 	/**
 	 * Abstract method to export a file.
 	 * @param file the file to export.
@@ -112,9 +190,30 @@ public abstract class AbstractExportService extends AbstractQueuedExportService
 	public abstract Status export(File file);
 
 	/**
-	 * Dummy method which receives notification from the subordinate Exporter Thread
+	 * Export a batch of files. This method is called by the Exporter Thread
+	 * instead of export(File) when the stage is configured with a batchSize
+	 * greater than one. ExportServices that can send several objects in one
+	 * transaction should override this method. This implementation exports
+	 * the files one at a time.
+	 * @param files the files to export.
+	 * @return the status of the attempt to export each file, in the same
+	 * order as the list of files. A missing or null status is treated
+	 * as Status.RETRY.
+	 */
+	public Status[] export(List<File> files) {
+		Status[] results = new Status[files.size()];
+		for (int i=0; i<results.length; i++) {
+			results[i] = export(files.get(i));
+		}
+		return results;
+	}
+
+	/**
+	 * Dummy method which receives notification from a subordinate Exporter Thread
 	 * that it is about to export files. ExportServices that need to connect to
 	 * external databases or other systems should override this method.
+	 * When the poolSize is greater than one, this method is called by each
+	 * Exporter, which can be identified with getExporterIndex().
 	 * @return indication whether the connection could be made. This method always
 	 * returns Status.OK, but methods that override it should return the correct
 	 * result.
@@ -124,7 +223,7 @@ public abstract class AbstractExportService extends AbstractQueuedExportService
 	}
 
 	/**
-	 * Dummy method which receives notification from the subordinate Exporter Thread
+	 * Dummy method which receives notification from a subordinate Exporter Thread
 	 * that it is temporarily done exporting files. ExportServices that need to commit
 	 * changes to external databases or other systems should override this method.
 	 * @return indication whether the disconnect processing was successful.
@@ -143,61 +242,75 @@ public abstract class AbstractExportService extends AbstractQueuedExportService
 		return interval;
 	}
 
+	//An Exporter Thread. Each Exporter keeps its own count of
+	//successive retries, so one Exporter backing off does not
+	//affect the others.
 	class Exporter extends Thread {
-		public Exporter() {
-			super(name + " Exporter");
+		final int index;
+		int successCount = 0;
+		int retryCount = 0;
+		public Exporter(int index) {
+			super(name + " Exporter" + ((poolSize > 1) ? " "+index : ""));
+			this.index = index;
+		}
+		AbstractExportService getService() {
+			return AbstractExportService.this;
 		}
 		public void run() {
 			logger.info(name+": Exporter Thread: Started");
 			File file = null;
+			List<File> files = null;
+			LatencyHistogram exportTimes = MetricsRegistry.getExportTimes(AbstractExportService.this);
 			while (enableExport && !stop && !interrupted()) {
 				try {
+					boolean retry = false;
+					signal.drainPermits();
 					if ((getQueueSize()>0) && connect().equals(Status.OK)) {
-						while (!stop && ((file = getNextFile()) != null)) {
-							long startTime = System.nanoTime();
-							Status result = export(file);
-							lastElapsedTime = System.nanoTime() - startTime;
-							if (result.equals(Status.FAIL)) {
-								//Something is wrong with the file.
-								//Log a warning and quarantine the file.
-								logger.warn(name+": Unable to export "+file);
-								if (quarantine != null) quarantine.insert(file);
-								else file.delete();
-							}
-							else if (result.equals(Status.RETRY)) {
-								//Something is wrong, but probably not with the file.
-								//Note that the file has been removed from the queue,
-								//so it is necessary to requeue it. This has the
-								//effect of moving it to the end of the queue.
-								getQueueManager().enqueue(file);
-								//Note that enqueuing a file does not delete it
-								//from the source location, so we must delete it now.
-								file.delete();
-								logger.debug("Status.RETRY received: successCount = "+successCount+"; retryCount = "+retryCount);
-								successCount = 0;
-								//Only break if we have had a string of failures
-								//in a row; otherwise, move on to the next file.
-								if (retryCount++ > 5) break;
+						if (batchSize == 1) {
+							while (!stop && ((file = getNextFile()) != null)) {
+								Status result = exportFile(file, exportTimes);
+								if (handleResult(file, result)) { retry = true; break; }
 							}
-							else {
-								if (throttle > 0) {
-									try { Thread.sleep(throttle); }
-									catch (Exception ignore) { }
+						}
+						else {
+							while (!stop && ((files = getNextFiles(batchSize)).size() > 0)) {
+								Status[] results = null;
+								Status batchStatus = Status.FAIL;
+								long elapsedTime = 0;
+								long delay = (rateController != null) ? rateController.acquire() : 0;
+								try {
+									if (delay > 0) sleep(delay);
+									long startTime = System.nanoTime();
+									results = export(files);
+									elapsedTime = System.nanoTime() - startTime;
+									batchStatus = getBatchStatus(results, files.size());
+								}
+								finally {
+									//Release the reservation even if the export throws.
+									if (rateController != null) rateController.release(elapsedTime, batchStatus);
+								}
+								lastElapsedTime = elapsedTime;
+								if (exportTimes != null) exportTimes.record(lastElapsedTime);
+								//Handle every file in the batch, even if the
+								//retry limit is reached partway through.
+								for (int i=0; i<files.size(); i++) {
+									Status result = null;
+									if ((results != null) && (i < results.length)) result = results[i];
+									if (result == null) result = Status.RETRY;
+									retry |= handleResult(files.get(i), result);
 								}
-								release(file);
-								successCount++;
-								retryCount = 0;
+								if (retry) break;
 							}
 						}
 						disconnect();
 					}
-					if (!stop) sleep(interval);
-					//Recount the queue in case it has been corrupted by
-					//someone copying files into the queue directories by hand.
-					//To keep from doing this when it doesn't really matter and
-					//it might take a long time, only do it when the remaining
-					//queue is small.
-					if (!stop && (getQueueSize() < 20)) recount();
+					//Wait for a file to be enqueued, or for the interval to expire.
+					//After a string of retries, wait the full interval so a failing
+					//destination is not hammered by the files we just requeued.
+					if (!stop) {
+						if (retry) sleep(interval);
+						else signal.tryAcquire(interval, TimeUnit.MILLISECONDS);
+					}
 				}
 				catch (Exception e) {
 					logger.warn(name+" Exporter Thread: Exception received",e);
@@ -206,6 +319,86 @@ public abstract class AbstractExportService extends AbstractQueuedExportService
 			}
 			logger.info(name+" Thread: Interrupt received; exporter thread stopped");
 		}
+
+		//Export one file. If the stage is adaptive, wait for the RateController
+		//to allow the export, and retry the file in place after a backoff if
+		//the destination asks for a retry.
+		private Status exportFile(File file, LatencyHistogram exportTimes) throws InterruptedException {
+			int attempts = 0;
+			while (true) {
+				Status result = Status.FAIL;
+				long elapsedTime = 0;
+				long delay = (rateController != null) ? rateController.acquire() : 0;
+				try {
+					if (delay > 0) sleep(delay);
+					long startTime = System.nanoTime();
+					result = export(file);
+					elapsedTime = System.nanoTime() - startTime;
+				}
+				finally {
+					//Release the reservation even if the export throws.
+					if (rateController != null) rateController.release(elapsedTime, result);
+				}
+				lastElapsedTime = elapsedTime;
+				if (exportTimes != null) exportTimes.record(lastElapsedTime);
+				if (rateController == null) return result;
+				if (!result.equals(Status.RETRY) || stop || (++attempts >= maxAttempts)) return result;
+				sleep(rateController.getBackoff(attempts));
+			}
+		}
+
+		//Get the status of a batch for the RateController: RETRY if
+		//any file must be retried, otherwise OK.
+		private Status getBatchStatus(Status[] results, int n) {
+			for (int i=0; i<n; i++) {
+				if ((results == null) || (i >= results.length) || (results[i] == null)
+						|| results[i].equals(Status.RETRY)) return Status.RETRY;
+			}
+			return Status.OK;
+		}
+
+		//Quarantine, requeue, or release a file according to the result of its export.
+		//Return true if there has been a string of retries, indicating that
+		//the exporter should stop for a while.
+		private boolean handleResult(File file, Status result) {
+			if (result.equals(Status.FAIL)) {
+				//Something is wrong with the file.
+				//Log a warning and quarantine the file.
+				logger.warn(name+": Unable to export "+file);
+				if (quarantine != null) quarantine.insert(file);
+				else file.delete();
+			}
+			else if (result.equals(Status.RETRY)) {
+				//Something is wrong, but probably not with the file.
+				//Note that the file has been removed from the queue,
+				//so it is necessary to requeue it. This has the
+				//effect of moving it to the end of the queue.
+				//The file is moved back into the queue if possible.
+				getQueueManager().enqueue(file, false);
+				file.delete();
+				logger.debug("Status.RETRY received: successCount = "+successCount+"; retryCount = "+retryCount);
+				successCount = 0;
+				//Only stop if we have had a string of failures
+				//in a row; otherwise, move on to the next file.
+				//An adaptive Exporter has already retried the file
+				//in place, so it stops right away.
+				if ((retryCount++ > 5) || (rateController != null)) return true;
+			}
+			else {
+				if ((throttle > 0) && (rateController == null)) {
+					//The Exporters share the throttle, so the minimum time
+					//between transmissions is the same for any poolSize.
+					synchronized (throttleLock) {
+						try { Thread.sleep(throttle); }
+						catch (Exception ignore) { }
+					}
+				}
+				release(file);
+				successCount++;
+				retryCount = 0;
+			}
+			return false;
+		}
 	}
 	
 	/**
@@ -283,6 +476,7 @@ public abstract class AbstractExportService extends AbstractQueuedExportService
 				+ String.format("%d msec", et)
 				+ "</td></tr>");
 		}
+		if (rateController != null) sb.append(rateController.getStatusHTML());
 		return super.getStatusHTML(sb.toString());
 	}
 
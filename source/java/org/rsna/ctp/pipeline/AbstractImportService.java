@@ -34,6 +34,7 @@ public abstract class AbstractImportService extends AbstractPipelineStage implem
 	QueueManager queueManager = null;
 	int count = 0;
 	public boolean logDuplicates = false;
+	volatile int lastTag = -1;
 
 /**/LinkedList<String> recentUIDs = new LinkedList<String>();
 /**/LinkedList<Long> recentTimes = new LinkedList<Long>();
@@ -53,15 +54,26 @@ public abstract class AbstractImportService extends AbstractPipelineStage implem
 			temp = new File(root, "temp");
 			temp.mkdirs();
 			File queue = new File(root, "queue");
-			queueManager = new QueueManager(queue, 0, 0); //use default settings
+			queueManager = QueueManager.getInstance(queue, element);
 			active = new File(root, "active");
 			active.mkdirs();
 			activePath = active.getAbsolutePath();
 			int n = queueManager.enqueueDir(active); //requeue any files that are left from an ungraceful shutdown.
 			if (n > 0) logger.info(name+": "+n+" files requeued from "+active);
+			queueManager.startReconciler(
+				StringUtil.getLong(element.getAttribute("reconcileInterval").trim(),
+								   QueueManager.defaultReconcileInterval));
 		}
 	}
 
+	/**
+	 * Stop the pipeline stage.
+	 */
+	public synchronized void shutdown() {
+		if (queueManager != null) queueManager.close();
+		super.shutdown();
+	}
+
 	/**
 	 * Get the temp directory
 	 * @return the temp directory to use while receiving objects.
@@ -102,18 +114,37 @@ public abstract class AbstractImportService extends AbstractPipelineStage implem
 		if (file.length() > 0) {
 			count++; //Count the file
 			//The received file is in the temp directory.
-			File qFile = getQueueManager().enqueue(file);
+			//It is moved into the queue if possible.
+			File qFile = getQueueManager().enqueue(file, false);
 			//Now log the file. Here, we're logging the enqueued
 			//file instead of the version in the temp directory.
 			lastFileIn = qFile;
 			lastTimeIn = System.currentTimeMillis();
 		}
-		//Enqueuing the file does not delete it
-		//from the source directory, so we have to
-		//delete it here.
+		//If the file could not be enqueued, it is still
+		//in the source directory, so we have to delete it here.
 		file.delete();
 	}
 
+	/**
+	 * Set the highest tag to parse in the DicomObjects supplied by this
+	 * ImportService. This method is called by the Pipeline when it is
+	 * configured with lazyParse="yes".
+	 * @param lastTag the highest tag to parse, or -1 to parse everything
+	 * up to the pixel data.
+	 */
+	public void setLastTag(int lastTag) {
+		this.lastTag = lastTag;
+	}
+
+	/**
+	 * Get the highest tag to parse in the DicomObjects supplied by this ImportService.
+	 * @return the highest tag to parse, or -1 if everything up to the pixel data is parsed.
+	 */
+	public int getLastTag() {
+		return lastTag;
+	}
+
 	/**
 	 * Get the next object available for processing.
 	 * @return the next object available, or null if no object is available.
@@ -125,7 +156,7 @@ public abstract class AbstractImportService extends AbstractPipelineStage implem
 				if (file.length() > 0) {
 					lastFileOut = file;
 					lastTimeOut = System.currentTimeMillis();
-					FileObject fileObject = FileObject.getInstance(lastFileOut);
+					FileObject fileObject = FileObject.getInstance(lastFileOut, lastTag);
 					fileObject.setStandardExtension();
 
 					if (logDuplicates) {
@@ -209,7 +240,14 @@ public abstract class AbstractImportService extends AbstractPipelineStage implem
 			+ "<tr><td width=\"20%\">Queue size:</td>"
 			+ "<td>"
 			+ ((queueManager!=null) ? queueManager.size() : "???")
-			+ "</td></tr>";
+			+ "</td></tr>"
+			+ "<tr><td width=\"20%\">Files enqueued:</td>"
+			+ "<td>"
+			+ ((queueManager!=null) ? queueManager.getEnqueueStatistics() : "???")
+			+ "</td></tr>"
+			+ ((queueManager instanceof PriorityQueueManager)
+					? ((PriorityQueueManager)queueManager).getLaneStatusHTML() : "")
+			+ Backpressure.getInstance().getStatusHTML();
 		return super.getStatusHTML(childUniqueStatus + stageUniqueStatus);
 	}
 
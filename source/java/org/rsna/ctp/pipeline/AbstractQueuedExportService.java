@@ -8,6 +8,8 @@
 package org.rsna.ctp.pipeline;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.objects.DicomObject;
@@ -59,15 +61,27 @@ public abstract class AbstractQueuedExportService
 			temp.mkdirs();
 			
 			File queue = new File(root, "queue");
-			queueManager = new QueueManager(queue, 0, 0); //use default settings
+			queueManager = QueueManager.getInstance(queue, element);
 			active = new File(root, "active");
 			activePath = active.getAbsolutePath();
 			queueManager.enqueueDir(active); //requeue any files that are left from an ungraceful shutdown.
+			queueManager.startReconciler(
+				StringUtil.getLong(element.getAttribute("reconcileInterval").trim(),
+								   QueueManager.defaultReconcileInterval));
 
 			cacheManager = queueManager;
 		}
 	}
 	
+	/**
+	 * Stop the pipeline stage, closing the export queue and the cache.
+	 */
+	public synchronized void shutdown() {
+		if (queueManager != null) queueManager.close();
+		if ((cacheManager != null) && (cacheManager != queueManager)) cacheManager.close();
+		super.shutdown();
+	}
+
 	/**
 	 * Get the script files.
 	 * @return the script files used by this stage.
@@ -147,7 +161,12 @@ public abstract class AbstractQueuedExportService
 	//if caching is not enabled, it puts the object directly in the export queue
 	//because in that case cacheManager and queueManger point to the same queue.
 	private void enqueue(FileObject fileObject) {
-		if (cacheManager.enqueue(lastFileIn) == null) {
+		File qFile;
+		if (cacheManager instanceof PriorityQueueManager)
+			qFile = ((PriorityQueueManager)cacheManager).enqueue(fileObject, true);
+		else
+			qFile = cacheManager.enqueue(fileObject.getFile());
+		if (qFile == null) {
 			if (quarantine != null) quarantine.insertCopy(fileObject);
 		}
 	}
@@ -165,7 +184,7 @@ public abstract class AbstractQueuedExportService
 	 * Force a recount of the export queue.
 	 * @return the size of the export queue, or 0 if no QueueManager exists.
 	 */
-	protected synchronized int recount() {
+	protected int recount() {
 		if (queueManager != null) return queueManager.recount();
 		return 0;
 	}
@@ -188,6 +207,26 @@ public abstract class AbstractQueuedExportService
 		return null;
 	}
 
+	/**
+	 * Get up to a maximum number of files from the queue for exporting. This
+	 * method moves the files to the active directory. As with getNextFile,
+	 * any file whose export fails in such a way that a retry is appropriate
+	 * must be requeued.
+	 * @param max the maximum number of files to get.
+	 * @return the list of files, which is empty if the queue is empty.
+	 */
+	protected synchronized List<File> getNextFiles(int max) {
+		if (queueManager != null) {
+			List<File> files = queueManager.dequeue(active, max);
+			if (files.size() > 0) {
+				lastFileDequeued = files.get(files.size() - 1);
+				lastTimeDequeued = System.currentTimeMillis();
+			}
+			return files;
+		}
+		return new ArrayList<File>();
+	}
+
 	/**
 	 * Release a file from the active directory. Note that the
 	 * file may have moved, so it is possible that the file will
@@ -217,6 +256,11 @@ public abstract class AbstractQueuedExportService
 		StringBuffer sb = new StringBuffer();
 		sb.append("<tr><td width=\"20%\">Export queue size:</td>");
 		sb.append("<td>" + ((queueManager!=null) ? queueManager.size() : "???") + "</td></tr>");
+		sb.append("<tr><td width=\"20%\">Files enqueued:</td>");
+		sb.append("<td>" + ((cacheManager!=null) ? cacheManager.getEnqueueStatistics() : "???") + "</td></tr>");
+		if (queueManager instanceof PriorityQueueManager) {
+			sb.append(((PriorityQueueManager)queueManager).getLaneStatusHTML());
+		}
 		sb.append("<tr><td width=\"20%\">Last file dequeued:</td>");
 		if (lastTimeDequeued != 0) {
 			sb.append("<td>"+lastFileDequeued+"</td></tr>");
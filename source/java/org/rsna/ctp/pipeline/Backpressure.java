@@ -0,0 +1,282 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.pipeline;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.Configuration;
+import org.rsna.util.StringUtil;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A singleton class which monitors the load on the system and tells the
+ * ImportServices when to stop accepting objects. The monitor is configured
+ * by a Backpressure child element of the Server element:
+ * <pre>
+ * &lt;Backpressure
+ *     maxQueueSize="10000" resumeQueueSize="8000"
+ *     minFreeDiskMB="1000" resumeFreeDiskMB="2000"
+ *     maxHeapPercent="90" resumeHeapPercent="75"
+ *     retryAfter="30" interval="1000"/&gt;
+ * </pre>
+ * Each pair of attributes is a high and a low watermark. Backpressure is
+ * engaged when any measurement passes its high watermark: the total number
+ * of objects in the import queues, the free space on the file systems of the
+ * ImportService roots, or the percentage of the maximum heap in use after the
+ * most recent garbage collection. The heap is measured after collection so
+ * that garbage which has not yet been collected does not engage backpressure.
+ * Backpressure is released when all the measurements are back within their
+ * low watermarks.
+ * A watermark of zero disables the corresponding measurement. If the element
+ * is missing, backpressure is never engaged.
+ */
+public class Backpressure {
+
+	static final Logger logger = Logger.getLogger(Backpressure.class);
+
+	static final long defaultInterval = 1000;
+	static final int defaultRetryAfter = 30;
+	static final long megabyte = 1024 * 1024;
+
+	static Backpressure backpressure = null;
+
+	final int maxQueueSize;
+	final int resumeQueueSize;
+	final long minFreeDisk;
+	final long resumeFreeDisk;
+	final int maxHeapPercent;
+	final int resumeHeapPercent;
+	final int retryAfter;
+	final long interval;
+
+	volatile boolean engaged = false;
+	volatile String reason = "";
+	volatile int queueSize = 0;
+	volatile long freeDisk = 0;
+	volatile int heapPercent = 0;
+	List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+	Monitor monitor = null;
+
+	//The protected constructor.
+	protected Backpressure(Element element) {
+		if (element != null) {
+			maxQueueSize = Math.max(StringUtil.getInt(element.getAttribute("maxQueueSize").trim(), 0), 0);
+			resumeQueueSize = getLow(element.getAttribute("resumeQueueSize"), maxQueueSize);
+			minFreeDisk = Math.max(StringUtil.getLong(element.getAttribute("minFreeDiskMB").trim(), 0), 0) * megabyte;
+			long resume = StringUtil.getLong(element.getAttribute("resumeFreeDiskMB").trim(), 0) * megabyte;
+			resumeFreeDisk = Math.max(resume, minFreeDisk);
+			maxHeapPercent = Math.min(Math.max(StringUtil.getInt(element.getAttribute("maxHeapPercent").trim(), 0), 0), 100);
+			resumeHeapPercent = getLow(element.getAttribute("resumeHeapPercent"), maxHeapPercent);
+			retryAfter = Math.max(StringUtil.getInt(element.getAttribute("retryAfter").trim(), defaultRetryAfter), 1);
+			interval = Math.max(StringUtil.getLong(element.getAttribute("interval").trim(), defaultInterval), 100);
+		}
+		else {
+			maxQueueSize = 0;
+			resumeQueueSize = 0;
+			minFreeDisk = 0;
+			resumeFreeDisk = 0;
+			maxHeapPercent = 0;
+			resumeHeapPercent = 0;
+			retryAfter = defaultRetryAfter;
+			interval = defaultInterval;
+		}
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) heapPools.add(pool);
+		}
+	}
+
+	//Get a low watermark, defaulting to the high watermark and never exceeding it.
+	private static int getLow(String attribute, int high) {
+		int low = StringUtil.getInt(attribute.trim(), high);
+		return Math.min(Math.max(low, 0), high);
+	}
+
+	/**
+	 * Get the singleton instance of the Backpressure monitor, configuring it
+	 * from the Backpressure child of the Server element.
+	 * @param serverElement the Server element of the configuration file.
+	 * @return the Backpressure monitor.
+	 */
+	public static synchronized Backpressure getInstance(Element serverElement) {
+		Element element = null;
+		if (serverElement != null) {
+			Node child = serverElement.getFirstChild();
+			while (child != null) {
+				if ((child instanceof Element) && child.getNodeName().equals("Backpressure")) {
+					element = (Element)child;
+					break;
+				}
+				child = child.getNextSibling();
+			}
+		}
+		backpressure = new Backpressure(element);
+		return backpressure;
+	}
+
+	/**
+	 * Get the singleton instance of the Backpressure monitor.
+	 * If the monitor has not been configured, an instance which
+	 * never engages backpressure is returned.
+	 * @return the Backpressure monitor.
+	 */
+	public static synchronized Backpressure getInstance() {
+		if (backpressure == null) backpressure = new Backpressure(null);
+		return backpressure;
+	}
+
+	/**
+	 * Determine whether any watermark is configured.
+	 * @return true if at least one measurement is enabled.
+	 */
+	public boolean isEnabled() {
+		return (maxQueueSize > 0) || (minFreeDisk > 0) || (maxHeapPercent > 0);
+	}
+
+	/**
+	 * Start the thread which measures the load on the system.
+	 * This method does nothing if no watermark is configured.
+	 */
+	public synchronized void start() {
+		if (isEnabled() && (monitor == null)) {
+			monitor = new Monitor();
+			monitor.start();
+		}
+	}
+
+	/**
+	 * Stop the thread which measures the load on the system
+	 * and release backpressure.
+	 */
+	public synchronized void stop() {
+		if (monitor != null) {
+			monitor.interrupt();
+			monitor = null;
+		}
+		engaged = false;
+	}
+
+	/**
+	 * Determine whether ImportServices should refuse objects. This method
+	 * returns the result of the most recent measurement, so it is cheap
+	 * enough to be called for every received object.
+	 * @return true if backpressure is engaged; false otherwise.
+	 */
+	public boolean isEngaged() {
+		return engaged;
+	}
+
+	/**
+	 * Get the time in seconds that a sender should wait before
+	 * retrying when backpressure is engaged.
+	 * @return the value for an HTTP Retry-After header.
+	 */
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+
+	/**
+	 * Get HTML table rows showing the state of the monitor.
+	 * @return HTML text displaying the state of the monitor,
+	 * or an empty string if no watermark is configured.
+	 */
+	public String getStatusHTML() {
+		if (!isEnabled()) return "";
+		StringBuffer sb = new StringBuffer();
+		sb.append("<tr><td width=\"20%\">Backpressure:</td><td>");
+		sb.append(engaged ? "engaged ("+reason+")" : "released");
+		sb.append("; import queues: " + queueSize);
+		sb.append("; free disk: " + (freeDisk / megabyte) + " MB");
+		sb.append("; heap: " + heapPercent + "%");
+		sb.append("</td></tr>");
+		return sb.toString();
+	}
+
+	//Measure the load and update the state.
+	void measure() {
+		queueSize = 0;
+		long disk = Long.MAX_VALUE;
+		Configuration config = Configuration.getInstance();
+		List<Pipeline> pipelines = config.getPipelines();
+		if (pipelines != null) {
+			for (Pipeline pipe : pipelines) {
+				for (ImportService service : pipe.getImportServices()) {
+					if (service instanceof AbstractImportService) {
+						AbstractImportService ais = (AbstractImportService)service;
+						queueSize += ais.getQueueSize();
+						File root = ais.getRoot();
+						if ((minFreeDisk > 0) && (root != null)) {
+							disk = Math.min(disk, root.getUsableSpace());
+						}
+					}
+				}
+			}
+		}
+		freeDisk = (disk == Long.MAX_VALUE) ? 0 : disk;
+		heapPercent = getHeapPercent();
+
+		if (!engaged) {
+			String s = "";
+			if ((maxQueueSize > 0) && (queueSize >= maxQueueSize)) s = "queue size";
+			else if ((minFreeDisk > 0) && (disk <= minFreeDisk)) s = "free disk";
+			else if ((maxHeapPercent > 0) && (heapPercent >= maxHeapPercent)) s = "heap";
+			if (!s.equals("")) {
+				reason = s;
+				engaged = true;
+				logger.warn("Backpressure engaged: "+reason+" high watermark reached"
+								+ " (queue="+queueSize+", heap="+heapPercent+"%)");
+			}
+		}
+		else {
+			boolean clear = ((maxQueueSize == 0) || (queueSize <= resumeQueueSize))
+								&& ((minFreeDisk == 0) || (disk >= resumeFreeDisk))
+									&& ((maxHeapPercent == 0) || (heapPercent <= resumeHeapPercent));
+			if (clear) {
+				engaged = false;
+				logger.info("Backpressure released"
+								+ " (queue="+queueSize+", heap="+heapPercent+"%)");
+			}
+		}
+	}
+
+	//Get the percentage of the maximum heap which was in use after the
+	//most recent collection of each heap pool. Pools which do not report
+	//their usage after collection are not counted.
+	private int getHeapPercent() {
+		long used = 0;
+		for (MemoryPoolMXBean pool : heapPools) {
+			MemoryUsage usage = pool.getCollectionUsage();
+			if (usage != null) used += usage.getUsed();
+		}
+		return (int)((used * 100) / Runtime.getRuntime().maxMemory());
+	}
+
+	//The thread which measures the load periodically.
+	class Monitor extends Thread {
+		public Monitor() {
+			super("Backpressure");
+			setDaemon(true);
+		}
+		public void run() {
+			while (!isInterrupted()) {
+				try {
+					measure();
+					sleep(interval);
+				}
+				catch (InterruptedException quit) { break; }
+				catch (Exception ex) { logger.warn("Unable to measure the load", ex); }
+			}
+		}
+	}
+}
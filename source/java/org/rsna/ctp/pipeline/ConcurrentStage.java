@@ -0,0 +1,19 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.pipeline;
+
+/**
+ * A marker interface identifying a PipelineStage whose process,
+ * store, or export method can safely be called by several pipeline
+ * workers at the same time. When a Pipeline is configured with
+ * more than one worker, calls to stages that do not implement
+ * this interface are serialized.
+ */
+public interface ConcurrentStage {
+
+}
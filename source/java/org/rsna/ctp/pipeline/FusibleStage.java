@@ -0,0 +1,45 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.pipeline;
+
+import java.util.List;
+import org.rsna.ctp.objects.FileObject;
+
+/**
+ * An interface implemented by Processor stages which can do their work
+ * together with the stages that follow them, so that an object is read
+ * and written once for a run of consecutive stages instead of once per
+ * stage. When a Pipeline is configured with fuse="yes", it finds the runs
+ * of consecutive FusibleStages and calls the processFused method of the
+ * first stage of each run in place of the process methods of the stages
+ * in the run. Stages whose calls are serialized by the Pipeline are not fused.
+ */
+public interface FusibleStage extends PipelineStage, Processor {
+
+	/**
+	 * Determine whether this stage can be added to the end of a run of stages.
+	 * @param run the stages already in the run, in pipeline order. The list
+	 * is empty when the Pipeline is deciding whether a run can start with this stage.
+	 * @return true if this stage can be added to the run; false otherwise.
+	 */
+	public boolean canFuseWith(List<FusibleStage> run);
+
+	/**
+	 * Process an object through a run of stages in a single pass.
+	 * This method is called on the first stage of the run.
+	 * If one of the stages quarantines the object, the stages
+	 * which follow it in the run must not process the object.
+	 * @param fileObject the object to process.
+	 * @param run the stages of the run, in pipeline order, starting with this stage.
+	 * @param quarantined an array with one element for each stage of the run,
+	 * in which the element for the stage that quarantined the object is set to true.
+	 * @return the processed object, or null if the object was quarantined.
+	 */
+	public FileObject processFused(FileObject fileObject, FusibleStage[] run, boolean[] quarantined);
+
+}
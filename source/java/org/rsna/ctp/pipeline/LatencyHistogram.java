@@ -0,0 +1,139 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of nanosecond latencies. Values are counted in
+ * logarithmic buckets, with eight sub-buckets for each power of two, so
+ * percentiles are reported with a relative error of less than 12.5 percent.
+ * Recording a value does not allocate memory or take a lock.
+ */
+public class LatencyHistogram {
+
+	static final int subBits = 3;
+	static final int subBuckets = 1 << subBits;
+	static final int nBuckets = (64 - subBits + 1) * subBuckets;
+
+	private final AtomicLongArray counts = new AtomicLongArray(nBuckets);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Create an empty LatencyHistogram.
+	 */
+	public LatencyHistogram() { }
+
+	/**
+	 * Record a latency.
+	 * @param nanos the latency in nanoseconds. Negative values are counted as zero.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		counts.incrementAndGet(getBucket(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long m;
+		while (nanos > (m = max.get())) {
+			if (max.compareAndSet(m, nanos)) break;
+		}
+	}
+
+	/**
+	 * Get the number of values recorded.
+	 * @return the number of values.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Get the largest value recorded.
+	 * @return the maximum latency in nanoseconds, or zero if
+	 * no values have been recorded.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Get the mean of the values recorded.
+	 * @return the mean latency in nanoseconds, or zero if
+	 * no values have been recorded.
+	 */
+	public long getMean() {
+		long n = count.get();
+		return (n > 0) ? total.get() / n : 0;
+	}
+
+	/**
+	 * Get the sum of the values recorded.
+	 * @return the total latency in nanoseconds.
+	 */
+	public long getTotal() {
+		return total.get();
+	}
+
+	/**
+	 * Get an estimate of a percentile of the values recorded.
+	 * @param percentile the percentile (for example, 99.0).
+	 * @return the upper bound of the bucket containing the percentile,
+	 * limited to the maximum value recorded, or zero if no values
+	 * have been recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = new long[nBuckets];
+		long n = 0;
+		for (int i=0; i<nBuckets; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0) return 0;
+		long rank = (long)Math.ceil(n * Math.min(Math.max(percentile, 0.0), 100.0) / 100.0);
+		if (rank < 1) rank = 1;
+		long seen = 0;
+		for (int i=0; i<nBuckets; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) return Math.min(getUpperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Clear all the values.
+	 */
+	public void reset() {
+		for (int i=0; i<nBuckets; i++) counts.set(i, 0);
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	//Get the bucket for a value. Values less than subBuckets have their
+	//own buckets; larger values are bucketed by their highest bit and the
+	//subBits bits below it.
+	static int getBucket(long value) {
+		if (value < subBuckets) return (int)value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - subBits;
+		int sub = (int)(value >>> shift) & (subBuckets - 1);
+		return ((shift + 1) << subBits) + sub;
+	}
+
+	//Get the largest value which falls in a bucket.
+	static long getUpperBound(int bucket) {
+		if (bucket < subBuckets) return bucket;
+		int shift = (bucket >>> subBits) - 1;
+		long sub = (bucket & (subBuckets - 1)) | subBuckets;
+		long upper = ((sub + 1) << shift) - 1;
+		return (upper < 0) ? Long.MAX_VALUE : upper;
+	}
+
+}
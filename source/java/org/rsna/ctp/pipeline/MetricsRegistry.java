@@ -0,0 +1,109 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A singleton registry of the StageMetrics of all the pipeline stages.
+ * The Pipeline registers each of its stages when it is constructed and
+ * records every call to a stage's process, store, or export method.
+ */
+public class MetricsRegistry {
+
+	/** The name of the StageMetrics histogram of export round-trip times. */
+	public static final String exportHistogram = "export";
+
+	static MetricsRegistry registry = null;
+
+	private final List<StageMetrics> metrics = new ArrayList<StageMetrics>();
+
+	//The protected constructor.
+	protected MetricsRegistry() { }
+
+	/**
+	 * Get the singleton instance of the MetricsRegistry.
+	 * @return the MetricsRegistry.
+	 */
+	public static synchronized MetricsRegistry getInstance() {
+		if (registry == null) registry = new MetricsRegistry();
+		return registry;
+	}
+
+	/**
+	 * Create and register the StageMetrics for a stage.
+	 * @param pipelineName the name of the pipeline containing the stage.
+	 * @param stage the stage.
+	 * @return the StageMetrics for the stage.
+	 */
+	public synchronized StageMetrics register(String pipelineName, PipelineStage stage) {
+		StageMetrics sm = new StageMetrics(pipelineName, stage);
+		metrics.add(sm);
+		return sm;
+	}
+
+	/**
+	 * Get the StageMetrics for all the registered stages,
+	 * in the order in which they were registered.
+	 * @return a copy of the list of StageMetrics.
+	 */
+	public synchronized List<StageMetrics> getStageMetrics() {
+		return new ArrayList<StageMetrics>(metrics);
+	}
+
+	/**
+	 * Get the StageMetrics for a stage.
+	 * @param stage the stage.
+	 * @return the StageMetrics for the stage, or null if the stage is not registered.
+	 */
+	public synchronized StageMetrics getStageMetrics(PipelineStage stage) {
+		for (StageMetrics sm : metrics) {
+			if (sm.getStage() == stage) return sm;
+		}
+		return null;
+	}
+
+	/**
+	 * Get the histogram of the export round-trip times of a stage.
+	 * @param stage the stage.
+	 * @return the histogram, or null if the stage is not registered.
+	 */
+	public static LatencyHistogram getExportTimes(PipelineStage stage) {
+		StageMetrics sm = getInstance().getStageMetrics(stage);
+		return (sm != null) ? sm.getHistogram(exportHistogram) : null;
+	}
+
+	/**
+	 * Find the registered stage with the largest 99th percentile latency.
+	 * @return the StageMetrics of the slowest stage, or null if no
+	 * stage has processed an object.
+	 */
+	public synchronized StageMetrics getSlowestStage() {
+		StageMetrics slowest = null;
+		long slowestP99 = -1;
+		for (StageMetrics sm : metrics) {
+			if (sm.getObjectCount() > 0) {
+				long p99 = sm.getLatency().getPercentile(99.0);
+				if (p99 > slowestP99) {
+					slowest = sm;
+					slowestP99 = p99;
+				}
+			}
+		}
+		return slowest;
+	}
+
+	/**
+	 * Clear the measurements of all the registered stages.
+	 */
+	public synchronized void reset() {
+		for (StageMetrics sm : metrics) sm.reset();
+	}
+
+}
@@ -0,0 +1,29 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.pipeline;
+
+/**
+ * An interface implemented by stages which read only some of the elements
+ * of the DicomObjects they receive, such as filters and routers. When a
+ * Pipeline is configured with lazyParse="yes", its ImportServices parse
+ * each DicomObject only up to the highest tag declared by the stages of the
+ * pipeline which implement this interface. Elements beyond that tag are
+ * parsed on demand, so a stage which reads more than it declares still works,
+ * at the cost of a second parse.
+ */
+public interface PartialHeaderStage {
+
+	/**
+	 * Get the highest tag of the top-level dataset that the stage reads
+	 * from the DicomObjects it receives.
+	 * @return the highest tag, 0 if the stage reads no elements, or -1
+	 * if the stage may read any element.
+	 */
+	public int getLastTag();
+
+}
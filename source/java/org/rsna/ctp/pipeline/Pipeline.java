@@ -12,10 +12,17 @@ import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.log4j.Logger;
+import org.dcm4che.dict.Tags;
 import org.rsna.ctp.Configuration;
+import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.server.User;
+import org.rsna.util.StringUtil;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
@@ -26,6 +33,10 @@ public class Pipeline extends Thread {
 
 	static final Logger logger = Logger.getLogger(Pipeline.class);
 
+	static final int maxWorkers = 64;
+	static final int laneCapacity = 8;
+	static final long heldWait = 10;
+
 	String name = "";
 	List<ImportService> importServices = null;
 	List<PipelineStage> stages = null;
@@ -34,6 +45,19 @@ public class Pipeline extends Thread {
 	protected volatile boolean paused = false;
 	int pipelineIndex = -1;
 	String admin = "";
+	int workers = 0;
+	String partitionKey = "StudyInstanceUID";
+	Worker[] workerPool = null;
+	Object[] stageLocks = null;
+	boolean fuse = false;
+	boolean lazyParse = false;
+	volatile FusibleStage[][] fusedRuns = null;
+	int nextLane = 0;
+	int heldCount = 0;
+	volatile boolean dispatching = true;
+	final Semaphore signal = new Semaphore(0);
+	StageMetrics[] stageMetrics = null;
+	final AtomicLong objectCount = new AtomicLong();
 
 	/**
 	 * A Thread representing a processing pipeline for FileObjects
@@ -50,6 +74,12 @@ public class Pipeline extends Thread {
 		setName(name);
 		admin = pipeline.getAttribute("admin").trim();
 		enabled = !pipeline.getAttribute("enabled").equals("no");
+		workers = StringUtil.getInt(pipeline.getAttribute("workers").trim(), 0);
+		if (workers > maxWorkers) workers = maxWorkers;
+		String key = pipeline.getAttribute("partitionKey").trim();
+		if (!key.equals("")) partitionKey = key;
+		fuse = pipeline.getAttribute("fuse").trim().equals("yes");
+		lazyParse = pipeline.getAttribute("lazyParse").trim().equals("yes");
 		stages = new ArrayList<PipelineStage>();
 		importServices = new ArrayList<ImportService>();
 		Node child = pipeline.getFirstChild();
@@ -77,6 +107,12 @@ public class Pipeline extends Thread {
 			}
 			child = child.getNextSibling();
 		}
+		//Register the stages to record their metrics.
+		MetricsRegistry registry = MetricsRegistry.getInstance();
+		stageMetrics = new StageMetrics[stages.size()];
+		for (int i=0; i<stageMetrics.length; i++) {
+			stageMetrics[i] = registry.register(name, stages.get(i));
+		}
 	}
 
 	/**
@@ -154,6 +190,7 @@ public class Pipeline extends Thread {
 	 */
 	public synchronized void shutdown() {
 		stop = true;
+		signal.release();
 	}
 
 	/**
@@ -162,6 +199,11 @@ public class Pipeline extends Thread {
 	 */
 	public synchronized boolean isDown() {
 		if (!this.getState().equals(Thread.State.TERMINATED)) return false;
+		if (workerPool != null) {
+			for (Worker worker : workerPool) {
+				if (!worker.getState().equals(Thread.State.TERMINATED)) return false;
+			}
+		}
 		for (PipelineStage stage: stages) {
 			if (!stage.isDown()) {
 				logger.info(getPipelineName()+": "+stage.getName()+" is not down");
@@ -171,6 +213,15 @@ public class Pipeline extends Thread {
 		return true;
 	}
 
+	/**
+	 * Get the number of worker threads processing objects in this pipeline.
+	 * @return the number of worker threads, or zero if objects are processed
+	 * by the pipeline thread itself.
+	 */
+	public synchronized int getWorkerCount() {
+		return (workerPool != null) ? workerPool.length : 0;
+	}
+
 	/**
 	 * Run the thread.
 	 */
@@ -189,70 +240,364 @@ public class Pipeline extends Thread {
 				last = stage;
 			}
 
+			//Tell the ImportServices how much of each object's header to parse.
+			if (lazyParse) setLastTag();
+
 			//Start the stages
 			for (PipelineStage stage: stages) stage.start();
 
-			//Process objects, sleeping when there are none available.
+			//Start the workers if the pipeline is configured to use them.
+			if (workers > 1) startWorkers();
+
+			//Find the stages which can be processed together.
+			if (fuse) findFusedRuns();
+
+			//Ask the ImportServices' queues to signal when objects arrive.
+			for (ImportService importService : importServices) {
+				if (importService instanceof AbstractImportService) {
+					QueueManager qm = ((AbstractImportService)importService).getQueueManager();
+					if (qm != null) qm.addSignal(signal);
+				}
+			}
+
+			//Process objects, waiting for a signal when there are none available.
+			//The timeout ensures that objects supplied by ImportServices which
+			//do not signal (and objects supplied while the pipeline was paused)
+			//are still processed.
 			while (!stop && !interrupted()) {
 				try {
+					signal.drainPermits();
 					processObjects();
-					if (!stop) sleep(1000);
+					//If objects are held for full lanes, check again soon.
+					if (!stop) signal.tryAcquire((heldCount > 0) ? heldWait : 1000, TimeUnit.MILLISECONDS);
 				}
 				catch (Exception ex) { stop = true; }
 			}
+
+			//Stop the workers and wait for them to finish the objects they have
+			if (workerPool != null) stopWorkers();
+
 			//Stop all the stages
 			for (PipelineStage stage: stages) stage.shutdown();
 		}
 	}
 
+	//Create the worker pool. Each worker has its own lane, and objects
+	//are assigned to lanes by their partition key, so objects with the
+	//same key are processed in the order in which they were received.
+	//Calls to stages which do not declare themselves to be ConcurrentStages
+	//are serialized with a lock object for each such stage.
+	private void startWorkers() {
+		stageLocks = new Object[stages.size()];
+		for (int i=0; i<stageLocks.length; i++) {
+			if (!(stages.get(i) instanceof ConcurrentStage)) stageLocks[i] = new Object();
+		}
+		workerPool = new Worker[workers];
+		for (int i=0; i<workers; i++) {
+			workerPool[i] = new Worker(i);
+			workerPool[i].start();
+		}
+		logger.info(name+": "+workers+" workers started (partitionKey = "+partitionKey+")");
+	}
+
+	//Find the highest tag declared by the PartialHeaderStages and
+	//tell the ImportServices to parse their objects up to that tag.
+	//Stages which do not declare their needs get the elements beyond
+	//the tag on demand. If no stage declares a tag, the whole header
+	//is parsed. Otherwise, the tag is raised to include the elements
+	//that every DicomObject reads when it is constructed (the SOPClassUID)
+	//and, if there are workers, the partition key, since reading any of
+	//them would parse the rest of the header.
+	private void setLastTag() {
+		long lastTag = -1;
+		for (PipelineStage stage : stages) {
+			if (stage instanceof PartialHeaderStage) {
+				int tag = ((PartialHeaderStage)stage).getLastTag();
+				if (tag == -1) { lastTag = -1; break; }
+				lastTag = Math.max(lastTag, tag & 0xFFFFFFFFL);
+			}
+		}
+		if (lastTag != -1) {
+			lastTag = Math.max(lastTag, Tags.SOPClassUID & 0xFFFFFFFFL);
+			if (workers > 1) {
+				int keyTag = DicomObject.getElementTag(partitionKey);
+				if (keyTag == 0) lastTag = -1;
+				else lastTag = Math.max(lastTag, keyTag & 0xFFFFFFFFL);
+			}
+		}
+		for (ImportService importService : importServices) {
+			if (importService instanceof AbstractImportService) {
+				((AbstractImportService)importService).setLastTag((int)lastTag);
+			}
+		}
+		if (lastTag == -1) logger.info(name+": lazy parse: whole header");
+		else logger.info(name+": lazy parse up to "+String.format("(%04X,%04X)", lastTag >> 16, lastTag & 0xFFFF));
+	}
+
+	//Find the runs of consecutive FusibleStages. Each run is stored at
+	//the index of its first stage. Stages whose calls are serialized
+	//with a lock are not fused.
+	private void findFusedRuns() {
+		fusedRuns = new FusibleStage[stages.size()][];
+		int i = 0;
+		while (i < stages.size()) {
+			List<FusibleStage> run = new ArrayList<FusibleStage>();
+			int k = i;
+			while ((k < stages.size()) && isFusible(k) && ((FusibleStage)stages.get(k)).canFuseWith(run)) {
+				run.add((FusibleStage)stages.get(k));
+				k++;
+			}
+			if (run.size() > 1) {
+				fusedRuns[i] = run.toArray(new FusibleStage[run.size()]);
+				StringBuffer sb = new StringBuffer();
+				for (FusibleStage stage : run) sb.append((sb.length() > 0) ? ", " : "").append(stage.getName());
+				logger.info(name+": fused stages: "+sb.toString());
+				i = k;
+			}
+			else i++;
+		}
+	}
+
+	private boolean isFusible(int index) {
+		return (stages.get(index) instanceof FusibleStage)
+					&& ((stageLocks == null) || (stageLocks[index] == null));
+	}
+
+	//Hand any held objects to the workers, let the workers drain
+	//their lanes, and wait for them to stop.
+	private void stopWorkers() {
+		for (Worker worker : workerPool) {
+			ImportedObject importedObject;
+			while ((importedObject = worker.held.poll()) != null) {
+				try { worker.lane.put(importedObject); }
+				catch (InterruptedException ex) { break; }
+			}
+		}
+		heldCount = 0;
+		dispatching = false;
+		for (Worker worker : workerPool) {
+			try { worker.join(); }
+			catch (Exception ignore) { }
+		}
+	}
+
 	//Process objects until none are left.
-	private void processObjects() {
-		FileObject fileObject;
-		File importedFile;
-		ImportService importService;
+	private void processObjects() throws InterruptedException {
 		ImportedObject importedObject;
+		if (workerPool != null) dispatchHeld();
+		while (!interrupted() && !paused) {
+			if (workerPool != null) {
+				//Move held objects into lanes which have room. If too many
+				//objects are held, wait a little for room instead of taking
+				//more objects from the ImportServices.
+				dispatchHeld();
+				if (heldCount >= laneCapacity * workerPool.length) {
+					waitForRoom();
+					continue;
+				}
+			}
+			if ((importedObject=getNextObject()) == null) break;
+			if (workerPool != null) {
+				//Hand the object to the worker for its lane. If the lane is
+				//full, or earlier objects for the lane are being held, hold
+				//the object, so that one busy lane does not stop the others.
+				importedObject.queuedTime = System.currentTimeMillis();
+				Worker worker = workerPool[getLane(importedObject.object)];
+				if (!worker.held.isEmpty() || !worker.lane.offer(importedObject)) {
+					worker.held.add(importedObject);
+					heldCount++;
+				}
+			}
+			else {
+				processObject(importedObject);
+				//Yield in case anyone else has something on his mind.
+				Thread.yield();
+			}
+		}
+		//Nothing left to do; return.
+	}
 
-		while (!interrupted() && !paused && ((importedObject=getNextObject()) != null)) {
-			//Get the object and where it came from.
-			fileObject = importedObject.object;
-			importService = importedObject.provider;
-			
-			if (logger.isDebugEnabled()) {
-				logger.debug("processing "+fileObject.getType()+" (length = "+fileObject.getFile().length()
-								+") obtained from "+importService.getClass().getName());
+	//Move held objects into their lanes, in order, as long as there is room.
+	private void dispatchHeld() {
+		if (heldCount == 0) return;
+		for (Worker worker : workerPool) {
+			ImportedObject importedObject;
+			while (((importedObject = worker.held.peek()) != null) && worker.lane.offer(importedObject)) {
+				worker.held.poll();
+				heldCount--;
 			}
+		}
+	}
+
+	//Wait a limited time for room in the lane with the most held objects.
+	private void waitForRoom() throws InterruptedException {
+		Worker busiest = workerPool[0];
+		for (Worker worker : workerPool) {
+			if (worker.held.size() > busiest.held.size()) busiest = worker;
+		}
+		ImportedObject importedObject = busiest.held.peek();
+		if ((importedObject != null) && busiest.lane.offer(importedObject, heldWait, TimeUnit.MILLISECONDS)) {
+			busiest.held.poll();
+			heldCount--;
+		}
+	}
+
+	//Get the lane for an object by hashing its partition key. DicomObjects
+	//take the key from the dataset; other objects use their study UID.
+	//Objects with no key are distributed among the lanes in turn.
+	private int getLane(FileObject fileObject) {
+		String key;
+		if (fileObject instanceof DicomObject) {
+			key = ((DicomObject)fileObject).getElementValue(partitionKey);
+		}
+		else key = fileObject.getStudyUID();
+		if ((key == null) || key.equals("")) {
+			nextLane = (nextLane + 1) % workerPool.length;
+			return nextLane;
+		}
+		return (key.hashCode() & 0x7fffffff) % workerPool.length;
+	}
 
-			//Make sure it has a standard extension
-			fileObject.setStandardExtension();
-
-			//Remember the original File so we can release it.
-			importedFile = fileObject.getFile();
-
-			//Sequence through the stages in the
-			//pipeline (skipping any ImportServices).
-			Iterator<PipelineStage> sit = stages.iterator();
-
-			//Note: if a stage returns a null FileObject, it has
-			//quarantined the object and we need to abort further
-			//processing. That's why the condition in the while
-			//statement includes a test for (fileObject != null).
-			while ((fileObject != null) && sit.hasNext()) {
-				PipelineStage stage = sit.next();
-				if (stage instanceof Processor)
-					fileObject = ((Processor)stage).process(fileObject);
-				else if (stage instanceof StorageService)
-					fileObject = ((StorageService)stage).store(fileObject);
-				else if (stage instanceof ExportService)
-					((ExportService)stage).export(fileObject);
-				//Note that ImportServices are skipped;
-				//they are only suppliers.
+	//Process one object through the stages of the pipeline.
+	private void processObject(ImportedObject importedObject) {
+		//Get the object and where it came from.
+		FileObject fileObject = importedObject.object;
+		ImportService importService = importedObject.provider;
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("processing "+fileObject.getType()+" (length = "+fileObject.getFile().length()
+							+") obtained from "+importService.getClass().getName());
+		}
+
+		//Make sure it has a standard extension
+		fileObject.setStandardExtension();
+
+		//Remember the original File so we can release it.
+		File importedFile = fileObject.getFile();
+		long length = importedFile.length();
+
+		//Sequence through the stages in the
+		//pipeline (skipping any ImportServices).
+		//Note: if a stage returns a null FileObject, it has
+		//quarantined the object and we need to abort further
+		//processing. That's why the condition in the for
+		//statement includes a test for (fileObject != null).
+		//The file is released even if a stage throws an exception,
+		//so that a worker does not leave it in the ImportService's
+		//active directory when it goes on to the next object.
+		try {
+			for (int i=0; (fileObject != null) && (i < stages.size()); i++) {
+				PipelineStage stage = stages.get(i);
+				FusibleStage[] run = (fusedRuns != null) ? fusedRuns[i] : null;
+				Object lock = (stageLocks != null) ? stageLocks[i] : null;
+				if (run != null) {
+					fileObject = processRun(i, run, fileObject, length);
+					i += run.length - 1;
+				}
+				else if (lock != null) {
+					synchronized (lock) {
+						fileObject = processStage(i, stage, fileObject, length);
+					}
+				}
+				else fileObject = processStage(i, stage, fileObject, length);
 			}
-			//Release the file and yield in case
-			//anyone else has something on his mind.
+			objectCount.incrementAndGet();
+		}
+		finally {
+			//Release the file.
 			importService.release(importedFile);
-			Thread.yield();
 		}
-		//Nothing left to do; return.
+	}
+
+	//Call the stage-specific method for a stage and record its metrics.
+	//A null result from a Processor or StorageService means that the
+	//stage quarantined the object. If the stage throws an exception,
+	//the object is quarantined for it.
+	private FileObject processStage(int index, PipelineStage stage, FileObject fileObject, long length) {
+		FileObject result = fileObject;
+		long start = System.nanoTime();
+		try {
+			if (stage instanceof Processor)
+				result = ((Processor)stage).process(fileObject);
+			else if (stage instanceof StorageService)
+				result = ((StorageService)stage).store(fileObject);
+			else if (stage instanceof ExportService)
+				((ExportService)stage).export(fileObject);
+			//Note that ImportServices are skipped;
+			//they are only suppliers.
+			else return fileObject;
+		}
+		catch (Exception ex) { result = quarantine(stage, fileObject, ex); }
+		stageMetrics[index].record(System.nanoTime() - start, length, (result == null));
+		return result;
+	}
+
+	//Quarantine an object which caused a stage to throw an exception,
+	//so the object is not passed to the following stages and is not lost.
+	private FileObject quarantine(PipelineStage stage, FileObject fileObject, Exception ex) {
+		logger.warn(name+": "+stage.getName()+": exception while processing "
+						+fileObject.getFile()+"; the object has been quarantined", ex);
+		Quarantine quarantine = stage.getQuarantine();
+		if (quarantine != null) quarantine.insert(fileObject);
+		return null;
+	}
+
+	//Call a run of fused stages and record the metrics of its stages.
+	//The time of the run is divided equally among the stages which
+	//processed the object.
+	private FileObject processRun(int index, FusibleStage[] run, FileObject fileObject, long length) {
+		boolean[] quarantined = new boolean[run.length];
+		long start = System.nanoTime();
+		FileObject result;
+		try { result = run[0].processFused(fileObject, run, quarantined); }
+		catch (Exception ex) {
+			//A run writes the object only after its stages have processed
+			//it, so the object is quarantined by the first stage of the run.
+			result = quarantine(run[0], fileObject, ex);
+			quarantined[0] = true;
+		}
+		long nanos = System.nanoTime() - start;
+		int n = run.length;
+		for (int k=0; k<run.length; k++) {
+			if (quarantined[k]) n = k + 1;
+		}
+		for (int k=0; k<n; k++) {
+			stageMetrics[index+k].record(nanos / n, length, quarantined[k]);
+		}
+		return result;
+	}
+
+	/**
+	 * Get the number of objects which have been processed by the pipeline.
+	 * This method does not take the pipeline's lock.
+	 * @return the number of objects processed.
+	 */
+	public long getObjectCount() {
+		return objectCount.get();
+	}
+
+	/**
+	 * Get the number of objects waiting in the worker lanes, including
+	 * the objects held for lanes which are full.
+	 * This method does not take the pipeline's lock.
+	 * @return the total depth of the worker lanes, or zero
+	 * if the pipeline does not use workers.
+	 */
+	public int getWorkerLaneDepth() {
+		Worker[] pool = workerPool;
+		int depth = 0;
+		if (pool != null) {
+			for (Worker worker : pool) depth += worker.getDepth();
+		}
+		return depth;
+	}
+
+	/**
+	 * Get the metrics of the stages of this pipeline.
+	 * @return the StageMetrics of the stages, in pipeline order.
+	 */
+	public StageMetrics[] getStageMetrics() {
+		return stageMetrics.clone();
 	}
 
 	//Find the first ImportService which has an object available.
@@ -270,10 +615,54 @@ public class Pipeline extends Thread {
 		return null;
 	}
 
+	//A Thread to process the objects in one lane of the pipeline.
+	//The lane is kept short so that objects are not dequeued from
+	//the ImportServices long before they can be processed. Objects
+	//for the lane which arrive when it is full are held by the
+	//dispatcher until there is room.
+	class Worker extends Thread {
+		LinkedBlockingQueue<ImportedObject> lane;
+		LinkedBlockingQueue<ImportedObject> held;
+		volatile long processed = 0;
+		public Worker(int id) {
+			super(name + " Worker " + id);
+			lane = new LinkedBlockingQueue<ImportedObject>(laneCapacity);
+			held = new LinkedBlockingQueue<ImportedObject>();
+		}
+		//Get the number of objects in the lane and held for it.
+		public int getDepth() {
+			return lane.size() + held.size();
+		}
+		//Get the time in ms that the oldest object in the lane has waited.
+		public long getLag() {
+			ImportedObject importedObject = lane.peek();
+			if (importedObject == null) return 0;
+			return Math.max(System.currentTimeMillis() - importedObject.queuedTime, 0);
+		}
+		public void run() {
+			ImportedObject importedObject;
+			while (true) {
+				try {
+					importedObject = lane.poll(1000, TimeUnit.MILLISECONDS);
+					if (importedObject != null) {
+						processObject(importedObject);
+						processed++;
+					}
+					else if (!dispatching) break;
+				}
+				catch (InterruptedException ex) { break; }
+				catch (Exception ex) {
+					logger.warn(getName()+": Exception while processing an object", ex);
+				}
+			}
+		}
+	}
+
 	//A class to encapsulate a FileObject and the ImportService which provided it.
 	class ImportedObject {
 		public FileObject object;
 		public ImportService provider;
+		public long queuedTime = 0;
 		public ImportedObject(FileObject object, ImportService provider) {
 			this.object = object;
 			this.provider = provider;
@@ -306,9 +695,57 @@ public class Pipeline extends Thread {
 	public synchronized String getStatusHTML() {
 		StringBuffer sb = new StringBuffer();
 		sb.append("<h2>"+name+"</h2>");
+		if (workerPool != null) sb.append(getLaneStatusHTML());
+		sb.append(getMetricsStatusHTML());
 		Iterator<PipelineStage> sit = stages.iterator();
 		while (sit.hasNext()) sb.append(sit.next().getStatusHTML());
 		return sb.toString();
 	}
 
+	//Get a table showing the depth and lag of each worker lane.
+	private String getLaneStatusHTML() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("<h3>Worker lanes (partitionKey: "+partitionKey+")</h3>");
+		sb.append("<table border=\"1\" width=\"100%\">");
+		sb.append("<tr><th>Lane</th><th>Queue depth</th><th>Lag</th><th>Objects processed</th></tr>");
+		for (int i=0; i<workerPool.length; i++) {
+			Worker worker = workerPool[i];
+			sb.append("<tr><td>"+i+"</td>");
+			sb.append("<td>"+worker.getDepth()+"</td>");
+			sb.append("<td>"+worker.getLag()+" msec</td>");
+			sb.append("<td>"+worker.processed+"</td></tr>");
+		}
+		sb.append("</table>");
+		return sb.toString();
+	}
+
+	//Get a table showing the latency and throughput of each stage.
+	private String getMetricsStatusHTML() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("<h3>Stage metrics</h3>");
+		sb.append("<table border=\"1\" width=\"100%\">");
+		sb.append("<tr><th>Stage</th><th>Objects</th><th>p50</th><th>p95</th><th>p99</th><th>Max</th>");
+		sb.append("<th>Objects/sec</th><th>KB/sec</th><th>Quarantined</th></tr>");
+		for (StageMetrics sm : stageMetrics) {
+			if (sm.getStage() instanceof ImportService) continue;
+			LatencyHistogram h = sm.getLatency();
+			sb.append("<tr><td>"+sm.getStage().getName()+"</td>");
+			sb.append("<td>"+sm.getObjectCount()+"</td>");
+			sb.append("<td>"+formatNanos(h.getPercentile(50.0))+"</td>");
+			sb.append("<td>"+formatNanos(h.getPercentile(95.0))+"</td>");
+			sb.append("<td>"+formatNanos(h.getPercentile(99.0))+"</td>");
+			sb.append("<td>"+formatNanos(h.getMax())+"</td>");
+			sb.append("<td>"+String.format("%.1f", sm.getObjectsPerSecond())+"</td>");
+			sb.append("<td>"+String.format("%.1f", sm.getBytesPerSecond()/1024.0)+"</td>");
+			sb.append("<td>"+sm.getQuarantineCount()+"</td></tr>");
+		}
+		sb.append("</table>");
+		return sb.toString();
+	}
+
+	//Format a time in nanoseconds as milliseconds.
+	private static String formatNanos(long nanos) {
+		return String.format("%.3f msec", nanos/1000000.0);
+	}
+
 }
\ No newline at end of file
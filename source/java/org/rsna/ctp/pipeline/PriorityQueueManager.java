@@ -0,0 +1,351 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.pipeline;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.LinkedList;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.objects.FileObject;
+import org.rsna.util.FileUtil;
+import org.rsna.util.StringUtil;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A QueueManager which divides its queue into lanes with different priorities.
+ * The lanes are configured by lane child elements of the stage element:
+ * <pre>
+ * &lt;lane name="STAT" script="scripts/stat.script" maxSize="" weight="10"/&gt;
+ * </pre>
+ * An object is placed in the first lane whose criteria it meets. A lane with
+ * a script accepts DicomObjects which match the script. A lane with a maxSize
+ * accepts objects whose length in bytes does not exceed the maxSize. Objects
+ * which are not accepted by any lane go into a default lane with weight 1.
+ * <p>
+ * If the priority attribute of the stage element is "strict", objects are
+ * dequeued from the first non-empty lane in the order of the configuration.
+ * Otherwise, the lanes are served in a weighted round-robin, so each
+ * non-empty lane receives a share of the dequeues proportional to its weight.
+ * <p>
+ * Each lane is stored in a subdirectory (laneN) of the root directory. The lanes
+ * are internal to the PriorityQueueManager: they are not registered in the list
+ * of all QueueManagers, and their saved sizes are kept next to the root directory
+ * (root.laneN.count) so they are not mistaken for queued objects if the lanes are
+ * later removed from the configuration and the directory is opened as a plain
+ * QueueManager. When the queue is opened, any objects in the root directory
+ * which are not in one of the configured lanes (for example, objects queued
+ * before the lanes were configured) are migrated into the lanes.
+ */
+public class PriorityQueueManager extends QueueManager {
+
+	static final Logger logger = Logger.getLogger(PriorityQueueManager.class);
+
+	private Lane[] lanes;
+	private boolean strict;
+	private boolean parse = false;
+
+	/**
+	 * Create a PriorityQueueManager for a root directory.
+	 * Each lane is a QueueManager in a subdirectory of the root.
+	 * @param root the root directory of the queue.
+	 * If the root directory does not exist, it is created.
+	 * @param element the XML element from the configuration file
+	 * specifying the configuration of the stage.
+	 */
+	public PriorityQueueManager(File root, Element element) {
+		super(root);
+		strict = element.getAttribute("priority").trim().equals("strict");
+		LinkedList<Element> laneElements = new LinkedList<Element>();
+		Node child = element.getFirstChild();
+		while (child != null) {
+			if ((child instanceof Element) && child.getNodeName().equals("lane")) {
+				laneElements.add((Element)child);
+			}
+			child = child.getNextSibling();
+		}
+		laneElements.add(null); //the default lane
+		final int nLanes = laneElements.size();
+
+		//If the root directory has been used by a plain QueueManager since
+		//the lanes were last opened, the saved sizes of the lanes are out of
+		//date, so discard them along with the plain QueueManager's saved size.
+		//Also discard any saved lane sizes stored inside the root directory.
+		File counter = getCounterFile();
+		if (counter.exists()) {
+			deleteLaneCounters(counter.getParentFile(), root.getName() + ".");
+			counter.delete();
+		}
+		deleteLaneCounters(root, "");
+
+		//Set aside anything which is not in one of the lanes.
+		File legacy = setAside(
+			new FileFilter() {
+				public boolean accept(File file) {
+					if (file.isDirectory()) {
+						for (int i=0; i<nLanes; i++) {
+							if (file.getName().equals("lane"+i)) return true;
+						}
+					}
+					return false;
+				}
+			});
+
+		lanes = new Lane[nLanes];
+		for (int i=0; i<nLanes; i++) {
+			lanes[i] = new Lane(root, i, laneElements.get(i));
+			parse |= (lanes[i].script != null);
+		}
+		if (legacy != null) migrate(legacy);
+	}
+
+	/**
+	 * Determine whether a stage element configures priority lanes.
+	 * @param element the XML element from the configuration file
+	 * specifying the configuration of the stage.
+	 * @return true if the element has at least one lane child element.
+	 */
+	public static boolean hasLanes(Element element) {
+		Node child = element.getFirstChild();
+		while (child != null) {
+			if ((child instanceof Element) && child.getNodeName().equals("lane")) return true;
+			child = child.getNextSibling();
+		}
+		return false;
+	}
+
+	/**
+	 * Get the size of the queue.
+	 * @return the number of objects in all the lanes.
+	 */
+	public int size() {
+		int n = 0;
+		for (Lane lane : lanes) n += lane.queue.size();
+		return n;
+	}
+
+	/**
+	 * Insert a file into the lane selected by its criteria. If any lane
+	 * selects objects by script, the file is parsed to classify it.
+	 * @param file the file to be inserted.
+	 * @param keepSource true if the file must remain in its original
+	 * directory; false if it can be removed from its original directory.
+	 * @return a File pointing to the object in the queue
+	 * or null if the file had zero length.
+	 */
+	public File enqueue(File file, boolean keepSource) {
+		if ((file == null) || (file.length() == 0)) return null;
+		FileObject fileObject = parse ? FileObject.getInstance(file) : null;
+		return enqueue(file, fileObject, keepSource);
+	}
+
+	/**
+	 * Insert a FileObject into the lane selected by its criteria.
+	 * This method avoids parsing the file again when the
+	 * caller already has the FileObject.
+	 * @param fileObject the object to be inserted.
+	 * @param keepSource true if the file must remain in its original
+	 * directory; false if it can be removed from its original directory.
+	 * @return a File pointing to the object in the queue
+	 * or null if the file had zero length.
+	 */
+	public File enqueue(FileObject fileObject, boolean keepSource) {
+		return enqueue(fileObject.getFile(), fileObject, keepSource);
+	}
+
+	private File enqueue(File file, FileObject fileObject, boolean keepSource) {
+		for (Lane lane : lanes) {
+			if (lane.accepts(file, fileObject)) {
+				File qFile = lane.queue.enqueue(file, keepSource);
+				if (qFile != null) signal();
+				return qFile;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Retrieve a file from the queue, choosing the lane according to the
+	 * priority policy. The file is removed from the queue and placed into
+	 * a directory supplied by the calling method.
+	 * @param dir the directory into which to place the file to be retrieved.
+	 * @return a File pointing to the file in the supplied directory, or null
+	 * if no file is available in any lane.
+	 */
+	public synchronized File dequeue(File dir) {
+		if (strict) {
+			for (Lane lane : lanes) {
+				File file = lane.queue.dequeue(dir);
+				if (file != null) return file;
+			}
+			return null;
+		}
+		//Smooth weighted round-robin among the non-empty lanes. If the
+		//selected lane turns out to be empty, try again without it.
+		boolean[] skip = new boolean[lanes.length];
+		while (true) {
+			int total = 0;
+			Lane selected = null;
+			for (int i=0; i<lanes.length; i++) {
+				Lane lane = lanes[i];
+				if (!skip[i] && (lane.queue.size() > 0)) {
+					lane.current += lane.weight;
+					total += lane.weight;
+					if ((selected == null) || (lane.current > selected.current)) selected = lane;
+				}
+			}
+			if (selected == null) break;
+			selected.current -= total;
+			File file = selected.queue.dequeue(dir);
+			if (file != null) return file;
+			skip[selected.index] = true;
+		}
+		//The sizes may be out of date; try the lanes in order.
+		for (Lane lane : lanes) {
+			File file = lane.queue.dequeue(dir);
+			if (file != null) return file;
+		}
+		return null;
+	}
+
+	/**
+	 * Re-count all the files in all the lanes.
+	 * @return the number of files in the queue.
+	 */
+	public int recount() {
+		int n = 0;
+		for (Lane lane : lanes) n += lane.queue.recount();
+		return n;
+	}
+
+	/**
+	 * Start the background reconciliation threads of all the lanes.
+	 * @param interval the time in milliseconds between reconciliations.
+	 */
+	public synchronized void startReconciler(long interval) {
+		for (Lane lane : lanes) lane.queue.startReconciler(interval);
+	}
+
+	/**
+	 * Stop the background reconciliation threads of all the lanes.
+	 */
+	public synchronized void stopReconciler() {
+		for (Lane lane : lanes) lane.queue.stopReconciler();
+	}
+
+	/**
+	 * Close all the lanes, saving their sizes.
+	 */
+	public synchronized void close() {
+		for (Lane lane : lanes) lane.queue.close();
+		super.close();
+	}
+
+	/**
+	 * Get a description of the methods used to enqueue files in all the lanes.
+	 * @return the number of files that were renamed, linked, and
+	 * copied into each lane.
+	 */
+	public String getEnqueueStatistics() {
+		StringBuffer sb = new StringBuffer();
+		for (Lane lane : lanes) {
+			if (sb.length() > 0) sb.append("<br/>");
+			sb.append(lane.name + ": " + lane.queue.getEnqueueStatistics());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Get the last-modified time of the oldest file at the head of any lane.
+	 * @return the earliest last-modified time of the files at the heads
+	 * of the lanes, or zero if all the lanes are empty.
+	 */
+	public long getOldestFileTime() {
+		long oldest = 0;
+		for (Lane lane : lanes) {
+			long time = lane.queue.getOldestFileTime();
+			if ((time > 0) && ((oldest == 0) || (time < oldest))) oldest = time;
+		}
+		return oldest;
+	}
+
+	/**
+	 * Get HTML table rows showing the depth and the age of the oldest
+	 * object in each lane.
+	 * @return HTML text displaying the status of the lanes.
+	 */
+	public String getLaneStatusHTML() {
+		StringBuffer sb = new StringBuffer();
+		long now = System.currentTimeMillis();
+		for (Lane lane : lanes) {
+			sb.append("<tr><td width=\"20%\">Lane "+lane.name+":</td><td>");
+			sb.append(lane.queue.size() + " queued");
+			long time = lane.queue.getOldestFileTime();
+			if (time > 0) sb.append("; oldest " + Math.max(now - time, 0)/1000 + " sec");
+			sb.append("</td></tr>");
+		}
+		return sb.toString();
+	}
+
+	//Delete the saved lane sizes in a directory.
+	private static void deleteLaneCounters(File dir, String prefix) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (file.isFile() && name.startsWith(prefix)
+						&& name.substring(prefix.length()).matches("lane\\d+\\.count")) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	//Get the file in which the size of a lane is saved.
+	private File getLaneCounterFile(int index) {
+		File file = root.getAbsoluteFile();
+		return new File(file.getParentFile(), file.getName() + ".lane" + index + ".count");
+	}
+
+	//A class to encapsulate one lane of the queue.
+	class Lane {
+		int index;
+		String name;
+		boolean isDefault;
+		File script = null;
+		long maxSize = 0;
+		int weight = 1;
+		int current = 0;
+		QueueManager queue;
+		public Lane(File root, int index, Element element) {
+			this.index = index;
+			queue = new QueueManager(new File(root, "lane"+index), 0, 0, getLaneCounterFile(index), false);
+			isDefault = (element == null);
+			if (!isDefault) {
+				name = element.getAttribute("name").trim();
+				String s = element.getAttribute("script").trim();
+				if (!s.equals("")) script = FileUtil.getFile(s, "examples/example-filter.script");
+				maxSize = StringUtil.getLong(element.getAttribute("maxSize").trim(), 0);
+				weight = Math.max(StringUtil.getInt(element.getAttribute("weight").trim(), 1), 1);
+			}
+			else name = "default";
+			if (name.equals("")) name = "lane"+index;
+		}
+		public boolean accepts(File file, FileObject fileObject) {
+			if (isDefault) return true;
+			if ((maxSize > 0) && (file.length() > maxSize)) return false;
+			if (script != null) {
+				if (!(fileObject instanceof DicomObject)) return false;
+				if (!((DicomObject)fileObject).matches(script)) return false;
+			}
+			return true;
+		}
+	}
+
+}
@@ -8,9 +8,11 @@
 package org.rsna.ctp.pipeline;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.LinkedList;
+import java.util.List;
 import jdbm.htree.HTree;
 import jdbm.helper.FastIterator;
 import jdbm.RecordManager;
@@ -41,6 +43,7 @@ public class Quarantine {
 	File directory = null;
 	File indexDir = null;
 	long timeDepth = 0; //Maximum age to be kept in the quarantine (ms)
+	private volatile int count = 0; //Number of files in the index
 
 	private RecordManager recman;
 	private static final String databaseName = "QuarantineIndex";
@@ -98,6 +101,7 @@ public class Quarantine {
 				logger.info("Rebuilding quarantine index: "+directory);
 				rebuildIndex();
 			}
+			else count = getSize();
 		}
 		catch (Exception ex) {
 			logger.warn("Unable to create the quarantine index for "+directory);
@@ -113,6 +117,7 @@ public class Quarantine {
 		closeIndex();
 		deleteIndex();
 		openIndex();
+		count = 0;
 		loadIndex();
 	}
 
@@ -211,6 +216,32 @@ public class Quarantine {
 		return count;
 	}
 
+	/**
+	 * Get the number of files in the quarantine without walking the index.
+	 * The count is maintained as files are indexed and removed, and this
+	 * method does not take the quarantine's lock.
+	 * @return the number of files in the quarantine.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the directory of the quarantine.
+	 * @return the base directory of the quarantine.
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Get all the quarantines.
+	 * @return a list of all the Quarantine objects.
+	 */
+	public static List<Quarantine> getQuarantines() {
+		return new ArrayList<Quarantine>(quarantines.values());
+	}
+
 	//Add a file to the quarantine index
 	private synchronized void index(File file) {
 		index(FileObject.getInstance(file));
@@ -234,7 +265,9 @@ public class Quarantine {
 				QFile qfile = new QFile(fileObject);
 				qseries.add(qfile);
 				qstudy.add(qseries);
+				boolean isNew = (instanceTable.get(qfile.getName()) == null);
 				instanceTable.put(qfile.getName(), qfile);
+				if (isNew) count++;
 				seriesTable.put(seriesUID, qseries);
 				studyTable.put(studyUID, qstudy);
 				return true;
@@ -255,6 +288,7 @@ public class Quarantine {
 				String studyUID = qseries.getStudyUID();
 				QStudy qstudy = (QStudy)studyTable.get(studyUID);
 				instanceTable.remove(name);
+				count--;
 				qseries.remove(qfile);
 				if (!qseries.isEmpty()) {
 					seriesTable.put(seriesUID, qseries);
@@ -433,7 +467,7 @@ public class Quarantine {
 		if ((file != null) && file.isFile() && file.getParentFile().equals(directory)) {
 			try {
 				deindex(file);
-				queueManager.enqueue(file);
+				queueManager.enqueue(file, false);
 				file.delete();
 				recman.commit();
 			}
@@ -9,9 +9,20 @@ package org.rsna.ctp.pipeline;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
 import org.apache.log4j.Logger;
+import org.rsna.ctp.objects.FileDigest;
 import org.rsna.util.FileUtil;
+import org.w3c.dom.Element;
 
 /**
  * A class to manage a queue directory and multiple subdirectories to
@@ -23,17 +34,35 @@ public class QueueManager {
 
 	static final Logger logger = Logger.getLogger(QueueManager.class);
 
-	private File root;
+	/** The default interval in milliseconds between reconciliations of the queue size. */
+	public static final long defaultReconcileInterval = 10 * 60 * 1000;
+
+	/** The minimum interval in milliseconds between saves of the queue size. */
+	static final long saveInterval = 1000;
+
+	private static final List<QueueManager> instances = new ArrayList<QueueManager>();
+
+	protected File root;
 	private int nLevels;
 	private int maxSize;
 	private ActiveDirectory outDir;
 	private File lastFileIn;
 	private FileFilter dirsOnly;
 	private FileFilter filesOnly;
-	private volatile int size;
+	protected volatile int size;
 	private int subNameLength;
 	private int topNameLength = 10;
 	private String zeroes = "0000000000000000";
+	private LinkedList<Semaphore> signals = new LinkedList<Semaphore>();
+	private int renamed = 0;
+	private int linked = 0;
+	private int copied = 0;
+	private RandomAccessFile counter = null;
+	private File counterFile = null;
+	private long changes = 0;
+	private boolean unsaved = false;
+	private long lastSave = 0;
+	private Reconciler reconciler = null;
 
 	/**
 	 * Create a QueueManager for a root directory.
@@ -46,27 +75,163 @@ public class QueueManager {
 	 * If specified to be less than 200, it is set to 200.
 	 */
 	public QueueManager(File root, int nLevels, int maxSize) {
+		this(root, nLevels, maxSize, null, true);
+	}
+
+	/**
+	 * Create a QueueManager for a root directory, optionally as a queue
+	 * which is internal to another object. An internal queue is not
+	 * registered in the list of all QueueManagers, and its root directory
+	 * is not checked for objects stored by a SegmentQueueManager.
+	 * @param root the root directory of the queue tree.
+	 * @param nLevels number of levels in the queue tree.
+	 * @param maxSize the maximum number of files allowed
+	 * in any directory (except for the root directory).
+	 * @param counterFile the file in which to save the size of the queue,
+	 * or null to use a file next to the root directory. The file must not
+	 * be inside the root directory of this queue or of any queue that
+	 * contains it.
+	 * @param register false if the queue is internal; true otherwise.
+	 */
+	QueueManager(File root, int nLevels, int maxSize, File counterFile, boolean register) {
 		this.root = root;
+		this.counterFile = counterFile;
 		this.nLevels = Math.max(nLevels, 3);
 		this.maxSize = Math.max(maxSize, 200);
 		root.mkdirs();
+
+		//If the root directory contains a segment queue, set it aside
+		//so it can be migrated into the tree once the tree is open.
+		File legacy = null;
+		if (register) {
+			final boolean segmentQueue = SegmentQueueManager.isSegmentQueue(root);
+			legacy = setAside(
+				new FileFilter() {
+					public boolean accept(File file) {
+						return !segmentQueue || !SegmentQueueManager.isSegmentFile(file);
+					}
+				});
+		}
+
 		outDir = null;
 		lastFileIn = null;
-		size = countFiles(root);
+		size = openCounter();
+		if (size < 0) {
+			size = countFiles(root);
+			saveSize();
+		}
 		dirsOnly = new NumericFileFilter(true,false);
 		filesOnly = new NumericFileFilter(false,true);
 		subNameLength = Integer.toString(this.maxSize).length();
+		if (legacy != null) migrate(legacy);
+		if (register) register(this);
+	}
+
+	/**
+	 * Create a QueueManager for a stage, selecting the implementation from
+	 * the configuration of the stage. If the stage element has lane child
+	 * elements, a PriorityQueueManager is created. Otherwise, if the queueType
+	 * attribute is "segment", a SegmentQueueManager is created. Otherwise, a
+	 * QueueManager is created with the default settings.
+	 * <p>
+	 * If the root directory contains objects stored in the format of
+	 * a different implementation (for example, because the queueType
+	 * attribute has been changed since the queue was last used), the
+	 * objects are migrated into the new queue when it is opened.
+	 * @param root the root directory of the queue.
+	 * @param element the XML element from the configuration file
+	 * specifying the configuration of the stage.
+	 * @return the QueueManager for the stage.
+	 */
+	public static QueueManager getInstance(File root, Element element) {
+		if (PriorityQueueManager.hasLanes(element))
+			return new PriorityQueueManager(root, element);
+		if (element.getAttribute("queueType").trim().equals("segment"))
+			return new SegmentQueueManager(root);
+		return new QueueManager(root, 0, 0); //use default settings
+	}
+
+	/**
+	 * Create a QueueManager for a root directory whose storage is
+	 * managed by a subclass. The root directory is created if
+	 * it does not exist, but no directory tree is used.
+	 * @param root the root directory of the queue.
+	 */
+	protected QueueManager(File root) {
+		this(root, true);
+	}
+
+	/**
+	 * Create a QueueManager for a root directory whose storage is
+	 * managed by a subclass, optionally as a queue which is internal
+	 * to another object and is not registered in the list of all
+	 * QueueManagers.
+	 * @param root the root directory of the queue.
+	 * @param register false if the queue is internal; true otherwise.
+	 */
+	protected QueueManager(File root, boolean register) {
+		this.root = root;
+		root.mkdirs();
+		if (register) register(this);
+	}
+
+	//Add a QueueManager to the list of all instances.
+	private static void register(QueueManager queueManager) {
+		synchronized (instances) {
+			instances.add(queueManager);
+		}
+	}
+
+	/**
+	 * Get all the QueueManagers which have been created. The lanes
+	 * of a PriorityQueueManager are internal to it, so only the
+	 * PriorityQueueManager itself is included.
+	 * @return a copy of the list of QueueManagers.
+	 */
+	public static List<QueueManager> getQueueManagers() {
+		synchronized (instances) {
+			return new ArrayList<QueueManager>(instances);
+		}
+	}
+
+	/**
+	 * Get the root directory of the queue.
+	 * @return the root directory.
+	 */
+	public File getRoot() {
+		return root;
 	}
 
 	/**
-	 * Get the size of the queue.
+	 * Get the size of the queue. The size is maintained as files are
+	 * enqueued and dequeued, and it is saved in a file next to the root
+	 * directory so that it survives a restart. Files placed in the queue
+	 * directories by hand are not counted until the queue is reconciled.
 	 * @return the number of objects in the queue.
 	 */
-	public synchronized int size() {
-		if (size < 10) recount();
+	public int size() {
 		return size;
 	}
 
+	/**
+	 * Register a Semaphore to be released each time a file is
+	 * enqueued. Consumers of the queue can wait on the Semaphore
+	 * instead of polling the queue.
+	 * @param signal the Semaphore to release when a file is enqueued.
+	 */
+	public synchronized void addSignal(Semaphore signal) {
+		if ((signal != null) && !signals.contains(signal)) signals.add(signal);
+	}
+
+	/**
+	 * Remove a Semaphore from the list of those released when
+	 * a file is enqueued.
+	 * @param signal the Semaphore to remove.
+	 */
+	public synchronized void removeSignal(Semaphore signal) {
+		signals.remove(signal);
+	}
+
 	/**
 	 * Insert a file into the queue directory tree,
 	 * leaving the file in its original directory.
@@ -76,13 +241,44 @@ public class QueueManager {
 	 * or null if the file had zero length.
 	 */
 	public synchronized File enqueue(File file) {
+		return enqueue(file, true);
+	}
+
+	/**
+	 * Insert a file into the queue directory tree. If the source file is
+	 * not to be kept, it is renamed into the queue. If it is to be kept,
+	 * a hard link to it is created in the queue. The file is copied only
+	 * if the queue is on a different filesystem, in which case the source
+	 * file is deleted after the copy if it is not to be kept.
+	 * Note: since a hard link shares its data with the source file, a
+	 * source file that is kept must not be modified in place afterward.
+	 * Note: this method does not enqueue a zero-length file.
+	 * @param file the file to be inserted.
+	 * @param keepSource true if the file must remain in its original
+	 * directory; false if it can be removed from its original directory.
+	 * @return a File pointing to the object in the queue
+	 * or null if the file had zero length.
+	 */
+	public synchronized File enqueue(File file, boolean keepSource) {
 		if ((file == null) || (file.length() == 0)) return null;
 		lastFileIn = getNextFileIn();
-		lastFileIn = copyFile(file, lastFileIn);
-		if (lastFileIn != null) size++;
+		lastFileIn = transferFile(file, lastFileIn, keepSource);
+		if (lastFileIn != null) {
+			size++;
+			changed();
+			signal();
+		}
 		return lastFileIn;
 	}
 
+	/**
+	 * Release all the Semaphores registered with this queue.
+	 * Subclasses call this method after enqueuing a file.
+	 */
+	protected synchronized void signal() {
+		for (Semaphore signal : signals) signal.release();
+	}
+
 	/**
 	 * Insert all the files in a directory into the queue
 	 * directory tree, preserving the embedded filename, if present.
@@ -99,7 +295,7 @@ public class QueueManager {
 			File[] files = dir.listFiles();
 			for (int i=0; i<files.length; i++) {
 				if (files[i].isFile()) {
-					enqueue(files[i]);
+					enqueue(files[i], false);
 					files[i].delete();
 					count++;
 				}
@@ -149,8 +345,14 @@ public class QueueManager {
 			//be sure we catch those files.
 			File file = findFirstFile(root);
 			//If we didn't get a file, then there must be none anywhere
-			//in the queue, so we have to return null.
-			if (file == null) return null;
+			//in the queue, so we correct the size and return null.
+			if (file == null) {
+				if (size != 0) {
+					size = 0;
+					changed();
+				}
+				return null;
+			}
 			//Okay, there is a file, so we can create an active directory
 			//for its parent.
 			outDir = new ActiveDirectory(file.getParentFile());
@@ -164,12 +366,54 @@ public class QueueManager {
 		//file to the output directory and return it.
 		if ((qFile != null) && qFile.exists()) {
 			qFile = moveFile(qFile, dir);
-			if (qFile != null) size--;
+			if (qFile != null) {
+				if (size > 0) size--;
+				changed();
+			}
 			return qFile;
 		}
 		return null;
 	}
 
+	/**
+	 * Retrieve up to a maximum number of files from the queue in one
+	 * operation. The files are removed from the queue and placed into a
+	 * directory supplied by the calling method, in the same order in which
+	 * they would have been returned by successive calls to dequeue(File).
+	 * @param dir the directory into which to place the files to be retrieved.
+	 * @param max the maximum number of files to retrieve.
+	 * @return the list of files in the supplied directory. If no file
+	 * is available in the queue, the list is empty.
+	 */
+	public synchronized List<File> dequeue(File dir, int max) {
+		List<File> list = new ArrayList<File>();
+		File file;
+		while ((list.size() < max) && ((file = dequeue(dir)) != null)) list.add(file);
+		return list;
+	}
+
+	/**
+	 * Get the last-modified time of the file at the head of the queue.
+	 * Since files are renamed or linked into the queue, this is the time
+	 * the object was received or last modified by a pipeline stage, which
+	 * approximates the time it was enqueued.
+	 * <p>
+	 * If there is no active directory from which files are being dequeued,
+	 * the directory tree is walked to find the first file. As in recount,
+	 * the walk is done without holding the lock on the queue, so enqueue
+	 * and dequeue operations are not blocked.
+	 * @return the last-modified time of the oldest file in the queue,
+	 * or zero if the queue is empty.
+	 */
+	public long getOldestFileTime() {
+		File file = null;
+		synchronized (this) {
+			if (outDir != null) file = outDir.peek();
+		}
+		if (file == null) file = findFirstFile(root, false);
+		return (file != null) ? file.lastModified() : 0;
+	}
+
 	/**
 	 * Find the next file in the queue directory tree without removing
 	 * it from the queue.
@@ -208,16 +452,230 @@ public class QueueManager {
 			//from the outDir object so its index is properly updated.
 			return outDir.peek();
 		}
-		return null;
+		return qFile;
+	}
+
+	/**
+	 * Get a description of the methods used to enqueue files.
+	 * @return the number of files that were renamed, linked, and
+	 * copied into the queue.
+	 */
+	public synchronized String getEnqueueStatistics() {
+		return "renamed: "+renamed+"; linked: "+linked+"; copied: "+copied;
 	}
 
 	/**
-	 * Re-count all the files in the queue.
+	 * Count a file that has been enqueued. Subclasses which store
+	 * files in their own way call this method to keep the
+	 * enqueue statistics.
+	 * @param method the method used to enqueue the file
+	 * ("rename", "link", or "copy").
+	 */
+	protected synchronized void countEnqueue(String method) {
+		if (method.equals("rename")) renamed++;
+		else if (method.equals("link")) linked++;
+		else copied++;
+	}
+
+	/**
+	 * Re-count all the files in the queue. The directory tree is walked
+	 * without holding the lock on the queue, so enqueue and dequeue
+	 * operations are not blocked. If the queue changes during the walk,
+	 * the count is discarded and the maintained size is returned.
 	 * @return the number of files in the queue.
 	 */
-	public synchronized int recount() {
-		size = countFiles(root);
-		return size;
+	public int recount() {
+		long start;
+		synchronized (this) { start = changes; }
+		int n = countFiles(root);
+		synchronized (this) {
+			if (changes == start) {
+				if (n != size) {
+					logger.debug(root+": queue size reconciled from "+size+" to "+n);
+					size = n;
+					unsaved = true;
+				}
+			}
+			if (unsaved) saveSize();
+			return size;
+		}
+	}
+
+	/**
+	 * Start a background thread to reconcile the size of the queue
+	 * with the contents of the queue directories. The first reconciliation
+	 * is done immediately, in case the saved size is out of date because
+	 * the program stopped unexpectedly. Between reconciliations, the thread
+	 * saves the size of the queue once per second if it has changed, so
+	 * enqueue and dequeue operations do not write the saved size themselves.
+	 * @param interval the time in milliseconds between reconciliations.
+	 * If the interval is zero or negative, the queue is reconciled once.
+	 */
+	public synchronized void startReconciler(long interval) {
+		if (reconciler == null) {
+			reconciler = new Reconciler(interval);
+			reconciler.start();
+		}
+	}
+
+	/**
+	 * Stop the background reconciliation thread, if it is running.
+	 */
+	public synchronized void stopReconciler() {
+		if (reconciler != null) {
+			reconciler.interrupt();
+			reconciler = null;
+		}
+	}
+
+	/**
+	 * Stop the background reconciliation thread, save the size of the
+	 * queue, and close any files held open by the queue. This method is
+	 * called when the stage which owns the queue shuts down. Operations
+	 * on the queue after it is closed still work, but the size of the
+	 * queue is no longer saved, so it is reconciled when the queue is
+	 * next opened.
+	 */
+	public synchronized void close() {
+		stopReconciler();
+		if (counter != null) {
+			if (unsaved) saveSize();
+			try { counter.close(); }
+			catch (Exception ignore) { }
+			counter = null;
+		}
+	}
+
+	/**
+	 * Get the file in which the size of the queue is saved.
+	 * Unless another file was supplied when the queue was created,
+	 * the file is next to the root directory, so it is not
+	 * seen when the queue directories are walked.
+	 * @return the file containing the saved size of the queue.
+	 */
+	protected File getCounterFile() {
+		if (counterFile != null) return counterFile;
+		File file = root.getAbsoluteFile();
+		return new File(file.getParentFile(), file.getName() + ".count");
+	}
+
+	/**
+	 * Move the entries in the root directory which are not stored in
+	 * the format of this queue into a migration directory next to the
+	 * root directory, from which they can be transferred into the queue
+	 * by the migrate method. If the migration directory already exists
+	 * because an earlier migration was interrupted, it is returned even
+	 * if nothing else is set aside.
+	 * @param format the filter accepting the entries which are stored
+	 * in the format of this queue.
+	 * @return the migration directory, or null if there is nothing to migrate.
+	 */
+	protected File setAside(FileFilter format) {
+		File dir = getMigrationDir();
+		File[] files = root.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!format.accept(file)) {
+					dir.mkdirs();
+					File dest = new File(dir, file.getName());
+					if (dest.exists() || !file.renameTo(dest)) {
+						logger.warn(root+": unable to set aside "+file+" for migration");
+					}
+				}
+			}
+		}
+		return dir.exists() ? dir : null;
+	}
+
+	/**
+	 * Transfer all the objects in a migration directory into this queue
+	 * in the order in which they were queued, and then delete the directory.
+	 * The objects in the directory may be stored in either the directory
+	 * tree of a QueueManager or the segments of a SegmentQueueManager.
+	 * If an object cannot be enqueued, the migration stops and the
+	 * remaining objects are left to be migrated when the queue is
+	 * next opened.
+	 * @param dir the migration directory.
+	 */
+	protected void migrate(File dir) {
+		QueueManager source;
+		if (SegmentQueueManager.isSegmentQueue(dir))
+			source = new SegmentQueueManager(dir, SegmentQueueManager.defaultSegmentSize, false);
+		else
+			source = new QueueManager(dir, 0, 0, null, false);
+		File temp = new File(dir.getParentFile(), dir.getName() + ".temp");
+		int count = 0;
+		boolean ok = true;
+		File file;
+		while (ok && ((file = source.dequeue(temp)) != null)) {
+			if (file.length() == 0) file.delete();
+			else if (enqueue(file, false) != null) count++;
+			else {
+				logger.warn(root+": unable to migrate "+file);
+				ok = false;
+			}
+		}
+		source.close();
+		if (ok) {
+			FileUtil.deleteAll(dir);
+			FileUtil.deleteAll(temp);
+			source.getCounterFile().delete();
+		}
+		logger.info(root+": "+count+" objects migrated from "+dir);
+	}
+
+	//Get the directory into which objects stored in a different
+	//format are set aside so they can be migrated into the queue.
+	private File getMigrationDir() {
+		File file = root.getAbsoluteFile();
+		return new File(file.getParentFile(), file.getName() + ".migrate");
+	}
+
+	//Open the file containing the saved size of the queue.
+	//Return the saved size, or -1 if it is not available.
+	private int openCounter() {
+		File file = getCounterFile();
+		boolean exists = file.exists();
+		try {
+			counter = new RandomAccessFile(file, "rw");
+			if (exists && (counter.length() >= 4)) {
+				counter.seek(0);
+				return Math.max(counter.readInt(), 0);
+			}
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to open the queue counter "+file, ex);
+		}
+		return -1;
+	}
+
+	//Count a change in the size of the queue. If the reconciler is
+	//running, it saves the size; otherwise, the size is saved here,
+	//but not more often than once per saveInterval.
+	private void changed() {
+		changes++;
+		unsaved = true;
+		if ((reconciler == null) && (System.currentTimeMillis() - lastSave >= saveInterval)) {
+			saveSize();
+		}
+	}
+
+	//Save the size of the queue if it has changed since it was last saved.
+	private synchronized void saveChanges() {
+		if (unsaved) saveSize();
+	}
+
+	//Save the size of the queue.
+	private void saveSize() {
+		if (counter != null) {
+			try {
+				counter.seek(0);
+				counter.writeInt(size);
+			}
+			catch (Exception ex) { }
+		}
+		unsaved = false;
+		lastSave = System.currentTimeMillis();
 	}
 
 	//Count all the files in a directory and its subdirectories.
@@ -236,19 +694,29 @@ public class QueueManager {
 	}
 
 	//Find the first file in the queue, no matter where
-	//it is located in the tree.
+	//it is located in the tree, deleting empty directories.
 	private File findFirstFile(File dir) {
+		return findFirstFile(dir, true);
+	}
+
+	//Find the first file in the queue, no matter where it is
+	//located in the tree. If prune is true, empty directories
+	//are deleted; this must only be done while holding the lock
+	//on the queue, since enqueue creates directories before it
+	//places files in them.
+	private File findFirstFile(File dir, boolean prune) {
 		if ((dir == null) || !dir.exists() || !dir.isDirectory()) return null;
 		File[] files = dir.listFiles();
+		if (files == null) return null;
 		Arrays.sort(files);
 		if ((files.length == 0) && !dir.equals(root)) {
-			dir.delete();
+			if (prune) dir.delete();
 		}
 		else {
 			for (int i=0; i<files.length; i++) {
 				if (files[i].isFile()) return files[i];
 				else {
-					File returnedFile = findFirstFile(files[i]);
+					File returnedFile = findFirstFile(files[i], prune);
 					if (returnedFile != null) return returnedFile;
 				}
 			}
@@ -289,14 +757,35 @@ public class QueueManager {
 		}
 	}
 
-	//Copy a file. Return null if the operation does not succeed. If the
-	//operation succeeds, return a file pointing to the location of the copy.
-	private File copyFile(File file, File copy) {
+	//Transfer a file into the queue. Rename the file if it does not have
+	//to be kept; otherwise, make a hard link to it. If that doesn't work
+	//(typically because the queue is on a different filesystem), copy the file.
+	//Return null if the operation does not succeed. If the operation
+	//succeeds, return a file pointing to the location in the queue.
+	private File transferFile(File file, File dest, boolean keepSource) {
 		try {
-			copy.getParentFile().mkdirs();
-			boolean ok = FileUtil.copy(file, copy);
-			if (ok) return copy;
-			else return null;
+			dest.getParentFile().mkdirs();
+			if (!keepSource) {
+				if (file.renameTo(dest)) {
+					renamed++;
+					return dest;
+				}
+			}
+			else {
+				try {
+					Files.createLink(dest.toPath(), file.toPath());
+					linked++;
+					return dest;
+				}
+				catch (Exception noLink) { }
+			}
+			if (copy(file, dest)) {
+				FileDigest.copy(file, dest);
+				copied++;
+				if (!keepSource) file.delete();
+				return dest;
+			}
+			return null;
 		}
 		catch (Exception ex) { return null; }
 	}
@@ -314,9 +803,12 @@ public class QueueManager {
 			boolean ok = file.renameTo(dest);
 			if (!ok) {
 				//That didn't work; try to do a copy.
-				ok = FileUtil.copy(file,dest);
+				ok = copy(file,dest);
 				//If that worked, then delete the original.
-				if (ok) file.delete();
+				if (ok) {
+					FileDigest.copy(file, dest);
+					file.delete();
+				}
 			}
 			if (ok) return dest;
 			return null;
@@ -324,6 +816,34 @@ public class QueueManager {
 		catch (Exception ex) { return null; }
 	}
 
+	//Copy a file with FileChannel.transferTo, which lets the operating
+	//system move the bytes without passing them through the Java heap.
+	//Return true if the copy succeeds; otherwise, delete the destination
+	//and return false.
+	private static boolean copy(File file, File dest) {
+		FileInputStream in = null;
+		FileOutputStream out = null;
+		boolean ok = false;
+		try {
+			in = new FileInputStream(file);
+			out = new FileOutputStream(dest);
+			FileChannel inChannel = in.getChannel();
+			FileChannel outChannel = out.getChannel();
+			long size = inChannel.size();
+			long done = 0;
+			long n;
+			while ((done < size) && ((n = inChannel.transferTo(done, size - done, outChannel)) > 0)) {
+				done += n;
+			}
+			ok = (done == size);
+		}
+		catch (Exception ex) { ok = false; }
+		FileUtil.close(in);
+		FileUtil.close(out);
+		if (!ok) dest.delete();
+		return ok;
+	}
+
 	//Get the next File into which to enqueue a file.
 	private File getNextFileIn() {
 		if (lastFileIn == null) lastFileIn = findLastFile(root, 0);
@@ -407,6 +927,34 @@ public class QueueManager {
 		}
 	}
 
+	//A Thread to reconcile the size of the queue periodically.
+	class Reconciler extends Thread {
+		long interval;
+		public Reconciler(long interval) {
+			super("QueueManager Reconciler: "+root);
+			this.interval = interval;
+			setDaemon(true);
+		}
+		public void run() {
+			try {
+				long next = 0;
+				while (!interrupted()) {
+					long now = System.currentTimeMillis();
+					if (now >= next) {
+						recount();
+						next = (interval > 0) ? now + interval : Long.MAX_VALUE;
+					}
+					else saveChanges();
+					sleep(saveInterval);
+				}
+			}
+			catch (InterruptedException done) { }
+			catch (Exception ex) {
+				logger.warn(getName()+": stopped by exception", ex);
+			}
+		}
+	}
+
 	//An implementation of java.io.FileFilter to return
 	//only files which have numeric names.
 	class NumericFileFilter implements FileFilter {
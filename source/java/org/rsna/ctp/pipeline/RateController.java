@@ -0,0 +1,255 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.pipeline;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An adaptive flow controller for the Exporter Threads of an ExportService,
+ * which sends to a single destination. The controller limits both the number
+ * of concurrent exports (the window) and the rate at which exports are started,
+ * using additive increase and multiplicative decrease (AIMD):
+ * <ul>
+ * <li>While the destination is healthy, the window grows by one after each
+ * window's worth of successful exports if the window has been full, up to
+ * the number of Exporters, and the rate limit, if one is in force, grows
+ * by a fixed step.
+ * <li>When an export returns Status.RETRY (which includes timeouts), or the
+ * round-trip time rises far above the best time seen, the window and the rate
+ * are halved, no more than once per round trip.
+ * </ul>
+ * The destination is considered healthy when the smoothed round-trip time is
+ * within twice the baseline (the lowest round-trip time seen, allowed to drift
+ * upward slowly). When the rate limit is well above the measured throughput,
+ * it is no longer limiting anything, and it is removed. The throughput is
+ * measured by counting the successful exports in each second during which
+ * exports were in progress, so idle periods do not lower it.
+ */
+public class RateController {
+
+	static final Logger logger = Logger.getLogger(RateController.class);
+
+	static final double healthyFactor = 2.0;
+	static final double congestedFactor = 4.0;
+	static final double smoothing = 0.2;
+	static final double baselineDrift = 0.01;
+	static final double rateStep = 1.0;
+	static final double minRate = 0.5;
+	static final long minBackoff = 100;
+	static final long throughputWindow = 1000;
+
+	final String name;
+	final int maxWindow;
+	final double maxRate;
+	final long maxBackoff;
+
+	double window = 1.0;
+	double rate = 0;
+	int active = 0;
+	int successes = 0;
+	boolean windowFull = false;
+	long nextSendTime = 0;
+	long lastDecreaseTime = 0;
+	long lastActivityTime = 0;
+	long busyTime = 0;
+	int completions = 0;
+	double latency = 0;
+	double baseline = 0;
+	double throughput = 0;
+	long increases = 0;
+	long decreases = 0;
+	boolean closed = false;
+
+	/**
+	 * Construct a RateController.
+	 * @param name the name of the ExportService, used in log entries.
+	 * @param maxWindow the maximum number of concurrent exports (the poolSize).
+	 * @param throttle the minimum time in milliseconds between exports,
+	 * which sets the maximum rate, or zero if the rate is not capped.
+	 * @param maxBackoff the maximum time in milliseconds to wait before
+	 * retrying an export.
+	 */
+	public RateController(String name, int maxWindow, int throttle, long maxBackoff) {
+		this.name = name;
+		this.maxWindow = Math.max(maxWindow, 1);
+		this.maxRate = (throttle > 0) ? 1000.0 / throttle : 0;
+		this.maxBackoff = Math.max(maxBackoff, minBackoff);
+		this.rate = maxRate;
+	}
+
+	/**
+	 * Wait until the window allows another export, and reserve a send time
+	 * which respects the current rate limit. The caller must call release
+	 * after the export, whether or not it waits for the send time.
+	 * @return the time in milliseconds the caller must wait before exporting.
+	 * @throws InterruptedException if the thread is interrupted while waiting.
+	 */
+	public synchronized long acquire() throws InterruptedException {
+		while (!closed && (active >= (int)window)) wait();
+		long now = System.currentTimeMillis();
+		updateBusyTime(now);
+		active++;
+		if (active >= (int)window) windowFull = true;
+		if (rate <= 0) return 0;
+		long sendTime = Math.max(now, nextSendTime);
+		nextSendTime = sendTime + (long)(1000.0 / rate);
+		return sendTime - now;
+	}
+
+	/**
+	 * Release the reservation made by acquire and adjust the window and
+	 * the rate limit according to the result of the export.
+	 * @param elapsedTime the round-trip time of the export in nanoseconds.
+	 * @param status the result of the export. A status other than OK or
+	 * RETRY (for example, FAIL when the export threw an exception) releases
+	 * the reservation without adjusting the window or the rate.
+	 */
+	public synchronized void release(long elapsedTime, Status status) {
+		long now = System.currentTimeMillis();
+		updateBusyTime(now);
+		active = Math.max(active - 1, 0);
+		notifyAll();
+		double ms = elapsedTime / 1.0e6;
+		if (status.equals(Status.OK)) {
+			latency = (latency == 0) ? ms : latency + smoothing * (ms - latency);
+			if ((baseline == 0) || (ms < baseline)) baseline = ms;
+			else baseline += baselineDrift * (latency - baseline);
+			completions++;
+			if (busyTime >= throughputWindow) {
+				double tp = completions * 1000.0 / busyTime;
+				throughput = (throughput == 0) ? tp : throughput + smoothing * (tp - throughput);
+				completions = 0;
+				busyTime = 0;
+			}
+
+			if (latency > congestedFactor * baseline) decrease(now);
+			else if ((++successes >= (int)window) && (latency <= healthyFactor * baseline)) {
+				successes = 0;
+				increase();
+			}
+		}
+		else if (status.equals(Status.RETRY)) decrease(now);
+	}
+
+	//Add the time since the last acquire or release to the busy time
+	//if any exports were in progress during it.
+	private void updateBusyTime(long now) {
+		if ((active > 0) && (lastActivityTime > 0)) busyTime += now - lastActivityTime;
+		lastActivityTime = now;
+	}
+
+	//Additive increase of the window and the rate limit.
+	private void increase() {
+		increases++;
+		if (windowFull && (window < maxWindow)) window = Math.min(window + 1.0, maxWindow);
+		windowFull = false;
+		if (rate > 0) {
+			rate += rateStep;
+			if (maxRate > 0) rate = Math.min(rate, maxRate);
+			else if ((throughput > 0) && (rate > 2 * throughput)) rate = 0;
+		}
+	}
+
+	//Multiplicative decrease, no more than once per round trip,
+	//so a burst of failures from one overload counts only once.
+	private void decrease(long now) {
+		if ((now - lastDecreaseTime) < Math.max(latency, minBackoff)) return;
+		lastDecreaseTime = now;
+		decreases++;
+		successes = 0;
+		window = Math.max(window / 2.0, 1.0);
+		double current = (rate > 0) ? rate : throughput;
+		if (current > 0) rate = Math.max(current / 2.0, minRate);
+		if (logger.isDebugEnabled()) {
+			logger.debug(name+": backing off: window = "+(int)window+"; rate = "+getRateString());
+		}
+	}
+
+	/**
+	 * Get the time to wait before retrying an export that has failed
+	 * one or more times in a row. The time doubles with each failure,
+	 * starting from the smoothed round-trip time, and is randomized
+	 * so the Exporters do not retry in step.
+	 * @param retries the number of successive failures of the export.
+	 * @return the time to wait in milliseconds.
+	 */
+	public synchronized long getBackoff(int retries) {
+		long base = Math.max((long)latency, minBackoff);
+		long backoff = base << Math.min(Math.max(retries - 1, 0), 16);
+		backoff = Math.min(backoff, maxBackoff);
+		return backoff / 2 + (long)(Math.random() * (backoff / 2 + 1));
+	}
+
+	/**
+	 * Wake any Exporters waiting for the window and let them through,
+	 * so they can see that the stage is stopping.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Get the current concurrency window.
+	 * @return the number of exports allowed at once.
+	 */
+	public synchronized int getWindow() {
+		return (int)window;
+	}
+
+	/**
+	 * Get the current rate limit.
+	 * @return the maximum rate in exports per second, or zero if the
+	 * rate is not currently limited.
+	 */
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Get the smoothed export throughput, measured over windows
+	 * of one second during which exports were in progress.
+	 * @return the measured rate of successful exports per second.
+	 */
+	public synchronized double getThroughput() {
+		return throughput;
+	}
+
+	/**
+	 * Get the smoothed round-trip time of successful exports.
+	 * @return the round-trip time in milliseconds.
+	 */
+	public synchronized double getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Get HTML table rows displaying the state of the controller.
+	 * @return the rows.
+	 */
+	public synchronized String getStatusHTML() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("<tr><td width=\"20%\">Adaptive export window:</td>"
+				+ "<td>" + (int)window + " of " + maxWindow + "</td></tr>");
+		sb.append("<tr><td width=\"20%\">Adaptive export rate:</td>"
+				+ "<td>" + getRateString()
+				+ String.format(" (measured %.1f/sec)", throughput)
+				+ "</td></tr>");
+		sb.append("<tr><td width=\"20%\">Smoothed round-trip time:</td>"
+				+ "<td>" + String.format("%.1f msec (best %.1f msec)", latency, baseline)
+				+ "</td></tr>");
+		sb.append("<tr><td width=\"20%\">Rate increases/decreases:</td>"
+				+ "<td>" + increases + " / " + decreases + "</td></tr>");
+		return sb.toString();
+	}
+
+	private String getRateString() {
+		return (rate > 0) ? String.format("%.1f/sec", rate) : "unlimited";
+	}
+
+}
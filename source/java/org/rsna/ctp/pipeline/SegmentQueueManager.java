@@ -0,0 +1,663 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.pipeline;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger;
+import org.rsna.util.FileUtil;
+
+/**
+ * A QueueManager which stores queued objects by appending them to large
+ * segment files instead of storing each object as a separate file in a
+ * directory tree. Each segment file (nnnnnnnnnn.seg) has an index file
+ * (nnnnnnnnnn.idx) containing the offset, length, enqueue time, and CRC
+ * of each object in the segment.
+ * <p>
+ * Appends and removals are committed in groups: the data and the index of
+ * the tail segment are forced to the disk and the checkpoint file is written
+ * after a number of changes or after a time interval, whichever comes first,
+ * instead of after every object. The checkpoint records the position of the
+ * head of the queue and the number of index entries in the tail segment which
+ * were on the disk when it was written.
+ * <p>
+ * When the queue is opened, the index entries after the checkpoint are
+ * replayed: each one is kept only if its data is present and matches its CRC,
+ * so objects appended after the last checkpoint survive if the program stopped
+ * but the system did not, and any partial object is discarded. The head of the
+ * queue is restored from the checkpoint, so objects are dequeued at least once:
+ * objects dequeued after the last checkpoint are supplied again.
+ * <p>
+ * If the root directory contains the directory tree of a QueueManager
+ * when the queue is opened, the objects in the tree are migrated into
+ * the segments.
+ */
+public class SegmentQueueManager extends QueueManager {
+
+	static final Logger logger = Logger.getLogger(SegmentQueueManager.class);
+
+	static final long defaultSegmentSize = 64L * 1024L * 1024L;
+	static final int indexEntrySize = 32;
+	static final int checkpointVersion = 2;
+	static final int checkpointSize = 28;
+	static final int bufferSize = 64 * 1024;
+	static final Pattern segmentName = Pattern.compile("\\d{10}\\.(seg|idx)");
+	static final String checkpointName = "checkpoint";
+
+	/** The number of changes after which a checkpoint is written. */
+	static final int checkpointChanges = 256;
+
+	/** The maximum time in milliseconds between a change and the next checkpoint. */
+	static final long checkpointInterval = 1000;
+
+	private long segmentSize;
+	private RandomAccessFile checkpoint = null;
+	private int headSegment = 0;
+	private long headRecord = 0;
+	private RandomAccessFile headData = null;
+	private RandomAccessFile headIndex = null;
+	private int tailSegment = 0;
+	private long tailRecords = 0;
+	private RandomAccessFile tailData = null;
+	private RandomAccessFile tailIndex = null;
+	private int changes = 0;
+	private long lastCheckpoint = 0;
+	private Checkpointer checkpointer = null;
+	private boolean closed = false;
+	private final byte[] buffer = new byte[bufferSize];
+
+	/**
+	 * Create a SegmentQueueManager for a root directory, using the
+	 * default segment size.
+	 * @param root the root directory of the queue.
+	 * If the root directory does not exist, it is created.
+	 */
+	public SegmentQueueManager(File root) {
+		this(root, defaultSegmentSize);
+	}
+
+	/**
+	 * Create a SegmentQueueManager for a root directory.
+	 * @param root the root directory of the queue.
+	 * If the root directory does not exist, it is created.
+	 * @param segmentSize the size in bytes at which a new
+	 * segment file is started.
+	 */
+	public SegmentQueueManager(File root, long segmentSize) {
+		this(root, segmentSize, true);
+	}
+
+	/**
+	 * Create a SegmentQueueManager for a root directory, optionally as a
+	 * queue which is internal to another object. An internal queue is not
+	 * registered in the list of all QueueManagers, and its root directory
+	 * is not checked for objects stored by a QueueManager.
+	 * @param root the root directory of the queue.
+	 * @param segmentSize the size in bytes at which a new
+	 * segment file is started.
+	 * @param register false if the queue is internal; true otherwise.
+	 */
+	SegmentQueueManager(File root, long segmentSize, boolean register) {
+		super(root, register);
+		this.segmentSize = Math.max(segmentSize, 1024 * 1024);
+
+		//Set aside anything stored by a QueueManager, and
+		//discard the QueueManager's saved size of the queue.
+		File legacy = null;
+		if (register) {
+			legacy = setAside(
+				new FileFilter() {
+					public boolean accept(File file) {
+						return isSegmentFile(file);
+					}
+				});
+			getCounterFile().delete();
+		}
+		try { open(); }
+		catch (Exception ex) {
+			logger.error("Unable to open the segment queue in "+root, ex);
+			return;
+		}
+		checkpointer = new Checkpointer();
+		checkpointer.start();
+		if (legacy != null) migrate(legacy);
+	}
+
+	/**
+	 * Determine whether a file is one of the files of a segment queue.
+	 * @param file the file to test.
+	 * @return true if the file is a segment file, an index file, or the checkpoint.
+	 */
+	public static boolean isSegmentFile(File file) {
+		String name = file.getName();
+		return file.isFile()
+				&& (name.equals(checkpointName) || segmentName.matcher(name).matches());
+	}
+
+	/**
+	 * Determine whether a directory contains a segment queue.
+	 * @param dir the directory to test.
+	 * @return true if the directory contains a checkpoint and
+	 * at least one index file.
+	 */
+	public static boolean isSegmentQueue(File dir) {
+		if (!new File(dir, checkpointName).isFile()) return false;
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(".idx") && isSegmentFile(file)) return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Append a file to the tail segment of the queue.
+	 * Note: this method does not enqueue a zero-length file.
+	 * @param file the file to be inserted.
+	 * @param keepSource true if the file must remain in its original
+	 * directory; false if it is to be deleted after it is appended.
+	 * @return a File identifying the object in the queue (the
+	 * segment file followed by the index of the object in brackets),
+	 * or null if the file had zero length or could not be enqueued.
+	 * The returned File does not point to a real file.
+	 */
+	public synchronized File enqueue(File file, boolean keepSource) {
+		reopen();
+		if ((file == null) || (file.length() == 0) || (tailData == null)) return null;
+		FileInputStream fis = null;
+		long offset = -1;
+		try {
+			//Start a new segment if the tail segment is full or
+			//if everything in it has already been dequeued.
+			offset = tailData.length();
+			if ((offset >= segmentSize) || ((size == 0) && (offset > 0))) {
+				openTail(tailSegment + 1);
+				offset = 0;
+			}
+
+			//Append the data, computing its CRC, then write the index entry.
+			//If the program stops between the two, the data is discarded
+			//when the queue is opened.
+			fis = new FileInputStream(file);
+			long length = fis.getChannel().size();
+			CRC32 crc = new CRC32();
+			copy(fis, tailData.getChannel(), offset, length, crc);
+			FileUtil.close(fis);
+
+			long record = tailRecords;
+			ByteBuffer entry = ByteBuffer.allocate(indexEntrySize);
+			entry.putLong(offset);
+			entry.putLong(length);
+			entry.putLong(System.currentTimeMillis());
+			entry.putLong(crc.getValue());
+			entry.flip();
+			write(tailIndex.getChannel(), entry, record * indexEntrySize);
+			tailRecords++;
+
+			if (!keepSource) file.delete();
+			countEnqueue("copy");
+			size++;
+			changed();
+			signal();
+			return new File(root, getName(tailSegment, ".seg") + "[" + record + "]");
+		}
+		catch (Exception ex) {
+			FileUtil.close(fis);
+			//Discard any partial data.
+			try { if (offset >= 0) tailData.setLength(offset); }
+			catch (Exception ignore) { }
+			logger.warn("Unable to enqueue "+file, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Retrieve the object at the head of the queue. The object is
+	 * removed from the queue and written to a file in a directory
+	 * supplied by the calling method.
+	 * @param dir the directory into which to place the file to be retrieved.
+	 * @return a File pointing to the file in the supplied directory. If
+	 * no file is available in the queue, null is returned. If the supplied
+	 * directory file is null or not a directory, null is returned.
+	 */
+	public synchronized File dequeue(File dir) {
+		reopen();
+		if ((dir == null) || (headIndex == null)) return null;
+		if (dir.exists() && !dir.isDirectory()) return null;
+		dir.mkdirs();
+		try {
+			while (true) {
+				if (headRecord < getRecords(headSegment)) {
+					ByteBuffer entry = readEntry(headIndex, headRecord);
+					long offset = entry.getLong(0);
+					long length = entry.getLong(8);
+					File dest = File.createTempFile("QF-", "", dir);
+					FileOutputStream fos = new FileOutputStream(dest);
+					try {
+						FileChannel in = headData.getChannel();
+						FileChannel out = fos.getChannel();
+						long n = 0;
+						while (n < length) {
+							long k = in.transferTo(offset + n, length - n, out);
+							if (k <= 0) break;
+							n += k;
+						}
+						//If the transfer stopped early, copy the rest through the heap.
+						if (n < length) {
+							headData.seek(offset + n);
+							copy(headData, fos, length - n);
+						}
+						fos.close();
+					}
+					catch (Exception ex) {
+						FileUtil.close(fos);
+						dest.delete();
+						throw ex;
+					}
+					headRecord++;
+					size--;
+					changed();
+					return dest;
+				}
+				else if (headSegment < tailSegment) {
+					//The head segment is exhausted; move to the next one,
+					//record the move, and then delete the exhausted segment.
+					int exhausted = headSegment;
+					close(headData);
+					close(headIndex);
+					openHead(headSegment + 1, 0);
+					writeCheckpoint();
+					new File(root, getName(exhausted, ".seg")).delete();
+					new File(root, getName(exhausted, ".idx")).delete();
+				}
+				else return null;
+			}
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to dequeue from "+root, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Get the time the object at the head of the queue was enqueued,
+	 * as recorded in its index entry.
+	 * @return the enqueue time of the object at the head of the queue,
+	 * or zero if the queue is empty.
+	 */
+	public synchronized long getOldestFileTime() {
+		if ((size == 0) || (headIndex == null)) return 0;
+		try {
+			if (headRecord < getRecords(headSegment)) {
+				return readEntry(headIndex, headRecord).getLong(16);
+			}
+			if (headSegment < tailSegment) {
+				//The head segment is exhausted; the oldest object
+				//is the first one in the next segment.
+				int next = headSegment + 1;
+				if (next == tailSegment) {
+					return (tailRecords > 0) ? readEntry(tailIndex, 0).getLong(16) : 0;
+				}
+				RandomAccessFile index = new RandomAccessFile(new File(root, getName(next, ".idx")), "r");
+				try {
+					return (index.length() >= indexEntrySize) ? readEntry(index, 0).getLong(16) : 0;
+				}
+				finally { close(index); }
+			}
+		}
+		catch (Exception ex) {
+			logger.debug("Unable to read the enqueue time of the head of "+root, ex);
+		}
+		return 0;
+	}
+
+	/**
+	 * Re-count all the objects in the queue from the index files.
+	 * @return the number of objects in the queue.
+	 */
+	public synchronized int recount() {
+		long n = -headRecord;
+		for (int seg=headSegment; seg<=tailSegment; seg++) {
+			n += new File(root, getName(seg, ".idx")).length() / indexEntrySize;
+		}
+		size = (int)Math.max(n, 0);
+		return size;
+	}
+
+	/**
+	 * Write a checkpoint if there have been any changes since the last
+	 * one. This is called periodically by a background thread so that
+	 * changes are committed even when the queue is idle.
+	 */
+	public synchronized void sync() {
+		if ((changes > 0) && (tailData != null)) {
+			try { writeCheckpoint(); }
+			catch (Exception ex) {
+				logger.warn("Unable to write the checkpoint of "+root, ex);
+			}
+		}
+	}
+
+	/**
+	 * Write a final checkpoint and close the files of the queue. If the
+	 * queue is used after it is closed, for example by an export thread
+	 * which is finishing an object when its stage shuts down, the files
+	 * are reopened.
+	 */
+	public synchronized void close() {
+		super.close();
+		if (tailData != null) closed = true;
+		if (checkpointer != null) {
+			checkpointer.interrupt();
+			checkpointer = null;
+		}
+		sync();
+		if (headData != tailData) {
+			close(headData);
+			close(headIndex);
+		}
+		close(tailData);
+		close(tailIndex);
+		close(checkpoint);
+		headData = headIndex = tailData = tailIndex = checkpoint = null;
+	}
+
+	//Reopen the files of the queue if it has been closed.
+	private void reopen() {
+		if (closed) {
+			closed = false;
+			try { open(); }
+			catch (Exception ex) {
+				logger.warn("Unable to reopen the segment queue in "+root, ex);
+			}
+		}
+	}
+
+	//Count a change and write a checkpoint if enough changes
+	//have accumulated or the last checkpoint is old enough.
+	private void changed() throws IOException {
+		changes++;
+		if ((changes >= checkpointChanges)
+				|| (System.currentTimeMillis() - lastCheckpoint >= checkpointInterval)) {
+			writeCheckpoint();
+		}
+	}
+
+	//Open the queue, replaying the index entries after the checkpoint.
+	private void open() throws Exception {
+		int[] segments = listSegments();
+		checkpoint = new RandomAccessFile(new File(root, checkpointName), "rw");
+		int cpHead = -1;
+		long cpRecord = 0;
+		int cpTail = -1;
+		long cpTailRecords = 0;
+		if (checkpoint.length() >= checkpointSize) {
+			checkpoint.seek(0);
+			if (checkpoint.readInt() == checkpointVersion) {
+				cpHead = checkpoint.readInt();
+				cpRecord = checkpoint.readLong();
+				cpTail = checkpoint.readInt();
+				cpTailRecords = checkpoint.readLong();
+			}
+		}
+
+		//Delete any segments that were exhausted before the checkpoint was written.
+		int first = -1;
+		int last = -1;
+		for (int seg : segments) {
+			if (seg < cpHead) {
+				new File(root, getName(seg, ".seg")).delete();
+				new File(root, getName(seg, ".idx")).delete();
+			}
+			else {
+				if (first == -1) first = seg;
+				last = seg;
+			}
+		}
+
+		//Replay the remaining segments. The entries which were committed by
+		//the checkpoint are trusted; the others must match their data. At the
+		//first entry which does not, the segment is truncated and any later
+		//segments are deleted.
+		if (first != -1) {
+			boolean truncated = false;
+			for (int seg : segments) {
+				if (seg < first) continue;
+				if (truncated) {
+					new File(root, getName(seg, ".seg")).delete();
+					new File(root, getName(seg, ".idx")).delete();
+				}
+				else {
+					long committed = (seg < cpTail) ? Long.MAX_VALUE : ((seg == cpTail) ? cpTailRecords : 0);
+					truncated = replay(seg, committed);
+					last = seg;
+				}
+			}
+		}
+
+		if (first == -1) {
+			openTail(0);
+			openHead(0, 0);
+		}
+		else {
+			if (first != cpHead) cpRecord = 0;
+			openTail(last);
+			openHead(first, cpRecord);
+		}
+		writeCheckpoint();
+		recount();
+		logger.info(root+": segment queue opened with "+size+" objects");
+	}
+
+	//Check the index entries of a segment, keeping the leading entries
+	//which are committed or whose data is present and matches the CRC.
+	//Truncate the index and the data after the last entry which is kept.
+	//Return true if any complete entry was discarded.
+	private boolean replay(int seg, long committed) throws IOException {
+		RandomAccessFile index = new RandomAccessFile(new File(root, getName(seg, ".idx")), "rw");
+		RandomAccessFile data = new RandomAccessFile(new File(root, getName(seg, ".seg")), "rw");
+		try {
+			long records = index.length() / indexEntrySize;
+			long dataLength = data.length();
+			long end = 0;
+			long n;
+			for (n=0; n<records; n++) {
+				ByteBuffer entry = readEntry(index, n);
+				long offset = entry.getLong(0);
+				long length = entry.getLong(8);
+				if ((offset < end) || (length <= 0) || (offset + length > dataLength)) break;
+				if (n >= committed) {
+					CRC32 crc = new CRC32();
+					data.seek(offset);
+					long k = 0;
+					while (k < length) {
+						int r = data.read(buffer, 0, (int)Math.min(buffer.length, length - k));
+						if (r <= 0) break;
+						crc.update(buffer, 0, r);
+						k += r;
+					}
+					if ((k < length) || (crc.getValue() != entry.getLong(24))) break;
+				}
+				end = offset + length;
+			}
+			if (n < records) {
+				logger.warn(root+": discarded "+(records-n)+" uncommitted objects from segment "+seg);
+			}
+			if (index.length() != n * indexEntrySize) index.setLength(n * indexEntrySize);
+			if (dataLength > end) data.setLength(end);
+			return (n < records);
+		}
+		finally {
+			close(index);
+			close(data);
+		}
+	}
+
+	//Get the number of index entries in a segment.
+	private long getRecords(int seg) throws IOException {
+		if (seg == tailSegment) return tailRecords;
+		return headIndex.length() / indexEntrySize;
+	}
+
+	//Read an index entry.
+	private static ByteBuffer readEntry(RandomAccessFile index, long record) throws IOException {
+		ByteBuffer entry = ByteBuffer.allocate(indexEntrySize);
+		FileChannel channel = index.getChannel();
+		long position = record * indexEntrySize;
+		while (entry.hasRemaining()) {
+			if (channel.read(entry, position + entry.position()) <= 0) {
+				throw new EOFException("Incomplete index entry "+record);
+			}
+		}
+		return entry;
+	}
+
+	//Open a segment as the head of the queue.
+	private void openHead(int seg, long record) throws Exception {
+		headSegment = seg;
+		headRecord = record;
+		if (seg == tailSegment && tailData != null) {
+			headData = tailData;
+			headIndex = tailIndex;
+		}
+		else {
+			headData = new RandomAccessFile(new File(root, getName(seg, ".seg")), "rw");
+			headIndex = new RandomAccessFile(new File(root, getName(seg, ".idx")), "rw");
+		}
+	}
+
+	//Open a segment as the tail of the queue. The previous tail
+	//segment is forced to the disk before it is closed, so every
+	//segment before the tail is committed.
+	private void openTail(int seg) throws Exception {
+		if (tailData != null) {
+			tailData.getChannel().force(false);
+			tailIndex.getChannel().force(false);
+			if (tailData != headData) {
+				close(tailData);
+				close(tailIndex);
+			}
+		}
+		tailSegment = seg;
+		tailData = new RandomAccessFile(new File(root, getName(seg, ".seg")), "rw");
+		tailIndex = new RandomAccessFile(new File(root, getName(seg, ".idx")), "rw");
+		tailRecords = tailIndex.length() / indexEntrySize;
+	}
+
+	//Force the data and the index of the tail segment to the disk, then
+	//record and force the position of the head of the queue and the
+	//number of committed entries in the tail segment.
+	private void writeCheckpoint() throws IOException {
+		tailData.getChannel().force(false);
+		tailIndex.getChannel().force(false);
+		ByteBuffer bb = ByteBuffer.allocate(checkpointSize);
+		bb.putInt(checkpointVersion);
+		bb.putInt(headSegment);
+		bb.putLong(headRecord);
+		bb.putInt(tailSegment);
+		bb.putLong(tailRecords);
+		bb.flip();
+		FileChannel channel = checkpoint.getChannel();
+		write(channel, bb, 0);
+		channel.force(false);
+		changes = 0;
+		lastCheckpoint = System.currentTimeMillis();
+	}
+
+	//Get the numbers of the segments in the root directory, in order.
+	private int[] listSegments() {
+		File[] files = root.listFiles();
+		int[] segs = new int[files.length];
+		int n = 0;
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(".idx") && segmentName.matcher(name).matches()) {
+				segs[n++] = Integer.parseInt(name.substring(0, name.length() - 4));
+			}
+		}
+		segs = Arrays.copyOf(segs, n);
+		Arrays.sort(segs);
+		return segs;
+	}
+
+	//Copy bytes from a stream to a position in a channel, updating a CRC.
+	//Throw an EOFException if the stream ends before all the bytes are copied.
+	private void copy(InputStream in, FileChannel out, long position, long length, CRC32 crc) throws IOException {
+		long n = 0;
+		while (n < length) {
+			int k = in.read(buffer, 0, (int)Math.min(buffer.length, length - n));
+			if (k <= 0) throw new EOFException("Source ended after "+n+" of "+length+" bytes");
+			crc.update(buffer, 0, k);
+			write(out, ByteBuffer.wrap(buffer, 0, k), position + n);
+			n += k;
+		}
+	}
+
+	//Copy bytes from the current position of a segment to a stream.
+	//Throw an EOFException if the segment ends before all the bytes are copied.
+	private void copy(RandomAccessFile in, OutputStream out, long length) throws IOException {
+		long n = 0;
+		while (n < length) {
+			int k = in.read(buffer, 0, (int)Math.min(buffer.length, length - n));
+			if (k <= 0) throw new EOFException("Segment ended after "+n+" of "+length+" bytes");
+			out.write(buffer, 0, k);
+			n += k;
+		}
+	}
+
+	//Write all the remaining bytes of a buffer to a position in a channel.
+	private static void write(FileChannel channel, ByteBuffer bb, long position) throws IOException {
+		long start = position - bb.position();
+		while (bb.hasRemaining()) channel.write(bb, start + bb.position());
+	}
+
+	//Close a RandomAccessFile, ignoring any exception.
+	private static void close(RandomAccessFile raf) {
+		if (raf != null) {
+			try { raf.close(); }
+			catch (Exception ignore) { }
+		}
+	}
+
+	//Make the name of a segment file.
+	private String getName(int seg, String ext) {
+		return String.format("%010d", seg) + ext;
+	}
+
+	//A Thread to write a checkpoint when the queue has been
+	//changed but no checkpoint has been written for a while.
+	class Checkpointer extends Thread {
+		public Checkpointer() {
+			super("SegmentQueueManager Checkpointer: "+root);
+			setDaemon(true);
+		}
+		public void run() {
+			try {
+				while (!interrupted()) {
+					sleep(checkpointInterval);
+					sync();
+				}
+			}
+			catch (InterruptedException done) { }
+		}
+	}
+
+}
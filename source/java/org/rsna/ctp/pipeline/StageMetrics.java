@@ -0,0 +1,256 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.pipeline;
+
+import java.io.File;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The performance measurements of one pipeline stage: a histogram of the
+ * time spent in the stage's process, store, or export method, the numbers
+ * of objects and bytes passed to the stage, the number of objects the stage
+ * quarantined, and the rates of objects and bytes over the last minute.
+ * The measurements are recorded by the Pipeline, so they do not depend
+ * on the stage's own timing. Stages can record additional named counters
+ * and histograms (for example, the round-trip times of an ExportService).
+ * <p>
+ * The name, ID, and root of the stage are captured when the metrics are
+ * created, so none of the methods of this class take the stage's lock.
+ */
+public class StageMetrics {
+
+	static final int window = 60;
+
+	private final String pipelineName;
+	private final PipelineStage stage;
+	private final String stageName;
+	private final String stageID;
+	private final File stageRoot;
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final AtomicLong objects = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong quarantined = new AtomicLong();
+	private final AtomicLongArray slotSecond = new AtomicLongArray(window);
+	private final AtomicLongArray slotObjects = new AtomicLongArray(window);
+	private final AtomicLongArray slotBytes = new AtomicLongArray(window);
+	private final long startTime = System.currentTimeMillis();
+	private final ConcurrentHashMap<String,AtomicLong> counters = new ConcurrentHashMap<String,AtomicLong>();
+	private final ConcurrentHashMap<String,LatencyHistogram> histograms = new ConcurrentHashMap<String,LatencyHistogram>();
+
+	/**
+	 * Create the metrics for a stage.
+	 * @param pipelineName the name of the pipeline containing the stage.
+	 * @param stage the stage.
+	 */
+	public StageMetrics(String pipelineName, PipelineStage stage) {
+		this.pipelineName = pipelineName;
+		this.stage = stage;
+		this.stageName = stage.getName();
+		this.stageID = stage.getID();
+		this.stageRoot = stage.getRoot();
+	}
+
+	/**
+	 * Record one call to the stage.
+	 * @param nanos the time in nanoseconds spent in the stage.
+	 * @param length the length in bytes of the object.
+	 * @param wasQuarantined true if the stage quarantined the object.
+	 */
+	public void record(long nanos, long length, boolean wasQuarantined) {
+		latency.record(nanos);
+		objects.incrementAndGet();
+		bytes.addAndGet(length);
+		if (wasQuarantined) quarantined.incrementAndGet();
+
+		//Count the object in the slot for the current second,
+		//clearing the slot if it was last used in an earlier minute.
+		long second = System.currentTimeMillis() / 1000;
+		int slot = (int)(second % window);
+		long s = slotSecond.get(slot);
+		if ((s != second) && slotSecond.compareAndSet(slot, s, second)) {
+			slotObjects.set(slot, 0);
+			slotBytes.set(slot, 0);
+		}
+		slotObjects.incrementAndGet(slot);
+		slotBytes.addAndGet(slot, length);
+	}
+
+	/**
+	 * Get the name of the pipeline containing the stage.
+	 * @return the pipeline name.
+	 */
+	public String getPipelineName() {
+		return pipelineName;
+	}
+
+	/**
+	 * Get the stage.
+	 * @return the stage whose metrics these are.
+	 */
+	public PipelineStage getStage() {
+		return stage;
+	}
+
+	/**
+	 * Get the name of the stage.
+	 * @return the name of the stage.
+	 */
+	public String getStageName() {
+		return stageName;
+	}
+
+	/**
+	 * Get the ID of the stage.
+	 * @return the ID of the stage, or the empty string if it has none.
+	 */
+	public String getStageID() {
+		return (stageID != null) ? stageID : "";
+	}
+
+	/**
+	 * Get the root directory of the stage.
+	 * @return the root directory, or null if the stage has none.
+	 */
+	public File getStageRoot() {
+		return stageRoot;
+	}
+
+	/**
+	 * Add to a named counter of the stage, creating the counter if necessary.
+	 * @param name the name of the counter.
+	 * @param delta the amount to add.
+	 */
+	public void count(String name, long delta) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			AtomicLong newCounter = new AtomicLong();
+			counter = counters.putIfAbsent(name, newCounter);
+			if (counter == null) counter = newCounter;
+		}
+		counter.addAndGet(delta);
+	}
+
+	/**
+	 * Get the values of the named counters of the stage.
+	 * @return a map from counter name to value, sorted by name.
+	 */
+	public Map<String,Long> getCounters() {
+		TreeMap<String,Long> map = new TreeMap<String,Long>();
+		for (Map.Entry<String,AtomicLong> entry : counters.entrySet()) {
+			map.put(entry.getKey(), entry.getValue().get());
+		}
+		return map;
+	}
+
+	/**
+	 * Get a named histogram of the stage, creating it if necessary.
+	 * @param name the name of the histogram.
+	 * @return the histogram.
+	 */
+	public LatencyHistogram getHistogram(String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		if (histogram == null) {
+			LatencyHistogram newHistogram = new LatencyHistogram();
+			histogram = histograms.putIfAbsent(name, newHistogram);
+			if (histogram == null) histogram = newHistogram;
+		}
+		return histogram;
+	}
+
+	/**
+	 * Get the named histograms of the stage.
+	 * @return a map from histogram name to histogram, sorted by name.
+	 */
+	public Map<String,LatencyHistogram> getHistograms() {
+		return new TreeMap<String,LatencyHistogram>(histograms);
+	}
+
+	/**
+	 * Get the latency histogram of the stage.
+	 * @return the histogram of the time in nanoseconds spent in the stage.
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Get the number of objects passed to the stage.
+	 * @return the number of objects.
+	 */
+	public long getObjectCount() {
+		return objects.get();
+	}
+
+	/**
+	 * Get the number of bytes passed to the stage.
+	 * @return the number of bytes.
+	 */
+	public long getByteCount() {
+		return bytes.get();
+	}
+
+	/**
+	 * Get the number of objects quarantined by the stage.
+	 * @return the number of objects quarantined.
+	 */
+	public long getQuarantineCount() {
+		return quarantined.get();
+	}
+
+	/**
+	 * Get the rate at which objects were passed to the stage
+	 * over the last minute.
+	 * @return the number of objects per second.
+	 */
+	public double getObjectsPerSecond() {
+		return getRate(slotObjects);
+	}
+
+	/**
+	 * Get the rate at which bytes were passed to the stage
+	 * over the last minute.
+	 * @return the number of bytes per second.
+	 */
+	public double getBytesPerSecond() {
+		return getRate(slotBytes);
+	}
+
+	//Sum the complete seconds in the window and divide by the time covered.
+	private double getRate(AtomicLongArray slots) {
+		long now = System.currentTimeMillis() / 1000;
+		long total = 0;
+		for (int i=0; i<window; i++) {
+			long s = slotSecond.get(i);
+			if ((s < now) && (s >= now - window)) total += slots.get(i);
+		}
+		long seconds = Math.min(window, Math.max(now - startTime / 1000, 1));
+		return (double)total / seconds;
+	}
+
+	/**
+	 * Clear all the measurements.
+	 */
+	public void reset() {
+		latency.reset();
+		objects.set(0);
+		bytes.set(0);
+		quarantined.set(0);
+		for (AtomicLong counter : counters.values()) counter.set(0);
+		for (LatencyHistogram histogram : histograms.values()) histogram.reset();
+		for (int i=0; i<window; i++) {
+			slotSecond.set(i, 0);
+			slotObjects.set(i, 0);
+			slotBytes.set(i, 0);
+		}
+	}
+
+}
@@ -0,0 +1,250 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.servlets;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.Configuration;
+import org.rsna.ctp.pipeline.AbstractExportService;
+import org.rsna.ctp.pipeline.Backpressure;
+import org.rsna.ctp.pipeline.ImportService;
+import org.rsna.ctp.pipeline.LatencyHistogram;
+import org.rsna.ctp.pipeline.MetricsRegistry;
+import org.rsna.ctp.pipeline.Pipeline;
+import org.rsna.ctp.pipeline.PipelineStage;
+import org.rsna.ctp.pipeline.Quarantine;
+import org.rsna.ctp.pipeline.QueueManager;
+import org.rsna.ctp.pipeline.RateController;
+import org.rsna.ctp.pipeline.StageMetrics;
+import org.rsna.server.HttpRequest;
+import org.rsna.server.HttpResponse;
+import org.rsna.servlets.Servlet;
+
+/**
+ * The MetricsServlet. This implementation returns the metrics of the
+ * pipelines, their stages and queues, the quarantines, and the JVM in
+ * the OpenMetrics text format for monitoring systems.
+ * <p>
+ * The values are obtained from the MetricsRegistry, the QueueManagers,
+ * and the Quarantines without calling any synchronized method of a
+ * pipeline or a stage, so a scrape never waits for a busy stage.
+ */
+public class MetricsServlet extends Servlet {
+
+	static final Logger logger = Logger.getLogger(MetricsServlet.class);
+
+	static final String contentType = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+	static final double[] quantiles = { 0.5, 0.95, 0.99 };
+
+	/**
+	 * Construct a MetricsServlet.
+	 * @param root the root directory of the server.
+	 * @param context the path identifying the servlet.
+	 */
+	public MetricsServlet(File root, String context) {
+		super(root, context);
+	}
+
+	/**
+	 * The GET handler: return the metrics in the OpenMetrics text format.
+	 * @param req the request object
+	 * @param res the response object
+	 */
+	public void doGet(HttpRequest req, HttpResponse res) {
+		StringBuilder sb = new StringBuilder(16384);
+		List<StageMetrics> stages = MetricsRegistry.getInstance().getStageMetrics();
+		addPipelineMetrics(sb);
+		addStageMetrics(sb, stages);
+		addQueueMetrics(sb);
+		addQuarantineMetrics(sb);
+		addDiskMetrics(sb, stages);
+		addJvmMetrics(sb);
+		sb.append("# EOF\n");
+
+		res.disableCaching();
+		res.setHeader("Content-Type", contentType);
+		res.write(sb.toString());
+		res.send();
+	}
+
+	//Per-pipeline counters
+	private void addPipelineMetrics(StringBuilder sb) {
+		List<Pipeline> pipelines = Configuration.getInstance().getPipelines();
+		type(sb, "ctp_pipeline_objects", "counter", "Objects processed by the pipeline");
+		for (Pipeline pipe : pipelines) {
+			sample(sb, "ctp_pipeline_objects_total", labels("pipeline", pipe.getName()), pipe.getObjectCount());
+		}
+		type(sb, "ctp_pipeline_worker_lane_depth", "gauge", "Objects waiting in the worker lanes of the pipeline");
+		for (Pipeline pipe : pipelines) {
+			sample(sb, "ctp_pipeline_worker_lane_depth", labels("pipeline", pipe.getName()), pipe.getWorkerLaneDepth());
+		}
+		Backpressure backpressure = Backpressure.getInstance();
+		type(sb, "ctp_backpressure_engaged", "gauge", "1 if the importers are refusing objects");
+		sample(sb, "ctp_backpressure_engaged", "", backpressure.isEngaged() ? 1 : 0);
+	}
+
+	//Per-stage counters, latencies, and export round-trip times
+	private void addStageMetrics(StringBuilder sb, List<StageMetrics> stages) {
+		type(sb, "ctp_stage_objects", "counter", "Objects passed to the stage");
+		for (StageMetrics sm : stages) {
+			if (sm.getStage() instanceof ImportService) continue;
+			sample(sb, "ctp_stage_objects_total", stageLabels(sm), sm.getObjectCount());
+		}
+		type(sb, "ctp_stage_bytes", "counter", "Bytes passed to the stage");
+		for (StageMetrics sm : stages) {
+			if (sm.getStage() instanceof ImportService) continue;
+			sample(sb, "ctp_stage_bytes_total", stageLabels(sm), sm.getByteCount());
+		}
+		type(sb, "ctp_stage_quarantined", "counter", "Objects quarantined by the stage");
+		for (StageMetrics sm : stages) {
+			if (sm.getStage() instanceof ImportService) continue;
+			sample(sb, "ctp_stage_quarantined_total", stageLabels(sm), sm.getQuarantineCount());
+		}
+		type(sb, "ctp_stage_latency_seconds", "summary", "Time spent in the stage's process, store, or export method");
+		for (StageMetrics sm : stages) {
+			if (sm.getStage() instanceof ImportService) continue;
+			summary(sb, "ctp_stage_latency_seconds", stageLabels(sm), sm.getLatency());
+		}
+		type(sb, "ctp_stage_events", "counter", "Events counted by the stage");
+		for (StageMetrics sm : stages) {
+			for (Map.Entry<String,Long> entry : sm.getCounters().entrySet()) {
+				String labels = stageLabels(sm) + "," + labels("event", entry.getKey());
+				sample(sb, "ctp_stage_events_total", labels, entry.getValue().longValue());
+			}
+		}
+		type(sb, "ctp_export_round_trip_seconds", "summary", "Round-trip time of export calls to the destination");
+		for (StageMetrics sm : stages) {
+			LatencyHistogram h = sm.getHistograms().get(MetricsRegistry.exportHistogram);
+			if (h != null) summary(sb, "ctp_export_round_trip_seconds", stageLabels(sm), h);
+		}
+		type(sb, "ctp_export_window", "gauge", "Concurrent exports allowed by the adaptive rate controller");
+		for (StageMetrics sm : stages) {
+			RateController rc = getRateController(sm);
+			if (rc != null) sample(sb, "ctp_export_window", stageLabels(sm), rc.getWindow());
+		}
+		type(sb, "ctp_export_rate_limit", "gauge", "Exports per second allowed by the adaptive rate controller (0 = unlimited)");
+		for (StageMetrics sm : stages) {
+			RateController rc = getRateController(sm);
+			if (rc != null) sample(sb, "ctp_export_rate_limit", stageLabels(sm), rc.getRate());
+		}
+	}
+
+	private RateController getRateController(StageMetrics sm) {
+		PipelineStage stage = sm.getStage();
+		if (stage instanceof AbstractExportService) {
+			return ((AbstractExportService)stage).getRateController();
+		}
+		return null;
+	}
+
+	//Queue depths and the age of the oldest object in each queue
+	private void addQueueMetrics(StringBuilder sb) {
+		List<QueueManager> queues = QueueManager.getQueueManagers();
+		long now = System.currentTimeMillis();
+		type(sb, "ctp_queue_depth", "gauge", "Objects in the queue");
+		for (QueueManager qm : queues) {
+			sample(sb, "ctp_queue_depth", labels("queue", qm.getRoot().getPath()), qm.size());
+		}
+		type(sb, "ctp_queue_oldest_age_seconds", "gauge", "Age of the object at the head of the queue");
+		for (QueueManager qm : queues) {
+			long age = 0;
+			if (qm.size() > 0) {
+				long time = qm.getOldestFileTime();
+				if (time > 0) age = Math.max(now - time, 0);
+			}
+			sample(sb, "ctp_queue_oldest_age_seconds", labels("queue", qm.getRoot().getPath()), age / 1000.0);
+		}
+	}
+
+	//Quarantine sizes
+	private void addQuarantineMetrics(StringBuilder sb) {
+		type(sb, "ctp_quarantine_files", "gauge", "Files in the quarantine");
+		for (Quarantine q : Quarantine.getQuarantines()) {
+			sample(sb, "ctp_quarantine_files", labels("quarantine", q.getDirectory().getPath()), q.getCount());
+		}
+	}
+
+	//Free space on the file systems of the stage roots
+	private void addDiskMetrics(StringBuilder sb, List<StageMetrics> stages) {
+		type(sb, "ctp_disk_free_bytes", "gauge", "Usable space on the file system of the stage root");
+		HashSet<String> paths = new HashSet<String>();
+		for (StageMetrics sm : stages) {
+			File root = sm.getStageRoot();
+			if ((root != null) && paths.add(root.getPath())) {
+				sample(sb, "ctp_disk_free_bytes", labels("root", root.getPath()), root.getUsableSpace());
+			}
+		}
+	}
+
+	//Heap and garbage collection
+	private void addJvmMetrics(StringBuilder sb) {
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		type(sb, "jvm_memory_heap_used_bytes", "gauge", "Heap in use");
+		sample(sb, "jvm_memory_heap_used_bytes", "", heap.getUsed());
+		type(sb, "jvm_memory_heap_committed_bytes", "gauge", "Heap committed");
+		sample(sb, "jvm_memory_heap_committed_bytes", "", heap.getCommitted());
+		type(sb, "jvm_memory_heap_max_bytes", "gauge", "Maximum heap");
+		sample(sb, "jvm_memory_heap_max_bytes", "", heap.getMax());
+		List<GarbageCollectorMXBean> gcs = ManagementFactory.getGarbageCollectorMXBeans();
+		type(sb, "jvm_gc_collections", "counter", "Garbage collections");
+		for (GarbageCollectorMXBean gc : gcs) {
+			sample(sb, "jvm_gc_collections_total", labels("gc", gc.getName()), Math.max(gc.getCollectionCount(), 0));
+		}
+		type(sb, "jvm_gc_collection_seconds", "counter", "Time spent in garbage collection");
+		for (GarbageCollectorMXBean gc : gcs) {
+			sample(sb, "jvm_gc_collection_seconds_total", labels("gc", gc.getName()), Math.max(gc.getCollectionTime(), 0) / 1000.0);
+		}
+		type(sb, "jvm_threads", "gauge", "Live threads");
+		sample(sb, "jvm_threads", "", ManagementFactory.getThreadMXBean().getThreadCount());
+	}
+
+	private void summary(StringBuilder sb, String name, String labels, LatencyHistogram h) {
+		for (double q : quantiles) {
+			String qLabels = labels + "," + labels("quantile", Double.toString(q));
+			sample(sb, name, qLabels, h.getPercentile(q * 100.0) / 1.0e9);
+		}
+		sample(sb, name + "_sum", labels, h.getTotal() / 1.0e9);
+		sample(sb, name + "_count", labels, h.getCount());
+	}
+
+	private void type(StringBuilder sb, String name, String type, String help) {
+		sb.append("# TYPE ").append(name).append(" ").append(type).append("\n");
+		sb.append("# HELP ").append(name).append(" ").append(help).append("\n");
+	}
+
+	private void sample(StringBuilder sb, String name, String labels, long value) {
+		sb.append(name);
+		if (!labels.equals("")) sb.append("{").append(labels).append("}");
+		sb.append(" ").append(value).append("\n");
+	}
+
+	private void sample(StringBuilder sb, String name, String labels, double value) {
+		sb.append(name);
+		if (!labels.equals("")) sb.append("{").append(labels).append("}");
+		sb.append(" ").append(value).append("\n");
+	}
+
+	private String stageLabels(StageMetrics sm) {
+		return labels("pipeline", sm.getPipelineName())
+				+ "," + labels("stage", sm.getStageName())
+				+ "," + labels("id", sm.getStageID());
+	}
+
+	private String labels(String name, String value) {
+		if (value == null) value = "";
+		value = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+		return name + "=\"" + value + "\"";
+	}
+
+}
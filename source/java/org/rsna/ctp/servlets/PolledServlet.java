@@ -71,7 +71,7 @@ public class PolledServlet extends Servlet {
 				logger.debug("...transmission failed for "+next);
 				//Something went wrong. Requeue the file and
 				//delete it from its temporary location.
-				phes.getQueueManager().enqueue(next);
+				phes.getQueueManager().enqueue(next, false);
 				next.delete();
 			}
 		}
@@ -14,6 +14,7 @@ import java.net.URLEncoder;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.XmlObject;
 import org.rsna.ctp.pipeline.AbstractExportService;
+import org.rsna.ctp.pipeline.ConcurrentStage;
 import org.rsna.ctp.pipeline.Status;
 import org.rsna.util.Base64;
 import org.rsna.util.FileUtil;
@@ -25,7 +26,7 @@ import org.w3c.dom.Element;
 /**
  * An ExportService that exports XmlObjects to an AIM Data Service.
  */
-public class AimExportService extends AbstractExportService {
+public class AimExportService extends AbstractExportService implements ConcurrentStage {
 
 	static final Logger logger = Logger.getLogger(AimExportService.class);
 
@@ -80,7 +81,7 @@ public class AimExportService extends AbstractExportService {
 	 * @param fileToExport the file to export.
 	 * @return the status of the attempt to export the file.
 	 */
-	public synchronized Status export(File fileToExport) {
+	public Status export(File fileToExport) {
 		HttpURLConnection conn;
 		OutputStream svros;
 		OutputStreamWriter writer;
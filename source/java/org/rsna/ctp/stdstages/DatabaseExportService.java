@@ -20,6 +20,9 @@ import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.objects.XmlObject;
 import org.rsna.ctp.objects.ZipObject;
 import org.rsna.ctp.pipeline.AbstractQueuedExportService;
+import org.rsna.ctp.pipeline.ConcurrentStage;
+import org.rsna.ctp.pipeline.LatencyHistogram;
+import org.rsna.ctp.pipeline.MetricsRegistry;
 import org.rsna.ctp.pipeline.PipelineStage;
 import org.rsna.ctp.pipeline.QueueManager;
 import org.rsna.ctp.pipeline.Status;
@@ -39,7 +42,7 @@ import org.w3c.dom.Element;
 /**
  * The Thread that exports FileObjects to a database.
  */
-public class DatabaseExportService extends AbstractQueuedExportService {
+public class DatabaseExportService extends AbstractQueuedExportService implements ConcurrentStage {
 
 	static final Logger logger = Logger.getLogger(DatabaseExportService.class);
 
@@ -155,6 +158,7 @@ public class DatabaseExportService extends AbstractQueuedExportService {
 		public void run() {
 			logger.info(name+": Exporter["+id+"]: Started");
 			File file = null;
+			LatencyHistogram exportTimes = MetricsRegistry.getExportTimes(DatabaseExportService.this);
 
 			while (!stop && !interrupted()) {
 				try {
@@ -163,6 +167,7 @@ public class DatabaseExportService extends AbstractQueuedExportService {
 							long startTime = System.nanoTime();
 							Status result = export(file);
 							lastElapsedTime = System.nanoTime() - startTime;
+							if (exportTimes != null) exportTimes.record(lastElapsedTime);
 							if (result.equals(Status.FAIL)) {
 								//Something is wrong with the file.
 								//Log a warning and quarantine the file.
@@ -177,9 +182,8 @@ public class DatabaseExportService extends AbstractQueuedExportService {
 								//Note that the file has been removed from the queue,
 								//so it is necessary to requeue it. This has the
 								//effect of moving it to the end of the queue.
-								getQueueManager().enqueue(file);
-								//Note that enqueuing a file does not delete it
-								//from the source location, so we must delete it.
+								//The file is moved back into the queue if possible.
+								getQueueManager().enqueue(file, false);
 								file.delete();
 								break;
 							}
@@ -188,12 +192,6 @@ public class DatabaseExportService extends AbstractQueuedExportService {
 						dba.disconnect();
 					}
 					if (!stop) sleep(interval);
-					//Recount the queue in case it has been corrupted by
-					//someone copying files into the queue directories by hand.
-					//To keep from doing this when it doesn't really matter and
-					//it might take a long time, only do it when the remaining
-					//queue is small.
-					if (!stop && (id == 0) && (getQueueSize() < 10)) recount();
 				}
 				catch (Exception e) { break; }
 			}
@@ -10,12 +10,15 @@ package org.rsna.ctp.stdstages;
 import java.io.File;
 import java.io.FileInputStream;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Properties;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.Configuration;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.pipeline.AbstractPipelineStage;
+import org.rsna.ctp.pipeline.ConcurrentStage;
+import org.rsna.ctp.pipeline.FusibleStage;
 import org.rsna.ctp.pipeline.Processor;
 import org.rsna.ctp.servlets.SummaryLink;
 import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
@@ -23,6 +26,8 @@ import org.rsna.ctp.stdstages.anonymizer.IntegerTable;
 import org.rsna.ctp.stdstages.anonymizer.LookupTable;
 import org.rsna.ctp.stdstages.anonymizer.dicom.DAScript;
 import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizer;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizerProfile;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMRewriter;
 import org.rsna.server.User;
 import org.rsna.util.FileUtil;
 import org.w3c.dom.Element;
@@ -30,7 +35,7 @@ import org.w3c.dom.Element;
 /**
  * The DicomAnonymizer pipeline stage class.
  */
-public class DicomAnonymizer extends AbstractPipelineStage implements Processor, Scriptable, ScriptableDicom, SupportsLookup {
+public class DicomAnonymizer extends AbstractPipelineStage implements Processor, Scriptable, ScriptableDicom, SupportsLookup, ConcurrentStage, DicomRewriteStage {
 
 	static final Logger logger = Logger.getLogger(DicomAnonymizer.class);
 
@@ -149,12 +154,13 @@ public class DicomAnonymizer extends AbstractPipelineStage implements Processor,
 				//Okay, anonymize the object
 				File file = fileObject.getFile();
 				DAScript dascript = DAScript.getInstance(scriptFile);
-				Properties script = dascript.toProperties();
+				DICOMAnonymizerProfile profile = dascript.getProfile();
 				Properties lookup = LookupTable.getProperties(lookupTableFile);
 				AnonymizerStatus status =
-							DICOMAnonymizer.anonymize(file, file, script, lookup, intTable, false, false);
+							DICOMAnonymizer.anonymize(file, file, profile, lookup, intTable, false, false);
 				if (status.isOK()) {
-					fileObject = FileObject.getInstance(file);
+					fileObject = status.getObject();
+					if (fileObject == null) fileObject = FileObject.getInstance(file);
 				}
 				else if (status.isQUARANTINE()) {
 					if (quarantine != null) quarantine.insert(fileObject);
@@ -169,6 +175,54 @@ public class DicomAnonymizer extends AbstractPipelineStage implements Processor,
 		return fileObject;
 	}
 
+	//Implement the FusibleStage interface
+	/**
+	 * Determine whether this stage can be added to a run of fused stages.
+	 * @param run the stages already in the run.
+	 * @return true if the stages in the run are DicomRewriteStages.
+	 */
+	public boolean canFuseWith(List<FusibleStage> run) {
+		return FusedDicomRewrite.canFuse(run);
+	}
+
+	/**
+	 * Process an object through a run of fused stages, starting
+	 * with this one, parsing and writing the object once.
+	 * @param fileObject the object to process.
+	 * @param run the stages of the run.
+	 * @param quarantined the array in which the stage that
+	 * quarantined the object is flagged.
+	 * @return the processed object, or null if it was quarantined.
+	 */
+	public FileObject processFused(FileObject fileObject, FusibleStage[] run, boolean[] quarantined) {
+		return FusedDicomRewrite.process(fileObject, run, quarantined);
+	}
+
+	//Implement the DicomRewriteStage interface
+	/**
+	 * Anonymize an object being rewritten by a run of fused stages.
+	 * @param rewriter the rewriter of the object.
+	 * @return the status of the anonymization.
+	 */
+	public AnonymizerStatus rewrite(DICOMRewriter rewriter) {
+		DicomObject dob = rewriter.getDicomObject();
+		lastFileIn = new File(dob.getFile().getAbsolutePath());
+		lastTimeIn = System.currentTimeMillis();
+
+		AnonymizerStatus status = AnonymizerStatus.SKIP(dob.getFile(), "");
+		if ( (scriptFile != null) && dob.matches(dicomScriptFile) ) {
+			DAScript dascript = DAScript.getInstance(scriptFile);
+			DICOMAnonymizerProfile profile = dascript.getProfile();
+			Properties lookup = LookupTable.getProperties(lookupTableFile);
+			status = rewriter.anonymize(profile, lookup, intTable);
+		}
+		if (!status.isQUARANTINE()) {
+			lastFileOut = lastFileIn;
+			lastTimeOut = System.currentTimeMillis();
+		}
+		return status;
+	}
+
 	/**
 	 * Stop the pipeline stage.
 	 */
@@ -9,14 +9,18 @@ package org.rsna.ctp.stdstages;
 
 import java.io.File;
 import java.util.LinkedList;
+import java.util.List;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.pipeline.AbstractPipelineStage;
+import org.rsna.ctp.pipeline.ConcurrentStage;
+import org.rsna.ctp.pipeline.FusibleStage;
 import org.rsna.ctp.servlets.SummaryLink;
 import org.rsna.ctp.pipeline.Processor;
 import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
 import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMCorrector;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMRewriter;
 import org.rsna.server.User;
 import org.rsna.util.FileUtil;
 import org.w3c.dom.Element;
@@ -24,7 +28,7 @@ import org.w3c.dom.Element;
 /**
  * The DicomCorrector pipeline stage class.
  */
-public class DicomCorrector extends AbstractPipelineStage implements Processor, Scriptable {
+public class DicomCorrector extends AbstractPipelineStage implements Processor, Scriptable, ConcurrentStage, DicomRewriteStage {
 
 	static final Logger logger = Logger.getLogger(DicomCorrector.class);
 
@@ -79,7 +83,8 @@ public class DicomCorrector extends AbstractPipelineStage implements Processor,
 												   quarantineUncorrectedMismatches, 
 												   logUncorrectedMismatches);
 				if (status.isOK()) {
-					fileObject = FileObject.getInstance(file);
+					fileObject = status.getObject();
+					if (fileObject == null) fileObject = FileObject.getInstance(file);
 				}
 				else if (status.isQUARANTINE()) {
 					if (quarantine != null) quarantine.insert(fileObject);
@@ -96,6 +101,51 @@ public class DicomCorrector extends AbstractPipelineStage implements Processor,
 		return fileObject;
 	}
 
+	//Implement the FusibleStage interface
+	/**
+	 * Determine whether this stage can be added to a run of fused stages.
+	 * @param run the stages already in the run.
+	 * @return true if the stages in the run are DicomRewriteStages.
+	 */
+	public boolean canFuseWith(List<FusibleStage> run) {
+		return FusedDicomRewrite.canFuse(run);
+	}
+
+	/**
+	 * Process an object through a run of fused stages, starting
+	 * with this one, parsing and writing the object once.
+	 * @param fileObject the object to process.
+	 * @param run the stages of the run.
+	 * @param quarantined the array in which the stage that
+	 * quarantined the object is flagged.
+	 * @return the processed object, or null if it was quarantined.
+	 */
+	public FileObject processFused(FileObject fileObject, FusibleStage[] run, boolean[] quarantined) {
+		return FusedDicomRewrite.process(fileObject, run, quarantined);
+	}
+
+	//Implement the DicomRewriteStage interface
+	/**
+	 * Correct an object being rewritten by a run of fused stages.
+	 * @param rewriter the rewriter of the object.
+	 * @return the status of the correction.
+	 */
+	public AnonymizerStatus rewrite(DICOMRewriter rewriter) {
+		DicomObject dob = rewriter.getDicomObject();
+		lastFileIn = new File(dob.getFile().getAbsolutePath());
+		lastTimeIn = System.currentTimeMillis();
+
+		AnonymizerStatus status = AnonymizerStatus.SKIP(dob.getFile(), "");
+		if (dob.matches(dicomScriptFile)) {
+			status = rewriter.correct(fixPrivateElements,
+									  quarantineUncorrectedMismatches,
+									  logUncorrectedMismatches);
+		}
+		lastFileOut = status.isQUARANTINE() ? null : lastFileIn;
+		lastTimeOut = System.currentTimeMillis();
+		return status;
+	}
+
 	/**
 	 * Get the list of links for display on the summary page.
 	 * @param user the requesting user.
@@ -14,20 +14,21 @@ import java.util.Properties;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
+import org.rsna.ctp.objects.ScriptCache;
 import org.rsna.ctp.pipeline.AbstractPipelineStage;
+import org.rsna.ctp.pipeline.ConcurrentStage;
 import org.rsna.ctp.pipeline.Processor;
 import org.rsna.ctp.servlets.SummaryLink;
 import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
 import org.rsna.ctp.stdstages.anonymizer.dicom.DAScript;
 import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMDecompressor;
 import org.rsna.server.User;
-import org.rsna.util.FileUtil;
 import org.w3c.dom.Element;
 
 /**
  * The DicomAnonymizer pipeline stage class.
  */
-public class DicomDecompressor extends AbstractPipelineStage implements Processor, Scriptable  {
+public class DicomDecompressor extends AbstractPipelineStage implements Processor, Scriptable, ConcurrentStage {
 
 	static final Logger logger = Logger.getLogger(DicomDecompressor.class);
 	static final String JPEGBaseline = "1.2.840.10008.1.2.4.50";
@@ -63,7 +64,7 @@ public class DicomDecompressor extends AbstractPipelineStage implements Processo
 			DicomObject dob = (DicomObject)fileObject;
 			if (dob.isEncapsulated()) {
 				boolean skip = skipJPEGBaseline && dob.hasTransferSyntaxUID(JPEGBaseline);
-				if (dob.isImage() && !skip && (dob.matches(FileUtil.getText(dicomScriptFile)))) {
+				if (dob.isImage() && !skip && (dob.matches(ScriptCache.getText(dicomScriptFile)))) {
 					File file = dob.getFile();
 					AnonymizerStatus status = DICOMDecompressor.decompress(file, file);
 					if (status.isOK()) {
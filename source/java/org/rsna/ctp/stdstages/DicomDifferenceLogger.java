@@ -14,6 +14,8 @@ import org.rsna.ctp.Configuration;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.pipeline.AbstractPipelineStage;
+import org.rsna.ctp.pipeline.LatencyHistogram;
+import org.rsna.ctp.pipeline.MetricsRegistry;
 import org.rsna.ctp.pipeline.PipelineStage;
 import org.rsna.ctp.pipeline.ExportService;
 import org.rsna.ctp.pipeline.QueueManager;
@@ -85,6 +87,7 @@ public class DicomDifferenceLogger extends AbstractPipelineStage implements Expo
 		active = new File(root, "active");
 		activePath = active.getAbsolutePath();
 		queueManager.enqueueDir(active); //requeue any files that are left from an ungraceful shutdown.
+		queueManager.startReconciler(QueueManager.defaultReconcileInterval);
 
 		//Set up the exporter
 		throttle = StringUtil.getInt(element.getAttribute("throttle").trim());
@@ -137,6 +140,7 @@ public class DicomDifferenceLogger extends AbstractPipelineStage implements Expo
 	 */
 	public synchronized void shutdown() {
 		super.shutdown();
+		queueManager.close();
 		if (exporter != null) exporter.interrupt();
 	}
 
@@ -183,7 +187,7 @@ public class DicomDifferenceLogger extends AbstractPipelineStage implements Expo
 				try {
 					File entryFile = File.createTempFile("QF-", ".bin", temp);
 					SerializerUtil.serialize(entryFile, entry);
-					if (queueManager.enqueue(entryFile) == null) {
+					if (queueManager.enqueue(entryFile, false) == null) {
 						if (quarantine != null) quarantine.insertCopy(fileObject);
 						logger.warn(name+": Unable to enter difference object in the export queue");
 					}
@@ -215,6 +219,7 @@ public class DicomDifferenceLogger extends AbstractPipelineStage implements Expo
 		public void run() {
 			logger.info(name+": Exporter Thread: Started");
 			File file = null;
+			LatencyHistogram exportTimes = MetricsRegistry.getExportTimes(DicomDifferenceLogger.this);
 			while (!stop && !interrupted()) {
 				try {
 					if ((queueManager.size()>0) && logAdapter.connect().equals(Status.OK)) {
@@ -223,6 +228,7 @@ public class DicomDifferenceLogger extends AbstractPipelineStage implements Expo
 							long startTime = System.nanoTime();
 							Status result = logAdapter.export(entry);
 							lastElapsedTime = System.nanoTime() - startTime;
+							if (exportTimes != null) exportTimes.record(lastElapsedTime);
 							if (result.equals(Status.FAIL)) {
 								//Something is wrong with the file.
 								//Log a warning and quarantine the file.
@@ -235,9 +241,8 @@ public class DicomDifferenceLogger extends AbstractPipelineStage implements Expo
 								//Note that the file has been removed from the queue,
 								//so it is necessary to requeue it. This has the
 								//effect of moving it to the end of the queue.
-								queueManager.enqueue(file);
-								//Note that enqueuing a file does not delete it
-								//from the source location, so we must delete it now.
+								//The file is moved back into the queue if possible.
+								queueManager.enqueue(file, false);
 								file.delete();
 							}
 							else {
@@ -255,12 +260,6 @@ public class DicomDifferenceLogger extends AbstractPipelineStage implements Expo
 						logAdapter.disconnect();
 					}
 					if (!stop) sleep(interval);
-					//Recount the queue in case it has been corrupted by
-					//someone copying files into the queue directories by hand.
-					//To keep from doing this when it doesn't really matter and
-					//it might take a long time, only do it when the remaining
-					//queue is small.
-					if (!stop && (queueManager.size() < 20)) queueManager.recount();
 				}
 				catch (Exception e) {
 					logger.debug(name+" Exporter Thread: Exception received", e);
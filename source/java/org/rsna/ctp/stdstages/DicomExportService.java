@@ -11,6 +11,7 @@ import java.io.*;
 import java.util.LinkedList;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.pipeline.AbstractExportService;
+import org.rsna.ctp.pipeline.ConcurrentStage;
 import org.rsna.ctp.pipeline.Status;
 import org.rsna.ctp.stdstages.dicom.DicomStorageSCU;
 import org.rsna.ctp.objects.DicomObject;
@@ -21,12 +22,14 @@ import org.w3c.dom.Element;
 
 /**
  * An ExportService that exports files via the DICOM protocol.
+ * Each Exporter Thread has its own DicomStorageSCU, and therefore
+ * its own association with the destination.
  */
-public class DicomExportService extends AbstractExportService {
+public class DicomExportService extends AbstractExportService implements ConcurrentStage {
 
 	static final Logger logger = Logger.getLogger(DicomExportService.class);
 
-	DicomStorageSCU dicomSender = null;
+	DicomStorageSCU[] dicomSenders = null;
 	String url = "";
 
 	/**
@@ -62,8 +65,11 @@ public class DicomExportService extends AbstractExportService {
 		//Get the callingAETTag, if any
 		int callingAETTag = DicomObject.getElementTag(element.getAttribute("callingAETTag").trim());
 
-		//Get the DicomSender
-		dicomSender = new DicomStorageSCU(url, timeout, forceClose, hostTag, portTag, calledAETTag, callingAETTag);
+		//Get a DicomSender for each Exporter
+		dicomSenders = new DicomStorageSCU[getPoolSize()];
+		for (int i=0; i<dicomSenders.length; i++) {
+			dicomSenders[i] = new DicomStorageSCU(url, timeout, forceClose, hostTag, portTag, calledAETTag, callingAETTag);
+		}
 	}
 
 	/**
@@ -71,7 +77,7 @@ public class DicomExportService extends AbstractExportService {
 	 * @param fileToExport the file to export.
 	 * @return the status of the attempt to export the file.
 	 */
-	public synchronized Status export(File fileToExport) {
+	public Status export(File fileToExport) {
 		DicomObject dicomObject = null;
 
 		//Get a DicomObject for the file.
@@ -82,7 +88,7 @@ public class DicomExportService extends AbstractExportService {
 			return Status.FAIL; }
 
 		//Got the object; send it.
-		Status status = dicomSender.send(dicomObject);
+		Status status = dicomSenders[getExporterIndex()].send(dicomObject);
 		dicomObject.close();
 
 		//Make an AuditLog entry if required
@@ -95,7 +101,9 @@ public class DicomExportService extends AbstractExportService {
 	 * Stop the pipeline stage.
 	 */
 	public synchronized void shutdown() {
-		if (dicomSender != null) dicomSender.interrupt();
+		if (dicomSenders != null) {
+			for (DicomStorageSCU dicomSender : dicomSenders) dicomSender.interrupt();
+		}
 		super.shutdown();
 	}
 
@@ -11,8 +11,11 @@ import java.io.File;
 import java.util.LinkedList;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.objects.DicomScript;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.pipeline.AbstractPipelineStage;
+import org.rsna.ctp.pipeline.ConcurrentStage;
+import org.rsna.ctp.pipeline.PartialHeaderStage;
 import org.rsna.ctp.pipeline.Processor;
 import org.rsna.ctp.servlets.SummaryLink;
 import org.rsna.server.User;
@@ -22,7 +25,7 @@ import org.w3c.dom.Element;
 /**
  * A script-based filter for DicomObjects.
  */
-public class DicomFilter extends AbstractPipelineStage implements Processor, Scriptable {
+public class DicomFilter extends AbstractPipelineStage implements Processor, Scriptable, ConcurrentStage, PartialHeaderStage {
 
 	static final Logger logger = Logger.getLogger(DicomFilter.class);
 
@@ -62,6 +65,17 @@ public class DicomFilter extends AbstractPipelineStage implements Processor, Scr
 		return fileObject;
 	}
 
+	/**
+	 * Get the highest tag referenced by the script.
+	 * @return the highest tag referenced by the script, 0 if the stage
+	 * has no script, or -1 if the script references private elements
+	 * by name.
+	 */
+	public int getLastTag() {
+		if (scriptFile == null) return 0;
+		return DicomScript.getInstance(scriptFile).getLastTag();
+	}
+
 	/**
 	 * Get the script file.
 	 * @return the script file used by this stage.
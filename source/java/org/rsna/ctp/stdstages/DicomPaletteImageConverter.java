@@ -12,13 +12,13 @@ import java.util.LinkedList;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
+import org.rsna.ctp.objects.ScriptCache;
 import org.rsna.ctp.pipeline.AbstractPipelineStage;
 import org.rsna.ctp.pipeline.Processor;
 import org.rsna.ctp.servlets.SummaryLink;
 import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
 import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMPaletteImageConverter;
 import org.rsna.server.User;
-import org.rsna.util.FileUtil;
 import org.w3c.dom.Element;
 
 /**
@@ -63,7 +63,7 @@ public class DicomPaletteImageConverter extends AbstractPipelineStage implements
 			DicomObject dob = (DicomObject)fileObject;
 			if (dob.isImage()
 					&& dob.getPhotometricInterpretation().trim().equals("PALETTE COLOR")
-					&& (dob.matches(FileUtil.getText(dicomScriptFile)))) {
+					&& (dob.matches(ScriptCache.getText(dicomScriptFile)))) {
 
 				File file = fileObject.getFile();
 				AnonymizerStatus status = DICOMPaletteImageConverter.convert(file, file);
@@ -14,10 +14,13 @@ import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.pipeline.AbstractPipelineStage;
+import org.rsna.ctp.pipeline.ConcurrentStage;
+import org.rsna.ctp.pipeline.FusibleStage;
 import org.rsna.ctp.pipeline.Processor;
 import org.rsna.ctp.servlets.SummaryLink;
 import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
 import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMPixelAnonymizer;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMRewriter;
 import org.rsna.ctp.stdstages.anonymizer.dicom.PixelScript;
 import org.rsna.ctp.stdstages.anonymizer.dicom.Regions;
 import org.rsna.ctp.stdstages.anonymizer.dicom.Signature;
@@ -28,7 +31,7 @@ import org.w3c.dom.Element;
 /**
  * The DicomPixelAnonymizer pipeline stage class.
  */
-public class DicomPixelAnonymizer extends AbstractPipelineStage implements Processor, Scriptable {
+public class DicomPixelAnonymizer extends AbstractPipelineStage implements Processor, Scriptable, ConcurrentStage, DicomRewriteStage {
 
 	static final Logger logger = Logger.getLogger(DicomPixelAnonymizer.class);
 
@@ -70,7 +73,7 @@ public class DicomPixelAnonymizer extends AbstractPipelineStage implements Proce
 				&& (scriptFile != null)
 					&& ((DicomObject)fileObject).isImage() ) {
 			File file = fileObject.getFile();
-			getScript();
+			PixelScript script = getScript();
 			if (script != null) {
 				Signature signature = script.getMatchingSignature((DicomObject)fileObject);
 				log(fileObject, signature);
@@ -79,7 +82,8 @@ public class DicomPixelAnonymizer extends AbstractPipelineStage implements Proce
 					if ((regions != null) && (regions.size() > 0)) {
 						AnonymizerStatus status = DICOMPixelAnonymizer.anonymize(file, file, regions, setBurnedInAnnotation, test);
 						if (status.isOK()) {
-							fileObject = FileObject.getInstance(file);
+							fileObject = status.getObject();
+							if (fileObject == null) fileObject = FileObject.getInstance(file);
 						}
 						else if (status.isQUARANTINE()) {
 							if (quarantine != null) quarantine.insert(fileObject);
@@ -98,6 +102,65 @@ public class DicomPixelAnonymizer extends AbstractPipelineStage implements Proce
 		return fileObject;
 	}
 
+	//Implement the FusibleStage interface
+	/**
+	 * Determine whether this stage can be added to a run of fused stages.
+	 * @param run the stages already in the run.
+	 * @return true if the stages in the run are DicomRewriteStages and
+	 * none of them is a DicomPixelAnonymizer, since the pixels can only be
+	 * blanked once in a single pass.
+	 */
+	public boolean canFuseWith(List<FusibleStage> run) {
+		if (!FusedDicomRewrite.canFuse(run)) return false;
+		for (FusibleStage stage : run) {
+			if (stage instanceof DicomPixelAnonymizer) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Process an object through a run of fused stages, starting
+	 * with this one, parsing and writing the object once.
+	 * @param fileObject the object to process.
+	 * @param run the stages of the run.
+	 * @param quarantined the array in which the stage that
+	 * quarantined the object is flagged.
+	 * @return the processed object, or null if it was quarantined.
+	 */
+	public FileObject processFused(FileObject fileObject, FusibleStage[] run, boolean[] quarantined) {
+		return FusedDicomRewrite.process(fileObject, run, quarantined);
+	}
+
+	//Implement the DicomRewriteStage interface
+	/**
+	 * Blank the regions of an object being rewritten by a run of fused stages.
+	 * @param rewriter the rewriter of the object.
+	 * @return the status of the pixel anonymization.
+	 */
+	public AnonymizerStatus rewrite(DICOMRewriter rewriter) {
+		DicomObject dob = rewriter.getDicomObject();
+		lastFileIn = new File(dob.getFile().getAbsolutePath());
+		lastTimeIn = System.currentTimeMillis();
+
+		AnonymizerStatus status = AnonymizerStatus.SKIP(dob.getFile(), "");
+		if ((scriptFile != null) && dob.isImage()) {
+			PixelScript script = getScript();
+			if (script != null) {
+				Signature signature = script.getMatchingSignature(dob);
+				log(dob, signature);
+				if (signature != null) {
+					Regions regions = signature.regions;
+					if ((regions != null) && (regions.size() > 0)) {
+						status = rewriter.blankRegions(regions, setBurnedInAnnotation, test);
+					}
+				}
+			}
+		}
+		lastFileOut = status.isQUARANTINE() ? null : lastFileIn;
+		lastTimeOut = System.currentTimeMillis();
+		return status;
+	}
+
 	private void log(FileObject fileObject, Signature signature) {
 		if (log) {
 			if (signature != null)
@@ -116,7 +179,7 @@ public class DicomPixelAnonymizer extends AbstractPipelineStage implements Proce
 	}
 
 	//Load the script if necessary
-	private void getScript() {
+	private synchronized PixelScript getScript() {
 		if ((scriptFile != null) && scriptFile.exists()) {
 			long lm = scriptFile.lastModified();
 			if (lm > lastModified) {
@@ -125,6 +188,7 @@ public class DicomPixelAnonymizer extends AbstractPipelineStage implements Proce
 			}
 		}
 		else script = null;
+		return script;
 	}
 
 	/**
@@ -0,0 +1,31 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.stdstages;
+
+import org.rsna.ctp.pipeline.FusibleStage;
+import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMRewriter;
+
+/**
+ * An interface implemented by the DICOM-modifying stages whose changes
+ * can be applied together by a DICOMRewriter in a single pass.
+ */
+public interface DicomRewriteStage extends FusibleStage {
+
+	/**
+	 * Apply the changes of this stage to an object being rewritten.
+	 * The stage must evaluate its filter script against the object
+	 * obtained from the rewriter, which includes the changes made
+	 * by the stages before it in the run.
+	 * @param rewriter the rewriter of the object.
+	 * @return OK if the stage changed the object, SKIP if it did not,
+	 * or QUARANTINE if the stage quarantines the object.
+	 */
+	public AnonymizerStatus rewrite(DICOMRewriter rewriter);
+
+}
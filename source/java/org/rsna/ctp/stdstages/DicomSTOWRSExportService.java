@@ -23,6 +23,7 @@ import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.pipeline.AbstractExportService;
+import org.rsna.ctp.pipeline.ConcurrentStage;
 import org.rsna.ctp.pipeline.QueueManager;
 import org.rsna.ctp.pipeline.Status;
 import org.rsna.server.HttpResponse;
@@ -38,7 +39,7 @@ import org.w3c.dom.Element;
 /**
  * An ExportService that exports files via the DICOM STOW-RS protocol.
  */
-public class DicomSTOWRSExportService extends AbstractExportService {
+public class DicomSTOWRSExportService extends AbstractExportService implements ConcurrentStage {
 
 	static final Logger logger = Logger.getLogger(DicomSTOWRSExportService.class);
 
@@ -138,24 +139,26 @@ public class DicomSTOWRSExportService extends AbstractExportService {
 				//*********************************************************************************************
 				//See if this object has the same UID as a recent one.
 				String currentUID = fileObject.getUID();
-				if (recentUIDs.contains(currentUID)) {
-					logger.warn("----------------------------------------------------------------");
-					logger.warn(name);
-					logger.warn("Duplicate UID in last "+maxQueueSize+" objects: "+currentUID);
-					String s = "";
-					long time = 0;
-					for (int i=0; i<recentUIDs.size(); i++) {
-						String uid = recentUIDs.get(i);
-						s += uid.equals(currentUID) ? "!" : "*";
-						time = recentTimes.get(i).longValue();
+				synchronized (recentUIDs) {
+					if (recentUIDs.contains(currentUID)) {
+						logger.warn("----------------------------------------------------------------");
+						logger.warn(name);
+						logger.warn("Duplicate UID in last "+maxQueueSize+" objects: "+currentUID);
+						String s = "";
+						long time = 0;
+						for (int i=0; i<recentUIDs.size(); i++) {
+							String uid = recentUIDs.get(i);
+							s += uid.equals(currentUID) ? "!" : "*";
+							time = recentTimes.get(i).longValue();
+						}
+						long deltaT = System.currentTimeMillis() - time;
+						logger.warn("[oldest] "+s+"! [newest]  deltaT = "+deltaT+"ms");
+						logger.warn("----------------------------------------------------------------");
 					}
-					long deltaT = System.currentTimeMillis() - time;
-					logger.warn("[oldest] "+s+"! [newest]  deltaT = "+deltaT+"ms");
-					logger.warn("----------------------------------------------------------------");
+					recentUIDs.add(currentUID);
+					recentTimes.add( new Long( System.currentTimeMillis() ) );
+					if (recentUIDs.size() > maxQueueSize) { recentUIDs.remove(); recentTimes.remove(); }
 				}
-				recentUIDs.add(currentUID);
-				recentTimes.add( new Long( System.currentTimeMillis() ) );
-				if (recentUIDs.size() > maxQueueSize) { recentUIDs.remove(); recentTimes.remove(); }
 				//*********************************************************************************************
 			}
 			
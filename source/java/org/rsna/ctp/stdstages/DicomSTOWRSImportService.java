@@ -13,6 +13,7 @@ import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.pipeline.AbstractImportService;
+import org.rsna.ctp.pipeline.Backpressure;
 import org.rsna.multipart.UploadedFile;
 import org.rsna.server.HttpRequest;
 import org.rsna.server.HttpResponse;
@@ -144,7 +145,13 @@ public class DicomSTOWRSImportService extends AbstractImportService {
 						return;
 					}
 					
-					if (!requireAuthentication || req.userHasRole("import")) {
+					Backpressure backpressure = Backpressure.getInstance();
+					if (backpressure.isEngaged()) {
+						//The system is overloaded; tell the sender to try again later.
+						res.setResponseCode(503);
+						res.setHeader("Retry-After", Integer.toString(backpressure.getRetryAfter()));
+					}
+					else if (!requireAuthentication || req.userHasRole("import")) {
 
 						//Good authentication, turn on auth logging again.
 						logAuthenticationFailures = true;
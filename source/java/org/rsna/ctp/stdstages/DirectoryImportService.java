@@ -14,6 +14,7 @@ import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.pipeline.AbstractImportService;
+import org.rsna.ctp.pipeline.Backpressure;
 import org.rsna.ctp.pipeline.QueueManager;
 import org.rsna.util.FileUtil;
 import org.rsna.util.StringUtil;
@@ -114,6 +115,12 @@ public class DirectoryImportService extends AbstractImportService {
 
 		public void run() {
 			while (!isInterrupted()) {
+				//If the system is overloaded, skip this poll.
+				if (Backpressure.getInstance().isEngaged()) {
+					try { sleep(interval); }
+					catch (Exception ignore) { }
+					continue;
+				}
 				//Queue all the files that were found last time.
 				//This ensures that they are at least 'interval' old.
 				if (fileList != null) {
@@ -170,7 +177,7 @@ public class DirectoryImportService extends AbstractImportService {
 			while ((file = queueManager.dequeue(active)) != null) {
 				lastFileOut = file;
 				lastTimeOut = System.currentTimeMillis();
-				FileObject fileObject = FileObject.getInstance(lastFileOut);
+				FileObject fileObject = FileObject.getInstance(lastFileOut, getLastTag());
 				fileObject.setStandardExtension();
 
 				//Make sure we accept objects of this type.
@@ -22,6 +22,7 @@ import javax.net.ssl.TrustManager;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.pipeline.AbstractExportService;
+import org.rsna.ctp.pipeline.ConcurrentStage;
 import org.rsna.ctp.pipeline.Status;
 import org.rsna.util.StringUtil;
 import org.w3c.dom.Element;
@@ -29,11 +30,11 @@ import org.w3c.dom.Element;
 /**
  * An ExportService that exports files via the Ftp protocol.
  */
-public class FtpExportService extends AbstractExportService {
+public class FtpExportService extends AbstractExportService implements ConcurrentStage {
 
 	static final Logger logger = Logger.getLogger(FtpExportService.class);
 
-	FtpSender ftpSender;
+	FtpSender[] ftpSenders;
 	URL url;
 
 	/**
@@ -58,8 +59,11 @@ public class FtpExportService extends AbstractExportService {
 		if (ftpPort == -1) ftpPort = 21;
 		String ftpRoot = url.getPath();
 
-		//Instantiate the FtpSender
-		ftpSender = new FtpSender(ftpHost, ftpPort, username, password, ftpRoot);
+		//Instantiate an FtpSender for each Exporter
+		ftpSenders = new FtpSender[getPoolSize()];
+		for (int i=0; i<ftpSenders.length; i++) {
+			ftpSenders[i] = new FtpSender(ftpHost, ftpPort, username, password, ftpRoot);
+		}
 	}
 
 	/**
@@ -74,7 +78,7 @@ public class FtpExportService extends AbstractExportService {
 			String dirName = fileObject.getStudyUID();
 			dirName = (dirName==null) ? "" : dirName.trim();
 			if (dirName.equals("")) dirName = "bullpen";
-			ftpSender.send(fileToExport, ext, dirName);
+			ftpSenders[getExporterIndex()].send(fileToExport, ext, dirName);
 			makeAuditLogEntry(fileObject, Status.OK, getName(), url.toString());
 			return Status.OK;
 		}
@@ -8,6 +8,7 @@ import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.pipeline.AbstractExportService;
+import org.rsna.ctp.pipeline.ConcurrentStage;
 import org.rsna.ctp.pipeline.Status;
 import org.rsna.util.FileUtil;
 import org.rsna.util.StringUtil;
@@ -26,7 +27,7 @@ import org.apache.commons.net.ftp.FTPSClient;
 /**
  * An ExportService that exports files via the FTPS protocol.
  */
-public class FtpsExportService extends AbstractExportService {
+public class FtpsExportService extends AbstractExportService implements ConcurrentStage {
 
 	static final Logger logger = Logger.getLogger(FtpsExportService.class);
 
@@ -138,7 +139,7 @@ public class FtpsExportService extends AbstractExportService {
 		return ok ? Status.OK : Status.RETRY;
 	}
 
-	private void makeLogEntry(String entry, boolean currentTransferOK) {
+	private synchronized void makeLogEntry(String entry, boolean currentTransferOK) {
 		if (lastTransferOK != currentTransferOK) {
 			logger.warn("Unable to connect to FTP host ("+urlString+")");
 			lastTransferOK = currentTransferOK;
@@ -0,0 +1,115 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.stdstages;
+
+import java.util.List;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.objects.FileObject;
+import org.rsna.ctp.pipeline.FusibleStage;
+import org.rsna.ctp.pipeline.Quarantine;
+import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMRewriter;
+
+/**
+ * The implementation of the FusibleStage interface shared by the
+ * DicomRewriteStages. A run of DicomRewriteStages parses a DicomObject
+ * once, lets each stage apply its changes to the parsed dataset, and
+ * writes the object once.
+ */
+public class FusedDicomRewrite {
+
+	static final Logger logger = Logger.getLogger(FusedDicomRewrite.class);
+
+	/**
+	 * Determine whether a DicomRewriteStage can be added to a run of stages.
+	 * @param run the stages already in the run.
+	 * @return true if all the stages in the run are DicomRewriteStages.
+	 */
+	public static boolean canFuse(List<FusibleStage> run) {
+		for (FusibleStage stage : run) {
+			if (!(stage instanceof DicomRewriteStage)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Process an object through a run of DicomRewriteStages in a single pass.
+	 * Objects which are not DicomObjects, and DicomObjects which cannot be
+	 * parsed, are passed to the process methods of the stages in turn.
+	 * If a stage quarantines the object, the object is first written with
+	 * the changes of the stages before it, and then it is inserted in the
+	 * stage's quarantine, so that an object which has been anonymized
+	 * earlier in the run is not quarantined with its PHI. If the object
+	 * cannot be written, it is inserted, as it entered the run, in the
+	 * quarantine of the first stage which changed it, where it would have
+	 * been quarantined had the stages not been fused.
+	 * @param fileObject the object to process.
+	 * @param run the stages of the run, in pipeline order.
+	 * @param quarantined an array with one element for each stage of the run,
+	 * in which the element for the stage that quarantined the object is set to true.
+	 * @return the processed object, or null if the object was quarantined.
+	 */
+	public static FileObject process(FileObject fileObject, FusibleStage[] run, boolean[] quarantined) {
+		DICOMRewriter rewriter = null;
+		if (fileObject instanceof DicomObject) {
+			try { rewriter = new DICOMRewriter(fileObject.getFile()); }
+			catch (Exception ex) { logger.debug("Unable to parse "+fileObject.getFile(), ex); }
+		}
+		if (rewriter == null) {
+			for (int k=0; k<run.length; k++) {
+				fileObject = run[k].process(fileObject);
+				if (fileObject == null) {
+					quarantined[k] = true;
+					return null;
+				}
+			}
+			return fileObject;
+		}
+
+		//Apply the changes of the stages, remembering the first stage
+		//that changed the object in case the object cannot be written.
+		int writer = -1;
+		for (int k=0; k<run.length; k++) {
+			AnonymizerStatus status = ((DicomRewriteStage)run[k]).rewrite(rewriter);
+			if (status.isQUARANTINE()) {
+				//Write the changes of the stages before this one, so the
+				//object is quarantined as it was when it entered this stage.
+				status = rewriter.write(fileObject.getFile());
+				if (status.isQUARANTINE()) return quarantine(fileObject, run, quarantined, writer);
+				return quarantine(getResult(fileObject, status), run, quarantined, k);
+			}
+			if (status.isOK() && (writer == -1)) writer = k;
+		}
+
+		//Write the object once for the whole run.
+		AnonymizerStatus status = rewriter.write(fileObject.getFile());
+		if (status.isQUARANTINE()) {
+			return quarantine(fileObject, run, quarantined, writer);
+		}
+		return getResult(fileObject, status);
+	}
+
+	//Get the object written by the rewriter, or the input
+	//object if no stage changed it.
+	private static FileObject getResult(FileObject fileObject, AnonymizerStatus status) {
+		if (status.isOK()) {
+			FileObject result = status.getObject();
+			return (result != null) ? result : FileObject.getInstance(fileObject.getFile());
+		}
+		return fileObject;
+	}
+
+	private static FileObject quarantine(FileObject fileObject, FusibleStage[] run, boolean[] quarantined, int k) {
+		Quarantine quarantine = run[k].getQuarantine();
+		if (quarantine != null) quarantine.insert(fileObject);
+		quarantined[k] = true;
+		return null;
+	}
+
+}
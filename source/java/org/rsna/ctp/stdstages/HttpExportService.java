@@ -23,6 +23,7 @@ import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.pipeline.AbstractExportService;
+import org.rsna.ctp.pipeline.ConcurrentStage;
 import org.rsna.ctp.pipeline.QueueManager;
 import org.rsna.ctp.pipeline.Status;
 import org.rsna.server.HttpResponse;
@@ -35,8 +36,10 @@ import org.w3c.dom.Element;
 
 /**
  * An ExportService that exports files via the HTTP or HTTPS protocols.
+ * When the destination is an XNAT server, each Exporter Thread
+ * has its own XNAT session.
  */
-public class HttpExportService extends AbstractExportService {
+public class HttpExportService extends AbstractExportService implements ConcurrentStage {
 
 	static final Logger logger = Logger.getLogger(HttpExportService.class);
 
@@ -65,7 +68,7 @@ public class HttpExportService extends AbstractExportService {
 	String whitespaceReplacement = "_";
 	String filter = "[^a-zA-Z0-9\\[\\]\\(\\)\\^\\.\\-_,;]+";
 	Compressor compressor = null;
-	ExportSession session = null;
+	ExportSession[] sessions = null;
 
 /**/LinkedList<String> recentUIDs = new LinkedList<String>();
 /**/LinkedList<Long> recentTimes = new LinkedList<Long>();
@@ -89,8 +92,11 @@ public class HttpExportService extends AbstractExportService {
 		//Get the maxUnchunked parameter
 		maxUnchunked = StringUtil.getLong(element.getAttribute("maxUnchunked"), defaultMaxUnchunked) * 1024 * 1024;
 
-		//Get the Session object, if any
-		session = new ExportSession(element);
+		//Get a Session object for each Exporter
+		sessions = new ExportSession[getPoolSize()];
+		for (int i=0; i<sessions.length; i++) {
+			sessions[i] = new ExportSession(element);
+		}
 		
 		//See if we are to log duplicate transmissions
 		logDuplicates = element.getAttribute("logDuplicates").equals("yes");
@@ -211,7 +217,7 @@ public class HttpExportService extends AbstractExportService {
 			if (sendDigestHeader && !zip) {
 				conn.setRequestProperty("Digest", fileObject.getDigest());
 			}
-			session.setCookie(conn);
+			sessions[getExporterIndex()].setCookie(conn);
 			if (fileLength > maxUnchunked) conn.setChunkedStreamingMode(0);
 			if (logger.isDebugEnabled()) logConnection(conn);
 			conn.connect();
@@ -220,24 +226,26 @@ public class HttpExportService extends AbstractExportService {
 				//*********************************************************************************************
 				//See if this object has the same UID as a recent one.
 				String currentUID = fileObject.getUID();
-				if (recentUIDs.contains(currentUID)) {
-					logger.warn("----------------------------------------------------------------");
-					logger.warn(name);
-					logger.warn("Duplicate UID in last "+maxQueueSize+" objects: "+currentUID);
-					String s = "";
-					long time = 0;
-					for (int i=0; i<recentUIDs.size(); i++) {
-						String uid = recentUIDs.get(i);
-						s += uid.equals(currentUID) ? "!" : "*";
-						time = recentTimes.get(i).longValue();
+				synchronized (recentUIDs) {
+					if (recentUIDs.contains(currentUID)) {
+						logger.warn("----------------------------------------------------------------");
+						logger.warn(name);
+						logger.warn("Duplicate UID in last "+maxQueueSize+" objects: "+currentUID);
+						String s = "";
+						long time = 0;
+						for (int i=0; i<recentUIDs.size(); i++) {
+							String uid = recentUIDs.get(i);
+							s += uid.equals(currentUID) ? "!" : "*";
+							time = recentTimes.get(i).longValue();
+						}
+						long deltaT = System.currentTimeMillis() - time;
+						logger.warn("[oldest] "+s+"! [newest]  deltaT = "+deltaT+"ms");
+						logger.warn("----------------------------------------------------------------");
 					}
-					long deltaT = System.currentTimeMillis() - time;
-					logger.warn("[oldest] "+s+"! [newest]  deltaT = "+deltaT+"ms");
-					logger.warn("----------------------------------------------------------------");
+					recentUIDs.add(currentUID);
+					recentTimes.add( new Long( System.currentTimeMillis() ) );
+					if (recentUIDs.size() > maxQueueSize) { recentUIDs.remove(); recentTimes.remove(); }
 				}
-				recentUIDs.add(currentUID);
-				recentTimes.add( new Long( System.currentTimeMillis() ) );
-				if (recentUIDs.size() > maxQueueSize) { recentUIDs.remove(); recentTimes.remove(); }
 				//*********************************************************************************************
 			}
 
@@ -385,7 +393,7 @@ public class HttpExportService extends AbstractExportService {
 				if (nFiles > 0) {
 					logger.debug("Compressing "+nFiles+" files for transmission.");
 					if (FileUtil.zipDirectory(cacheTemp, zip, true)) {
-						getQueueManager().enqueue(zip);
+						getQueueManager().enqueue(zip, false);
 						zip.delete();
 						for (File file : cacheTemp.listFiles()) FileUtil.deleteAll(file);
 					}
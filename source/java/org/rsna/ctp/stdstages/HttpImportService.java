@@ -13,13 +13,16 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.security.MessageDigest;
 import java.util.Enumeration;
 import java.util.zip.*;
 import javax.net.ServerSocketFactory;
 import javax.net.ssl.SSLServerSocketFactory;
 import org.apache.log4j.Logger;
+import org.rsna.ctp.objects.FileDigest;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.pipeline.AbstractImportService;
+import org.rsna.ctp.pipeline.Backpressure;
 import org.rsna.server.HttpRequest;
 import org.rsna.server.HttpResponse;
 import org.rsna.server.User;
@@ -145,7 +148,14 @@ public class HttpImportService extends AbstractImportService {
 			logger.debug("accept = "+accept);
 			if (accept) {
 				res.setContentType("txt");
-				if (!requireAuthentication || req.userHasRole("import")) {
+				Backpressure backpressure = Backpressure.getInstance();
+				if (backpressure.isEngaged()) {
+					//The system is overloaded; tell the sender to try again later.
+					discardPostedFile(req);
+					res.setResponseCode(503);
+					res.setHeader("Retry-After", Integer.toString(backpressure.getRetryAfter()));
+				}
+				else if (!requireAuthentication || req.userHasRole("import")) {
 
 					//Good authentication, turn on auth logging again.
 					logAuthenticationFailures = true;
@@ -223,15 +233,18 @@ public class HttpImportService extends AbstractImportService {
 				String prefix = "HTTP-";
 				File tempFile = File.createTempFile(prefix, ".md", getTempDirectory());
 				out = new FileOutputStream(tempFile);
+				MessageDigest md = FileDigest.getMessageDigest();
 				byte[] b = new byte[10000];
 				int len;
 				int bytesRead = 0;
 				while ((bytesRead < contentLength) && ((len=in.read(b,0,b.length)) > 0)) {
 					out.write(b,0,len);
+					if (md != null) md.update(b,0,len);
 					bytesRead += len;
 				}
 				logger.debug("bytesRead = "+bytesRead);
 				out.flush(); out.close(); out = null;
+				if (md != null) FileDigest.put(tempFile, md.digest());
 
 				//If there is a digest header, check the file
 				String digestHeader = req.getHeader("Digest");
@@ -281,12 +294,17 @@ public class HttpImportService extends AbstractImportService {
 							BufferedInputStream in =
 								new BufferedInputStream(
 									zipFile.getInputStream(entry));
+							MessageDigest md = FileDigest.getMessageDigest();
 							int size = 1024;
 							int n = 0;
 							byte[] b = new byte[size];
-							while ((n = in.read(b,0,size)) != -1) out.write(b,0,n);
+							while ((n = in.read(b,0,size)) != -1) {
+								out.write(b,0,n);
+								if (md != null) md.update(b,0,n);
+							}
 							in.close();
 							out.close();
+							if (md != null) FileDigest.put(outFile, md.digest());
 							fileReceived(outFile);
 						}
 					}
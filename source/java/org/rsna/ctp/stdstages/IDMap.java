@@ -32,6 +32,7 @@ import org.rsna.ctp.stdstages.anonymizer.LookupTable;
 import org.rsna.ctp.stdstages.anonymizer.dicom.DAScript;
 import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizer;
 import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizerContext;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizerProfile;
 import org.rsna.server.User;
 import org.rsna.util.FileUtil;
 import org.rsna.util.HttpUtil;
@@ -137,10 +138,10 @@ public class IDMap extends AbstractPipelineStage implements Processor {
 				DicomObject dob = (DicomObject)fileObject;
 				if (dcmScript != null) {
 					DAScript daScript = DAScript.getInstance(dcmScript);
-					Properties cmds = daScript.toProperties();
+					DICOMAnonymizerProfile profile = daScript.getProfile();
 					Properties lkup = LookupTable.getProperties(dcmLUT);
 					DICOMAnonymizerContext context =
-								new DICOMAnonymizerContext(cmds, lkup, dcmIntTab, dob.getDataset(), null);
+								new DICOMAnonymizerContext(profile, lkup, dcmIntTab, dob.getDataset(), null);
 
 					int sopiUIDtag		= 0x00080018;
 					String sopiUID		= dob.getSOPInstanceUID();
@@ -13,10 +13,12 @@ import java.util.Properties;
 import jdbm.RecordManager;
 import jdbm.htree.HTree;
 import org.apache.log4j.Logger;
+import org.dcm4che.dict.Tags;
 import org.rsna.ctp.Configuration;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.pipeline.AbstractPipelineStage;
+import org.rsna.ctp.pipeline.PartialHeaderStage;
 import org.rsna.ctp.pipeline.Pipeline;
 import org.rsna.ctp.pipeline.PipelineStage;
 import org.rsna.ctp.pipeline.Processor;
@@ -27,7 +29,7 @@ import org.w3c.dom.Element;
 /**
  * An indexing stage for objects which have been processed, providing a web interface.
  */
-public class ObjectTracker extends AbstractPipelineStage implements Processor {
+public class ObjectTracker extends AbstractPipelineStage implements Processor, PartialHeaderStage {
 
 	static final Logger logger = Logger.getLogger(ObjectTracker.class);
 
@@ -117,6 +119,15 @@ public class ObjectTracker extends AbstractPipelineStage implements Processor {
 		return fileObject;
 	}
 
+	/**
+	 * Get the highest tag read by the stage.
+	 * @return the tag of the SeriesInstanceUID, which is the highest
+	 * of the identifiers the stage indexes.
+	 */
+	public int getLastTag() {
+		return Tags.SeriesInstanceUID;
+	}
+
 	//Update the index for a key/value pair.
 	//Note that the values in all indexes are HashSets,
 	//so the update consists of adding the value to
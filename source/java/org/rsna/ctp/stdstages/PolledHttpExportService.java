@@ -13,6 +13,7 @@ import javax.net.ServerSocketFactory;
 import javax.net.ssl.SSLServerSocketFactory;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.pipeline.AbstractQueuedExportService;
+import org.rsna.ctp.pipeline.ConcurrentStage;
 import org.rsna.ctp.servlets.PolledServlet;
 import org.rsna.server.*;
 import org.rsna.servlets.Servlet;
@@ -22,7 +23,7 @@ import org.w3c.dom.Element;
 /**
  * An ExportService that serves files via the HTTP protocol.
  */
-public class PolledHttpExportService extends AbstractQueuedExportService {
+public class PolledHttpExportService extends AbstractQueuedExportService implements ConcurrentStage {
 
 	static final Logger logger = Logger.getLogger(PolledHttpExportService.class);
 
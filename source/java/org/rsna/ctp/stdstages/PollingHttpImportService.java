@@ -19,6 +19,7 @@ import java.util.zip.*;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.pipeline.AbstractImportService;
+import org.rsna.ctp.pipeline.Backpressure;
 import org.rsna.util.ChunkedInputStream;
 import org.rsna.util.HttpUtil;
 import org.w3c.dom.Element;
@@ -81,7 +82,9 @@ public class PollingHttpImportService extends AbstractImportService {
 		public void run() {
 			File file;
 			while (!isInterrupted()) {
-				while ( !isInterrupted() && (file=getFile()) != null ) {
+				while ( !isInterrupted()
+							&& !Backpressure.getInstance().isEngaged()
+								&& (file=getFile()) != null ) {
 					logger.debug("...enqueuing "+file);
 					if (!zip) fileReceived(file);
 					else unpackAndReceive(file);
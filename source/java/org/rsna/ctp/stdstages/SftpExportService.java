@@ -8,6 +8,7 @@ import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.pipeline.AbstractExportService;
+import org.rsna.ctp.pipeline.ConcurrentStage;
 import org.rsna.ctp.pipeline.Status;
 import org.rsna.util.StringUtil;
 import org.w3c.dom.Element;
@@ -21,7 +22,7 @@ import org.apache.commons.vfs2.provider.sftp.SftpFileSystemConfigBuilder;
 /**
  * An ExportService that exports files via the Ftp protocol.
  */
-public class SftpExportService extends AbstractExportService {
+public class SftpExportService extends AbstractExportService implements ConcurrentStage {
 
 	static final Logger logger = Logger.getLogger(SftpExportService.class);
 
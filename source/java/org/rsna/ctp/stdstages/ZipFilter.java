@@ -11,12 +11,12 @@ import java.io.File;
 import java.util.LinkedList;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.FileObject;
+import org.rsna.ctp.objects.ScriptCache;
 import org.rsna.ctp.objects.ZipObject;
 import org.rsna.ctp.pipeline.AbstractPipelineStage;
 import org.rsna.ctp.pipeline.Processor;
 import org.rsna.ctp.servlets.SummaryLink;
 import org.rsna.server.User;
-import org.rsna.util.FileUtil;
 import org.w3c.dom.Element;
 
 /**
@@ -49,7 +49,7 @@ public class ZipFilter extends AbstractPipelineStage implements Processor, Scrip
 		lastTimeIn = System.currentTimeMillis();
 
 		if (fileObject instanceof ZipObject) {
-			String script = FileUtil.getText(scriptFile);
+			String script = ScriptCache.getText(scriptFile);
 			if (!((ZipObject)fileObject).matches(script)) {
 				if (quarantine != null) quarantine.insert(fileObject);
 				lastFileOut = null;
@@ -270,7 +270,7 @@ public class AnonymizerFunctions {
 
 	//Get a Cipher initialized with the specified key.
 	static SecureRandom secureRandom = null;
-	private static Cipher getCipher(String keyText, int mode) {
+	private static synchronized Cipher getCipher(String keyText, int mode) {
 		try {
 			Provider sunJce = new com.sun.crypto.provider.SunJCE();
 			Security.addProvider(sunJce);
@@ -413,7 +413,7 @@ public class AnonymizerFunctions {
 	 * @return the new UID string.
 	 * @throws Exception if the hash fails.
 	 */
-	public static String newUID(String prefix) throws Exception {
+	public static synchronized String newUID(String prefix) throws Exception {
 		//Make sure the prefix is okay.
 		prefix = prefix.trim();
 		if (!prefix.equals("") && !prefix.endsWith(".")) prefix += ".";
@@ -8,6 +8,7 @@
 package org.rsna.ctp.stdstages.anonymizer;
 
 import java.io.File;
+import org.rsna.ctp.objects.FileObject;
 
 /**
  * A class to encapsulate typesafe enum return status values for CTP services.
@@ -19,6 +20,7 @@ public class AnonymizerStatus {
 	private String status;
 	private File file;
 	private String message;
+	private FileObject object = null;
 
 	//Private constructor to prevent anything but this class
 	//from instantiating the class.
@@ -64,6 +66,14 @@ public class AnonymizerStatus {
 	 */
 	public String getMessage() { return message; }
 
+	/**
+	 * Get the FileObject created from the output file, if the anonymizer
+	 * was able to supply one without re-parsing the file.
+	 * @return the FileObject for the output file, or null if the caller
+	 * must create it from the file.
+	 */
+	public FileObject getObject() { return object; }
+
 	/**
 	 * Get the status as a string.
 	 * @return the status message.
@@ -82,6 +92,20 @@ public class AnonymizerStatus {
 		return new AnonymizerStatus("OK", file, message);
 	}
 
+	/**
+	 * Status value indicating that the anonymization succeeded,
+	 * supplying the FileObject created from the output file.
+	 * @param file the file
+	 * @param message the message
+	 * @param object the FileObject for the output file, or null
+	 * @return the OK status containing the file, message, and object.
+	 */
+	public static AnonymizerStatus OK(File file, String message, FileObject object) {
+		AnonymizerStatus status = new AnonymizerStatus("OK", file, message);
+		status.object = object;
+		return status;
+	}
+
 	/**
 	 * Status value indicating that a skip() function call was encountered.
 	 * @param file the file
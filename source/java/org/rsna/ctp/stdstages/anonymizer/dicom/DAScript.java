@@ -38,6 +38,7 @@ public class DAScript {
 	public String xmlScript = null;
 	public Document xml = null;
 	public Properties properties = null;
+	public DICOMAnonymizerProfile profile = null;
 	public long lastVersionLoaded = 0;
 
 	/**
@@ -123,6 +124,17 @@ public class DAScript {
 		return (properties = makeProperties());
 	}
 
+	/**
+	 * Get the profile of the script for the anonymizer. The profile is
+	 * computed once for each version of the script and shared by all
+	 * the objects anonymized with it.
+	 * @return the profile of the script.
+	 */
+	public synchronized DICOMAnonymizerProfile getProfile() {
+		if (profile == null) profile = new DICOMAnonymizerProfile(toProperties());
+		return profile;
+	}
+
 	//This method must only be called when the script is XML.
 	private Properties makeProperties() {
 		Properties props = new Properties();
@@ -55,6 +55,8 @@ import org.dcm4che.dict.VRs;
 
 import org.rsna.ctp.Configuration;
 import org.rsna.ctp.plugin.Plugin;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.objects.ElementTransfer;
 import org.rsna.ctp.objects.PrivateTagIndex;
 import org.rsna.ctp.stdstages.anonymizer.AnonymizerFunctions;
 import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
@@ -113,26 +115,48 @@ public class DICOMAnonymizer {
 			IntegerTable intTable,
 			boolean forceIVRLE,
 			boolean renameToSOPIUID) {
+		return anonymize(inFile, outFile, new DICOMAnonymizerProfile(cmds),
+							lkup, intTable, forceIVRLE, renameToSOPIUID);
+	}
+
+   /**
+     * Anonymizes the input file, writing the result to the output file,
+     * using a profile which has been computed for the script.
+     * See the method above for the details.
+     * @param inFile the file to anonymize.
+     * @param outFile the output file.  It may be same as inFile if you want
+     * to anonymize in place.
+     * @param profile the profile of the anonymization commands.
+     * @param lkup the properties object containing the local lookup table; null
+     * if local lookup is not to be used.
+     * @param intTable the integer table containing integer remappings for elements.
+     * @param forceIVRLE force the transfer syntax to IVRLE if true; leave
+     * the syntax unmodified if false.
+     * @param renameToSOPIUID rename the output file to [SOPInstanceUID].dcm.
+     * @return the static status result
+     */
+    public static AnonymizerStatus anonymize(
+			File inFile,
+			File outFile,
+			DICOMAnonymizerProfile profile,
+			Properties lkup,
+			IntegerTable intTable,
+			boolean forceIVRLE,
+			boolean renameToSOPIUID) {
 
 		String exceptions = "";
 		BufferedInputStream in = null;
 		BufferedOutputStream out = null;
+		ElementTransfer transfer = null;
 		File tempFile = null;
+		DicomObject result = null;
 		byte[] buffer = new byte[4096];
 		try {
 			//The strategy is to have two copies of the dataset.
 			//One (dataset) will be modified. The other (origds)
 			//will serve as the original data for reference during
-			//the anonymization process.
-
-			//Get the origds (up to the pixels), and close the input stream.
-			BufferedInputStream origin = new BufferedInputStream(new FileInputStream(inFile));
-			DcmParser origp = pFact.newDcmParser(origin);
-			FileFormat origff = origp.detectFileFormat();
-			Dataset origds = oFact.newDataset();
-			origp.setDcmHandler(origds.getDcmHandler());
-			origp.parseDcmFile(origff, Tags.PixelData);
-			origin.close();
+			//the anonymization process. The file is parsed once,
+			//and origds is copied from the parsed dataset.
 
 			//Get the dataset (up to the pixels) and leave the input stream open.
 			//This one needs to be left open so we can read the pixels and any
@@ -144,33 +168,19 @@ public class DICOMAnonymizer {
 			Dataset dataset = oFact.newDataset();
 			parser.setDcmHandler(dataset.getDcmHandler());
 			parser.parseDcmFile(fileFormat, Tags.PixelData);
-			
-			//Set a default for the SpecificCharacterSet, if necessary, in both datasets
-			SpecificCharacterSet cs = origds.getSpecificCharacterSet();
-			if (cs == null) {
-				origds.putCS(Tags.SpecificCharacterSet, "ISO_IR 100");
-				dataset.putCS(Tags.SpecificCharacterSet, "ISO_IR 100");
-			}
-
-			//Encapsulate everything in a context
-			DICOMAnonymizerContext context = new DICOMAnonymizerContext(cmds, lkup, intTable, origds, dataset);
-
-			//There are two steps in anonymizing the dataset:
-			// 1. Insert any elements that are required by the script
-			//    but are missing from the dataset.
-			// 2. Walk the tree of the dataset and modify any elements
-			//    that have scripts or that match global modifiers.
 
-			//Step 1: insert new elements
-			insertElements(context);
+			//Copy the origds from the dataset
+			Dataset origds = DICOMRewriter.copy(dataset);
 
-			//Step 2: modify the remaining elements according to the commands
-			processElements(context);
+			//Anonymize the dataset
+			DICOMAnonymizerContext context = anonymizeDataset(profile, lkup, intTable, origds, dataset);
 
 			//Write the dataset to a temporary file in the same directory
 			File tempDir = outFile.getParentFile();
 			tempFile = File.createTempFile("DCMtemp-", ".anon", tempDir);
-            out = new BufferedOutputStream(new FileOutputStream(tempFile));
+			FileOutputStream fileOut = new FileOutputStream(tempFile);
+            out = new BufferedOutputStream(fileOut);
+            transfer = new ElementTransfer(inFile, fileOut, out);
 
             //Get the SOPInstanceUID in case we need it for the rename.
             String sopiUID = null;
@@ -207,7 +217,8 @@ public class DICOMAnonymizer {
 
 			//Write the pixels if the parser actually stopped before pixeldata
 			logger.debug("Parser stopped at "+Tags.toString(parser.getReadTag()));
-            if (parser.getReadTag() == Tags.PixelData) {
+			boolean isImage = (parser.getReadTag() == Tags.PixelData);
+            if (isImage) {
                 dataset.writeHeader(
                     out,
                     encoding,
@@ -223,7 +234,7 @@ public class DICOMAnonymizer {
                             parser.getReadTag(),
                             parser.getReadVR(),
                             parser.getReadLength());
-                        writeValueTo(parser, buffer, out, false);
+                        writeValueTo(parser, buffer, out, false, transfer);
                         parser.parseHeader();
                     }
                     if (parser.getReadTag() != Tags.SeqDelimitationItem) {
@@ -242,7 +253,7 @@ public class DICOMAnonymizer {
                         0);
                 } 
                 else {
-                    writeValueTo(parser, buffer, out, swap && (parser.getReadVR() == VRs.OW));
+                    writeValueTo(parser, buffer, out, swap && (parser.getReadVR() == VRs.OW), transfer);
                 }
                 parser.parseHeader();
 			}
@@ -253,9 +264,6 @@ public class DICOMAnonymizer {
 			//so we need to suppress parsing it again.
 			boolean suppress = true;
 			
-			//Get the PrivateTagIndex for checking the post-pixels elements
-			PrivateTagIndex ptIndex = PrivateTagIndex.getInstance();
-			
 			//Set up for building the index of creators for a private group
 			int lastGroup = 0;
 			Hashtable<Integer,String> creatorIndex = new Hashtable<Integer,String>();
@@ -293,9 +301,9 @@ public class DICOMAnonymizer {
 					InputStream inStream = parser.getInputStream();
 					for (int i = 0; i < len; ++i) baos.write(inStream.read());
 					String creator = new String(baos.toByteArray()).toString().trim();
-					creatorIndex.put(new Integer(group), creator);
+					creatorIndex.put(Integer.valueOf(group), creator);
 					logger.debug("Creator element: "+Tags.toString(tag)+": \""+creator+"\"");
-					if (!context.rpg || context.kspe) {
+					if (!removesPostPixelsElement(context, tag, creator)) {
 						logger.debug("Writing element: "+Tags.toString(tag));
 						dataset.writeHeader(
 							out,
@@ -308,19 +316,8 @@ public class DICOMAnonymizer {
 					else logger.debug("Skipping element: "+Tags.toString(tag));
 				}
 				else {
-					String script = context.getScriptFor(tag);
-					boolean isSafePrivateElement = false;
-					if (isPrivate) {
-						String creator = creatorIndex.get(new Integer(group));
-						logger.debug("Found creator \""+creator+"\" for "+Tags.toString(tag));
-						String code = ptIndex.getCode(group, creator, tag & 0xff).trim();
-						logger.debug("Got \""+code+"\" code for "+Tags.toString(tag));
-						if (creator != null) isSafePrivateElement = code.equals("K");
-						logger.debug("isSafePrivateElement = "+isSafePrivateElement);
-					}
-					if ((isPrivate && context.rpg && !(context.kspe && isSafePrivateElement)) || 
-							((script == null) && context.rue) || 
-							((script != null) && script.startsWith("@remove()") ) ) {
+					String creator = isPrivate ? creatorIndex.get(Integer.valueOf(group)) : null;
+					if (removesPostPixelsElement(context, tag, creator)) {
 						//skip this element
 						logger.debug("Skipping element: "+Tags.toString(tag));
 						//read past the data
@@ -336,13 +333,14 @@ public class DICOMAnonymizer {
 							parser.getReadTag(),
 							parser.getReadVR(),
 							parser.getReadLength());
-						writeValueTo(parser, buffer, out, swap);
+						writeValueTo(parser, buffer, out, swap, transfer);
 					}
 				}
 				logPosition("Position after processing last post-pixels element:", parser);
 			}
 			out.flush();
 			out.close();
+			transfer.close();
 			in.close();
 
 			//Rename the temp file to the specified outFile.
@@ -353,33 +351,144 @@ public class DICOMAnonymizer {
 			if (!tempFile.renameTo(outFile)) {
 				logger.warn("Unable to rename "+ tempFile + " to " + outFile);
 			}
+			else {
+				//Hand the anonymized dataset to the caller
+				//so it does not have to parse the file again.
+				try { result = new DicomObject(outFile, dataset, isImage); }
+				catch (Exception ex) { logger.debug("Unable to create the DicomObject", ex); }
+			}
 		}
 
 		catch (Exception e) {
 			FileUtil.close(in);
 			FileUtil.close(out);
+			if (transfer != null) transfer.close();
 			FileUtil.deleteAll(tempFile);
-			//Now figure out what kind of response to return.
-			String msg = e.getMessage();
-			if (msg == null) {
-				msg = "!error! - no message";
-				if (logger.isDebugEnabled()) logger.debug("Error call from "+inFile, e);
-				else logger.info("Error call from "+inFile);
-				return AnonymizerStatus.QUARANTINE(inFile,msg);
-			}
-			if (msg.contains("!skip!")) {
-				return AnonymizerStatus.SKIP(inFile,msg);
-			}
-			if (msg.contains("!quarantine!")) {
-				logger.info("Quarantine call from "+inFile);
-				logger.info("...Message: "+msg);
-				return AnonymizerStatus.QUARANTINE(inFile,msg);
-			}
-			logger.info("Unknown exception from "+inFile, e);
-			return AnonymizerStatus.QUARANTINE(inFile,msg);
+			return getStatus(inFile, e);
 		}
-		return AnonymizerStatus.OK(outFile, exceptions);
+		return AnonymizerStatus.OK(outFile, exceptions, result);
     }
+
+	/**
+	 * Anonymize a dataset in memory. The dataset must contain the elements
+	 * up to, but not including, the pixel data. Elements which follow the
+	 * pixels are not in the dataset; callers which copy them from the input
+	 * file must use removesPostPixelsElement to apply the script to them.
+	 * @param cmds the properties object containing the anonymization commands.
+	 * @param lkup the properties object containing the local lookup table; null
+	 * if local lookup is not to be used.
+	 * @param intTable the integer table containing integer remappings for elements.
+	 * @param origds an unmodified copy of the dataset, used as the original
+	 * data for reference during the anonymization process.
+	 * @param dataset the dataset to anonymize.
+	 * @return the context of the anonymization.
+	 * @throws Exception if the script calls for the object to be skipped or
+	 * quarantined, or if the dataset cannot be anonymized.
+	 */
+	public static DICOMAnonymizerContext anonymizeDataset(
+			Properties cmds,
+			Properties lkup,
+			IntegerTable intTable,
+			Dataset origds,
+			Dataset dataset) throws Exception {
+		return anonymizeDataset(new DICOMAnonymizerProfile(cmds), lkup, intTable, origds, dataset);
+	}
+
+	/**
+	 * Anonymize a dataset in memory, using a profile which has been
+	 * computed for the script. See the method above for the details.
+	 * @param profile the profile of the anonymization commands.
+	 * @param lkup the properties object containing the local lookup table; null
+	 * if local lookup is not to be used.
+	 * @param intTable the integer table containing integer remappings for elements.
+	 * @param origds an unmodified copy of the dataset, used as the original
+	 * data for reference during the anonymization process.
+	 * @param dataset the dataset to anonymize.
+	 * @return the context of the anonymization.
+	 * @throws Exception if the script calls for the object to be skipped or
+	 * quarantined, or if the dataset cannot be anonymized.
+	 */
+	public static DICOMAnonymizerContext anonymizeDataset(
+			DICOMAnonymizerProfile profile,
+			Properties lkup,
+			IntegerTable intTable,
+			Dataset origds,
+			Dataset dataset) throws Exception {
+
+		//Set a default for the SpecificCharacterSet, if necessary, in both datasets
+		SpecificCharacterSet cs = origds.getSpecificCharacterSet();
+		if (cs == null) {
+			origds.putCS(Tags.SpecificCharacterSet, "ISO_IR 100");
+			dataset.putCS(Tags.SpecificCharacterSet, "ISO_IR 100");
+		}
+
+		//Encapsulate everything in a context
+		DICOMAnonymizerContext context = new DICOMAnonymizerContext(profile, lkup, intTable, origds, dataset);
+
+		//There are two steps in anonymizing the dataset:
+		// 1. Insert any elements that are required by the script
+		//    but are missing from the dataset.
+		// 2. Walk the tree of the dataset and modify any elements
+		//    that have scripts or that match global modifiers.
+
+		//Step 1: insert new elements
+		insertElements(context);
+
+		//Step 2: modify the remaining elements according to the commands
+		processElements(context);
+
+		return context;
+	}
+
+	/**
+	 * Determine whether an anonymization removes an element which follows
+	 * the pixels in the input file.
+	 * @param context the context returned by anonymizeDataset.
+	 * @param tag the tag of the element.
+	 * @param creator the private creator of the element's group, or null
+	 * if the element is not private or its creator is unknown.
+	 * @return true if the element is to be removed; false if it is to be copied.
+	 */
+	public static boolean removesPostPixelsElement(DICOMAnonymizerContext context, int tag, String creator) {
+		boolean isPrivate = ((tag & 0x10000) != 0);
+		boolean isCreator = ((tag & 0xFF00) == 0);
+		if (isPrivate && isCreator) return context.rpg && !context.kspe;
+
+		String script = context.getScriptFor(tag);
+		boolean isSafePrivateElement = false;
+		if (isPrivate && (creator != null)) {
+			int group = (tag >> 16) & 0xffff;
+			String code = PrivateTagIndex.getInstance().getCode(group, creator, tag & 0xff).trim();
+			logger.debug("Got \""+code+"\" code for "+Tags.toString(tag)+" (creator \""+creator+"\")");
+			isSafePrivateElement = code.equals("K");
+		}
+		return (isPrivate && context.rpg && !(context.kspe && isSafePrivateElement))
+				|| ((script == null) && context.rue)
+				|| ((script != null) && script.startsWith("@remove()"));
+	}
+
+	//Determine the status to return for an exception thrown during anonymization.
+	//Scripts call for an object to be skipped or quarantined by throwing
+	//exceptions whose messages contain !skip! or !quarantine!.
+	static AnonymizerStatus getStatus(File inFile, Exception e) {
+		String msg = e.getMessage();
+		if (msg == null) {
+			msg = "!error! - no message";
+			if (logger.isDebugEnabled()) logger.debug("Error call from "+inFile, e);
+			else logger.info("Error call from "+inFile);
+			return AnonymizerStatus.QUARANTINE(inFile,msg);
+		}
+		if (msg.contains("!skip!")) {
+			return AnonymizerStatus.SKIP(inFile,msg);
+		}
+		if (msg.contains("!quarantine!")) {
+			logger.info("Quarantine call from "+inFile);
+			logger.info("...Message: "+msg);
+			return AnonymizerStatus.QUARANTINE(inFile,msg);
+		}
+		logger.info("Unknown exception from "+inFile, e);
+		return AnonymizerStatus.QUARANTINE(inFile,msg);
+	}
     
     private static boolean logPosition(String msg, DcmParser parser) {
 		if (logger.isDebugEnabled()) {
@@ -391,7 +500,18 @@ public class DICOMAnonymizer {
 		return true;
 	}		
 
-	private static void writeValueTo(
+	//Write out an element value, transferring it directly from the input
+	//file to the output file if it is large and need not be swapped.
+	static void writeValueTo(
+					DcmParser parser,
+					byte[] buffer,
+					OutputStream out,
+					boolean swap,
+					ElementTransfer transfer) throws Exception {
+		if (!transfer.transferValue(parser, swap)) writeValueTo(parser, buffer, out, swap);
+	}
+
+	static void writeValueTo(
 					DcmParser parser,
 					byte[] buffer,
 					OutputStream out,
@@ -708,63 +828,138 @@ public class DICOMAnonymizer {
 	static final String callFn			= "call";
 	static final String pathelementFn	= "pathelement";
 
+	//Function codes, resolved from the function names when scripts are compiled.
+	static final int UNKNOWN			= 0;
+	static final int CONTENTS			= 1;
+	static final int VALUE				= 2;
+	static final int TRUNCATE			= 3;
+	static final int DATE				= 4;
+	static final int DATEINTERVAL		= 5;
+	static final int DECRYPT			= 6;
+	static final int ENCRYPT			= 7;
+	static final int HASH				= 8;
+	static final int HASHNAME			= 9;
+	static final int HASHPTID			= 10;
+	static final int HASHUID			= 11;
+	static final int IF					= 12;
+	static final int SELECT				= 13;
+	static final int APPEND				= 14;
+	static final int ALWAYS				= 15;
+	static final int HASHDATE			= 16;
+	static final int INCREMENTDATE		= 17;
+	static final int LOWERCASE			= 18;
+	static final int UPPERCASE			= 19;
+	static final int MODIFYDATE			= 20;
+	static final int INITIALS			= 21;
+	static final int LOOKUP				= 22;
+	static final int INTEGER			= 23;
+	static final int PARAM				= 24;
+	static final int QUARANTINE			= 25;
+	static final int REQUIRE			= 26;
+	static final int ROUND				= 27;
+	static final int SKIP				= 28;
+	static final int TIME				= 29;
+	static final int PROCESS			= 30;
+	static final int CALL				= 31;
+	static final int PATHELEMENT		= 32;
+
+	static final Hashtable<String,Integer> functions = new Hashtable<String,Integer>();
+	static {
+		functions.put(contentsFn, Integer.valueOf(CONTENTS));
+		functions.put(valueFn, Integer.valueOf(VALUE));
+		functions.put(truncateFn, Integer.valueOf(TRUNCATE));
+		functions.put(dateFn, Integer.valueOf(DATE));
+		functions.put(dateintervalFn, Integer.valueOf(DATEINTERVAL));
+		functions.put(decryptFn, Integer.valueOf(DECRYPT));
+		functions.put(encryptFn, Integer.valueOf(ENCRYPT));
+		functions.put(hashFn, Integer.valueOf(HASH));
+		functions.put(hashnameFn, Integer.valueOf(HASHNAME));
+		functions.put(hashptidFn, Integer.valueOf(HASHPTID));
+		functions.put(hashuidFn, Integer.valueOf(HASHUID));
+		functions.put(ifFn, Integer.valueOf(IF));
+		functions.put(selectFn, Integer.valueOf(SELECT));
+		functions.put(appendFn, Integer.valueOf(APPEND));
+		functions.put(alwaysFn, Integer.valueOf(ALWAYS));
+		functions.put(hashdateFn, Integer.valueOf(HASHDATE));
+		functions.put(incrementdateFn, Integer.valueOf(INCREMENTDATE));
+		functions.put(lowercaseFn, Integer.valueOf(LOWERCASE));
+		functions.put(uppercaseFn, Integer.valueOf(UPPERCASE));
+		functions.put(modifydateFn, Integer.valueOf(MODIFYDATE));
+		functions.put(initialsFn, Integer.valueOf(INITIALS));
+		functions.put(lookupFn, Integer.valueOf(LOOKUP));
+		functions.put(integerFn, Integer.valueOf(INTEGER));
+		functions.put(paramFn, Integer.valueOf(PARAM));
+		functions.put(quarantineFn, Integer.valueOf(QUARANTINE));
+		functions.put(requireFn, Integer.valueOf(REQUIRE));
+		functions.put(roundFn, Integer.valueOf(ROUND));
+		functions.put(skipFn, Integer.valueOf(SKIP));
+		functions.put(timeFn, Integer.valueOf(TIME));
+		functions.put(processFn, Integer.valueOf(PROCESS));
+		functions.put(callFn, Integer.valueOf(CALL));
+		functions.put(pathelementFn, Integer.valueOf(PATHELEMENT));
+	}
+
+	//Get the code of a function from its name.
+	static int getFunction(String name) {
+		Integer code = functions.get(name);
+		return (code != null) ? code.intValue() : UNKNOWN;
+	}
 
 	//Create the replacement for one element.
 	public static String makeReplacement(String cmd, DICOMAnonymizerContext context, int thisTag) throws Exception {
-		logger.debug(Tags.toString(thisTag)+": \""+cmd+"\"");
+		if (logger.isDebugEnabled()) logger.debug(Tags.toString(thisTag)+": \""+cmd+"\"");
 		if (cmd == null) return "";
-		String out = "";
-		char c;
-		int i = 0;
-		boolean escape = false;
-		while (i < cmd.length()) {
-			c = cmd.charAt(i++);
-			if (escape) {
-				out += c;
-				escape = false;
-			}
-			else if (c == escapeChar) escape = true;
-			else if (c == functionChar) {
-				FnCall fnCall = new FnCall(cmd.substring(i), context, thisTag);
-				if (fnCall.length == -1) break;
-				i += fnCall.length;
-				if (fnCall.name.equals(contentsFn)) 		out += contents(fnCall);
-				else if (fnCall.name.equals(valueFn))		out += value(fnCall);
-				else if (fnCall.name.equals(truncateFn))	out += truncate(fnCall);
-				else if (fnCall.name.equals(dateFn)) 		out += date(fnCall);
-				else if (fnCall.name.equals(dateintervalFn)) out += dateinterval(fnCall);
-				else if (fnCall.name.equals(decryptFn))		out += decrypt(fnCall);
-				else if (fnCall.name.equals(encryptFn))		out += encrypt(fnCall);
-				else if (fnCall.name.equals(hashFn))		out += hash(fnCall);
-				else if (fnCall.name.equals(hashnameFn))	out += hashname(fnCall);
-				else if (fnCall.name.equals(hashptidFn))	out += hashptid(fnCall);
-				else if (fnCall.name.equals(hashuidFn)) 	out += hashuid(fnCall);
-				else if (fnCall.name.equals(ifFn))			out += iffn(fnCall);
-				else if (fnCall.name.equals(selectFn))		out += selectfn(fnCall);
-				else if (fnCall.name.equals(appendFn))		out += appendfn(fnCall);
-				else if (fnCall.name.equals(alwaysFn))		out += alwaysfn(fnCall);
-				else if (fnCall.name.equals(hashdateFn))	out += hashdate(fnCall);
-				else if (fnCall.name.equals(incrementdateFn)) out += incrementdate(fnCall);
-				else if (fnCall.name.equals(lowercaseFn))	out += lowercase(fnCall);
-				else if (fnCall.name.equals(uppercaseFn))	out += uppercase(fnCall);
-				else if (fnCall.name.equals(modifydateFn))	out += modifydate(fnCall);
-				else if (fnCall.name.equals(initialsFn)) 	out += initials(fnCall);
-				else if (fnCall.name.equals(lookupFn)) 		out += lookup(fnCall);
-				else if (fnCall.name.equals(integerFn))		out += integer(fnCall);
-				else if (fnCall.name.equals(paramFn)) 		out += param(fnCall);
-				else if (fnCall.name.equals(quarantineFn))	throw new Exception("!quarantine!");
-				else if (fnCall.name.equals(requireFn))		out += require(fnCall);
-				else if (fnCall.name.equals(roundFn))		out += round(fnCall);
-				else if (fnCall.name.equals(skipFn))		throw new Exception("!skip!");
-				else if (fnCall.name.equals(timeFn)) 		out += time(fnCall);
-				else if (fnCall.name.equals(processFn))		out += processfn(fnCall);
-				else if (fnCall.name.equals(callFn))		out += callfn(fnCall);
-				else if (fnCall.name.equals(pathelementFn))	out += pathelement(fnCall);
-				else out += functionChar + fnCall.getCall();
+		return makeReplacement(ReplacementScript.getInstance(cmd), context, thisTag);
+	}
+
+	//Create the replacement for one element from a compiled script.
+	static String makeReplacement(ReplacementScript script, DICOMAnonymizerContext context, int thisTag) throws Exception {
+		String[] text = script.text;
+		FnCall[] calls = script.calls;
+		if (text.length == 0) return "";
+		if ((text.length == 1) && (text[0] != null)) return text[0];
+		StringBuffer sb = new StringBuffer();
+		for (int i=0; i<text.length; i++) {
+			if (text[i] != null) sb.append(text[i]);
+			else {
+				FnCall fn = new FnCall(calls[i], context, thisTag);
+				switch (fn.function) {
+					case CONTENTS:			sb.append(contents(fn)); break;
+					case VALUE:				sb.append(value(fn)); break;
+					case TRUNCATE:			sb.append(truncate(fn)); break;
+					case DATE:				sb.append(date(fn)); break;
+					case DATEINTERVAL:		sb.append(dateinterval(fn)); break;
+					case DECRYPT:			sb.append(decrypt(fn)); break;
+					case ENCRYPT:			sb.append(encrypt(fn)); break;
+					case HASH:				sb.append(hash(fn)); break;
+					case HASHNAME:			sb.append(hashname(fn)); break;
+					case HASHPTID:			sb.append(hashptid(fn)); break;
+					case HASHUID:			sb.append(hashuid(fn)); break;
+					case IF:				sb.append(iffn(fn)); break;
+					case SELECT:			sb.append(selectfn(fn)); break;
+					case APPEND:			sb.append(appendfn(fn)); break;
+					case ALWAYS:			sb.append(alwaysfn(fn)); break;
+					case HASHDATE:			sb.append(hashdate(fn)); break;
+					case INCREMENTDATE:		sb.append(incrementdate(fn)); break;
+					case LOWERCASE:			sb.append(lowercase(fn)); break;
+					case UPPERCASE:			sb.append(uppercase(fn)); break;
+					case MODIFYDATE:		sb.append(modifydate(fn)); break;
+					case INITIALS:			sb.append(initials(fn)); break;
+					case LOOKUP:			sb.append(lookup(fn)); break;
+					case INTEGER:			sb.append(integer(fn)); break;
+					case PARAM:				sb.append(param(fn)); break;
+					case QUARANTINE:		throw new Exception("!quarantine!");
+					case REQUIRE:			sb.append(require(fn)); break;
+					case ROUND:				sb.append(round(fn)); break;
+					case SKIP:				throw new Exception("!skip!");
+					case TIME:				sb.append(time(fn)); break;
+					case PROCESS:			sb.append(processfn(fn)); break;
+					case CALL:				sb.append(callfn(fn)); break;
+					case PATHELEMENT:		sb.append(pathelement(fn)); break;
+				}
 			}
-			else out += c;
 		}
-		return out;
+		return sb.toString();
 	}
 
 	//Execute the process function call for an SQ element.
@@ -797,7 +992,7 @@ public class DICOMAnonymizer {
 
 	//Execute the append function call
 	private static String appendfn(FnCall fn) throws Exception {
-		String value = makeReplacement(fn.trueCode, fn.context, fn.thisTag);
+		String value = makeReplacement(fn.trueScript, fn.context, fn.thisTag);
 		DcmElement el = fn.context.get(fn.thisTag);
 		if (el == null) return value;
 		SpecificCharacterSet cs = fn.context.getSpecificCharacterSet();
@@ -814,17 +1009,17 @@ public class DICOMAnonymizer {
 	//Execute the select function call
 	private static String selectfn(FnCall fn) throws Exception {
 		if (fn.context.isRootDataset()) {
-			return makeReplacement(fn.trueCode, fn.context, fn.thisTag);
+			return makeReplacement(fn.trueScript, fn.context, fn.thisTag);
 		}
-		return makeReplacement(fn.falseCode, fn.context, fn.thisTag);
+		return makeReplacement(fn.falseScript, fn.context, fn.thisTag);
 	}
 
 	//Execute the if function call
 	private static String iffn(FnCall fn) throws Exception {
 		if (testCondition(fn)) {
-			return makeReplacement(fn.trueCode, fn.context, fn.thisTag);
+			return makeReplacement(fn.trueScript, fn.context, fn.thisTag);
 		}
-		return makeReplacement(fn.falseCode, fn.context, fn.thisTag);
+		return makeReplacement(fn.falseScript, fn.context, fn.thisTag);
 	}
 
 	//Determine whether a condition in an if statement is met
@@ -846,6 +1041,7 @@ public class DICOMAnonymizer {
 		}
 		else if (fn.args[1].equals("matches")) {
 			if ((element == null) || (fn.args.length < 3)) return false;
+			if (fn.pattern != null) return fn.pattern.matcher(element).matches();
 			return element.matches(getArg(fn, 2).trim());
 		}
 		else if (fn.args[1].equals("exists")) {
@@ -887,8 +1083,12 @@ public class DICOMAnonymizer {
 		String value = fn.context.contents(fn.args[0], fn.thisTag);
 		if (value == null) return null;
 		if (fn.args.length == 1) return value;
-		else if (fn.args.length == 2) return value.replaceAll(fn.getArg(1), "");
-		else if (fn.args.length == 3) return value.replaceAll(fn.getArg(1), fn.getArg(2));
+		else if (fn.pattern == null) {
+			if (fn.args.length == 2) return value.replaceAll(fn.getArg(1), "");
+			else if (fn.args.length == 3) return value.replaceAll(fn.getArg(1), fn.getArg(2));
+		}
+		else if (fn.args.length == 2) return fn.pattern.matcher(value).replaceAll("");
+		else if (fn.args.length == 3) return fn.pattern.matcher(value).replaceAll(fn.getArg(2));
 		return "";
 	}
 
@@ -907,20 +1107,17 @@ public class DICOMAnonymizer {
 		String value = fn.context.contents(fn.args[0], fn.thisTag);
 		if (value == null) return null;
 		if (fn.args.length == 1) return value;
+		Integer arg = fn.getInt(1);
+		if (arg == null) return value;
+		int n = arg.intValue();
+		if (n >= 0) {
+			n = Math.min(value.length(), n);
+			return value.substring(0, n);
+		}
 		else {
-			try {
-				int n = Integer.parseInt(fn.args[1]);
-				if (n >= 0) {
-					n = Math.min(value.length(), n);
-					return value.substring(0, n);
-				}
-				else {
-					value = value.trim();
-					n = Math.max(0, value.length() + n);
-					return value.substring(n);
-				}
-			}
-			catch (Exception ex) { return value; }
+			value = value.trim();
+			n = Math.max(0, value.length() + n);
+			return value.substring(n);
 		}
 	}
 
@@ -1031,10 +1228,12 @@ public class DICOMAnonymizer {
 	//If [origindate] is returned, the function returns the origindate incremented by
 	//the computed number of days.
 	//Values and replacements are trimmed before use.
+	//Note: SimpleDateFormat is not thread-safe, so the formats are
+	//created for each call.
 	private static final long oneDay = 24 * 60 * 60 * 1000;
-	private static SimpleDateFormat dcmDF = new SimpleDateFormat("yyyyMMdd", Locale.ENGLISH);
-	private static SimpleDateFormat basedateDF = new SimpleDateFormat("M/d/yyyy", Locale.ENGLISH);
 	private static String dateinterval(FnCall fn) throws Exception {
+		SimpleDateFormat dcmDF = new SimpleDateFormat("yyyyMMdd", Locale.ENGLISH);
+		SimpleDateFormat basedateDF = new SimpleDateFormat("M/d/yyyy", Locale.ENGLISH);
 		try {
 			if (fn.args.length > 2) {
 				String dateElementName = fn.args[0];
@@ -1076,10 +1275,8 @@ public class DICOMAnonymizer {
 			String text = fn.context.contents(fn.args[0], fn.thisTag);
 			String keyType = fn.args[1];
 			int width = 0;
-			if (fn.args.length > 2) {
-				try { width = Integer.parseInt(fn.args[2]); }
-				catch (Exception useDefault) { }
-			}
+			Integer arg = fn.getInt(2);
+			if (arg != null) width = arg.intValue();
 			return AnonymizerFunctions.integer(fn.context.intTable, keyType, text, width);
 		}
 		catch (Exception ex) {
@@ -1098,9 +1295,8 @@ public class DICOMAnonymizer {
 	//the whole path is returned.
 	private static String pathelement(FnCall fn) {
 		String s = fn.context.contents(fn.args[0], fn.thisTag);
-		int index = 1000;
-		try { index = Integer.parseInt(fn.args[1]); }
-		catch (Exception useDefault) { }
+		Integer arg = fn.getInt(1);
+		int index = (arg != null) ? arg.intValue() : 1000;
 		String[] pathElements = s.split("/");
 		if (index < 0) index = pathElements.length + index;
 		if ((index >= 0) && (index < pathElements.length)) {
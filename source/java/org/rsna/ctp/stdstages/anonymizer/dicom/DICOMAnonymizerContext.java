@@ -8,7 +8,6 @@
 package org.rsna.ctp.stdstages.anonymizer.dicom;
 
 import java.util.Arrays;
-import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -38,6 +37,7 @@ public class DICOMAnonymizerContext {
 
 	static final Logger logger = Logger.getLogger(DICOMAnonymizerContext.class);
 
+	public DICOMAnonymizerProfile profile;
 	public Properties cmds;
 	public Properties lkup;
 	public IntegerTable intTable;
@@ -56,7 +56,7 @@ public class DICOMAnonymizerContext {
 
 	LinkedList<Dataset> inStack;
 	LinkedList<Dataset> outStack;
-	PrivateGroupsIndex pgIndex;
+	PrivateGroupsIndex pgIndex = null;
 	PrivateNameIndex privateElementNames;
 
    /**
@@ -73,78 +73,63 @@ public class DICOMAnonymizerContext {
 				IntegerTable intTable,
 				Dataset inDS,
 				Dataset outDS) {
+		this(new DICOMAnonymizerProfile(cmds), lkup, intTable, inDS, outDS);
+	}
+
+   /**
+	 * Organize all the data required for anonymization, using
+	 * a profile which has been computed for the script.
+	 * @param profile the profile of the script.
+	 * @param lkup the local lookup table.
+     * @param intTable the integer table containing integer remappings for elements.
+	 * @param inDS the input dataset.
+	 * @param outDS the dataset to be modified
+	 */
+    public DICOMAnonymizerContext(
+				DICOMAnonymizerProfile profile,
+				Properties lkup,
+				IntegerTable intTable,
+				Dataset inDS,
+				Dataset outDS) {
 
-		this.cmds = cmds;
+		this.profile = profile;
+		this.cmds = profile.cmds;
 		this.lkup = lkup;
 		this.intTable = intTable;
 		this.inDS = inDS;
 		this.inFMI = inDS.getFileMetaInfo();
 		this.outDS = outDS;
 
-		//Build the index of private groups
-		pgIndex = new PrivateGroupsIndex(inDS);
-
-		//Make a table to hold locally defined names for private elements
-		privateElementNames = new PrivateNameIndex();
-
 		//Set up the booleans to handle the global cases
-		rpg = (cmds.getProperty("remove.privategroups") != null);
-		rue = (cmds.getProperty("remove.unspecifiedelements") != null);
-		rol = (cmds.getProperty("remove.overlays") != null);
-		rc  = (cmds.getProperty("remove.curves") != null);
-		kspe = (cmds.getProperty("keep.safeprivateelements") != null);
-
-		//Set up the keepGroups and the script Hashtable
-		LinkedList<String> list = new LinkedList<String>();
-		scriptTable = new Hashtable<Integer,String>();
-
-		for (Enumeration it=cmds.keys(); it.hasMoreElements(); ) {
-			String key = (String)it.nextElement();
-
-			if (key.startsWith("set.[")) {
-				int k = findClosingBracket(key, 4);
-				if (k > 0) {
-					int tag = getElementTag(key.substring(5, k));
-					if (tag != 0) {
-						//Store the script
-						Integer tagInteger = new Integer(tag);
-						scriptTable.put( tagInteger, cmds.getProperty(key) );
-
-						//If this is a private group element with a name, index the name.
-						if ((tag & 0x10000) != 0) {
-							String name = key.substring(k+1).trim();
-							if (!name.equals("")) privateElementNames.putTag(name, tag);
-						}
-					}
-				}
-			}
-			else if (key.startsWith("keep.group")) {
-				list.add(key.substring("keep.group".length()).trim());
-			}
+		rpg = profile.rpg;
+		rue = profile.rue;
+		rol = profile.rol;
+		rc  = profile.rc;
+		kspe = profile.kspe;
+		keepGroups = profile.keepGroups;
+
+		//Use the script Hashtable and the private element names of the
+		//profile unless some of the names must be resolved in the dataset.
+		if (profile.indexPerDataset) {
+			scriptTable = new Hashtable<Integer,String>();
+			privateElementNames = new PrivateNameIndex();
+			DICOMAnonymizerProfile.indexScripts(cmds, inDS, scriptTable, privateElementNames);
 		}
-
-		//Convert the list to an int[]
-		Iterator<String> iter = list.iterator();
-		keepGroups = new int[list.size()];
-		for (int i=0; i<keepGroups.length; i++) {
-			try { keepGroups[i] = Integer.parseInt(iter.next(),16); }
-			catch (Exception ex) { keepGroups[i] = 0; }
+		else {
+			scriptTable = profile.scriptTable;
+			privateElementNames = profile.privateElementNames;
 		}
-		Arrays.sort(keepGroups);
 
 		inStack = new LinkedList<Dataset>();
 		outStack = new LinkedList<Dataset>();
 	}
 
-	private int findClosingBracket(String s, int start) {
-		int count = 0;
-		for (int i=start; i<s.length(); i++) {
-			char c = s.charAt(i);
-			if (c == '[') count++;
-			else if (c == ']') count--;
-			if (count == 0) return i;
-		}
-		return -1;
+	/*
+	 * Get the index of the private groups of the input dataset.
+	 */
+	PrivateGroupsIndex getPrivateGroupsIndex() {
+		if (pgIndex == null) pgIndex = new PrivateGroupsIndex(inDS);
+		return pgIndex;
 	}
 
 	/*
@@ -436,22 +421,7 @@ public class DICOMAnonymizerContext {
 	 * an element specification
 	 */
 	public int getElementTag(String name, Dataset ds) {
-		if (name == null) return 0;
-		name = name.trim();
-		int k = name.length() - 1;
-		if (name.startsWith("[") && name.endsWith("]")) name = name.substring(1, k).trim();
-		else if (name.startsWith("(") && name.endsWith(")")) name = name.substring(1, k).trim();
-		
-		//Try it as a standard element specification
-		int tag = DicomObject.getElementTag(name);
-		if (tag != 0) return tag;
-		
-		//Try it as a private element name
-		tag = privateElementNames.getTag(name);
-		if (tag != 0) return tag;
-
-		//Try to match it as a private group element with a block specification
-		return DicomObject.getPrivateElementTag(ds, name);
+		return DICOMAnonymizerProfile.getElementTag(name, ds, privateElementNames);
 	}
 	
 	/**
@@ -0,0 +1,176 @@
+/*---------------------------------------------------------------
+ *  Copyright 2016 by the Radiological Society of North America
+ *
+ *  This source software is released under the terms of the
+ *  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+ *----------------------------------------------------------------*/
+
+package org.rsna.ctp.stdstages.anonymizer.dicom;
+
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Properties;
+import org.dcm4che.data.Dataset;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.objects.PrivateNameIndex;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The parts of the anonymizer context which depend only on the script:
+ * the global commands, the keep groups, the table of element scripts,
+ * and the index of private element names. A profile is computed once
+ * for each version of a DAScript and shared by the contexts of all the
+ * objects anonymized with that version, including contexts in concurrent
+ * threads, so it must not be modified after it is constructed.
+ * <p>
+ * Element scripts whose names identify private elements by their block
+ * owners (e.g., 0009[GEMS]02) can only be resolved in a dataset. If a script
+ * contains such names, each context indexes the element scripts itself.
+ */
+public class DICOMAnonymizerProfile {
+
+	static final Logger logger = Logger.getLogger(DICOMAnonymizerProfile.class);
+
+	public final Properties cmds;
+
+	public final boolean rpg; //remove private groups
+	public final boolean rue; //remove unscripted elements
+	public final boolean rol; //remove overlays
+	public final boolean rc;  //remove curves
+	public final boolean kspe; //keep safe private elements
+
+	public final int[] keepGroups;
+	public final Hashtable<Integer,String> scriptTable;
+	public final PrivateNameIndex privateElementNames;
+
+	/** true if the element scripts must be indexed in each dataset. */
+	public final boolean indexPerDataset;
+
+	/**
+	 * Compute the profile of a script.
+	 * @param cmds the complete set of scripts.
+	 */
+	public DICOMAnonymizerProfile(Properties cmds) {
+		this.cmds = cmds;
+
+		//Set up the booleans to handle the global cases
+		rpg = (cmds.getProperty("remove.privategroups") != null);
+		rue = (cmds.getProperty("remove.unspecifiedelements") != null);
+		rol = (cmds.getProperty("remove.overlays") != null);
+		rc  = (cmds.getProperty("remove.curves") != null);
+		kspe = (cmds.getProperty("keep.safeprivateelements") != null);
+
+		//Set up the keepGroups
+		LinkedList<String> list = new LinkedList<String>();
+		for (Enumeration<?> it=cmds.keys(); it.hasMoreElements(); ) {
+			String key = (String)it.nextElement();
+			if (key.startsWith("keep.group")) {
+				list.add(key.substring("keep.group".length()).trim());
+			}
+		}
+
+		//Convert the list to an int[]
+		Iterator<String> iter = list.iterator();
+		keepGroups = new int[list.size()];
+		for (int i=0; i<keepGroups.length; i++) {
+			try { keepGroups[i] = Integer.parseInt(iter.next(),16); }
+			catch (Exception ex) { keepGroups[i] = 0; }
+		}
+		Arrays.sort(keepGroups);
+
+		//Set up the script Hashtable and the private element names
+		scriptTable = new Hashtable<Integer,String>();
+		privateElementNames = new PrivateNameIndex();
+		indexPerDataset = !indexScripts(cmds, null, scriptTable, privateElementNames);
+		if (indexPerDataset) {
+			logger.debug("The element scripts will be indexed in each dataset");
+		}
+	}
+
+	/**
+	 * Index the element scripts and the names of private elements.
+	 * @param cmds the complete set of scripts.
+	 * @param ds the dataset to use for finding private elements
+	 * identified by their block owners, or null if there is no dataset.
+	 * @param scriptTable the table in which to store the scripts.
+	 * @param names the index in which to store the names of private elements.
+	 * @return true if the names of all the elements with scripts were resolved;
+	 * false if some could not be resolved.
+	 */
+	static boolean indexScripts(
+				Properties cmds,
+				Dataset ds,
+				Hashtable<Integer,String> scriptTable,
+				PrivateNameIndex names) {
+		boolean resolved = true;
+		for (Enumeration<?> it=cmds.keys(); it.hasMoreElements(); ) {
+			String key = (String)it.nextElement();
+			if (key.startsWith("set.[")) {
+				int k = findClosingBracket(key, 4);
+				if (k > 0) {
+					int tag = getElementTag(key.substring(5, k), ds, names);
+					if (tag != 0) {
+						//Store the script
+						Integer tagInteger = Integer.valueOf(tag);
+						scriptTable.put( tagInteger, cmds.getProperty(key) );
+
+						//If this is a private group element with a name, index the name.
+						if ((tag & 0x10000) != 0) {
+							String name = key.substring(k+1).trim();
+							if (!name.equals("")) names.putTag(name, tag);
+						}
+					}
+					else resolved = false;
+				}
+			}
+		}
+		return resolved;
+	}
+
+	private static int findClosingBracket(String s, int start) {
+		int count = 0;
+		for (int i=start; i<s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '[') count++;
+			else if (c == ']') count--;
+			if (count == 0) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the tag for a DICOM element, supporting dcm4che names,
+	 * hex strings, the names of private elements defined in the
+	 * script, and private elements identified by their block owners.
+	 * See DICOMAnonymizerContext.getElementTag for the syntax.
+	 * @param name the dcm4che element name or coded hex value.
+	 * @param ds the dataset to use for finding a private element,
+	 * or null if there is no dataset.
+	 * @param names the index of the names of private elements.
+	 * @return the tag, or zero if the name cannot be parsed as
+	 * an element specification
+	 */
+	static int getElementTag(String name, Dataset ds, PrivateNameIndex names) {
+		if (name == null) return 0;
+		name = name.trim();
+		int k = name.length() - 1;
+		if (name.startsWith("[") && name.endsWith("]")) name = name.substring(1, k).trim();
+		else if (name.startsWith("(") && name.endsWith(")")) name = name.substring(1, k).trim();
+
+		//Try it as a standard element specification
+		int tag = DicomObject.getElementTag(name);
+		if (tag != 0) return tag;
+
+		//Try it as a private element name
+		tag = names.getTag(name);
+		if (tag != 0) return tag;
+
+		//Try to match it as a private group element with a block specification
+		if (ds == null) return 0;
+		return DicomObject.getPrivateElementTag(ds, name);
+	}
+}
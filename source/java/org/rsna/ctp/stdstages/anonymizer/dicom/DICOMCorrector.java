@@ -81,9 +81,14 @@ public class DICOMCorrector {
 
 				//Rename the temp file to the specified outFile.
 				outFile.delete();
-				tempFile.renameTo(outFile);
+				if (!tempFile.renameTo(outFile)) return AnonymizerStatus.OK(outFile, "");
 
-				return AnonymizerStatus.OK(outFile, "");
+				//Hand the corrected dataset to the caller
+				//so it does not have to parse the file again.
+				DicomObject result = null;
+				try { result = new DicomObject(outFile, ds, dob.isImage()); }
+				catch (Exception ex) { logger.debug("Unable to create the DicomObject", ex); }
+				return AnonymizerStatus.OK(outFile, "", result);
 			}
 		}
 		catch (Exception unable) {
@@ -92,7 +97,7 @@ public class DICOMCorrector {
 		}
 	}
 
-	private static boolean correctDataset(File inFile, Dataset ds, SpecificCharacterSet scs,
+	static boolean correctDataset(File inFile, Dataset ds, SpecificCharacterSet scs,
 										  boolean fixPrivateElements,
 										  boolean quarantineUncorrectedMismatches,
 										  boolean logUncorrectedMismatches) throws Exception {
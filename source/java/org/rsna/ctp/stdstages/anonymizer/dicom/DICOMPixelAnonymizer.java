@@ -46,6 +46,7 @@ import org.dcm4che.dict.VRs;
 
 import com.pixelmed.codec.jpeg.*;
 
+import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.stdstages.anonymizer.AnonymizerFunctions;
 import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
 
@@ -118,34 +119,12 @@ public class DICOMPixelAnonymizer {
 				return AnonymizerStatus.SKIP(inFile, "Not an image");
 			}
 
-			//Make sure the encoding is supported
-			if (fmi != null) {
-				String transferSyntaxUID = fmi.getTransferSyntaxUID();
-				DcmEncodeParam encoding = DcmEncodeParam.valueOf(transferSyntaxUID);
-				if (encoding.encapsulated && !transferSyntaxUID.equals(JPEGBaseline)) {
-					close(in);
-					logger.debug("Unsupported TransferSyntaxUID: "+transferSyntaxUID);
-					return AnonymizerStatus.SKIP(inFile, "Unsupported TransferSyntaxUID: "+transferSyntaxUID);
-				}
-			}
-
-			//Get the required parameters and make sure they are okay
-			int numberOfFrames = getInt(dataset, Tags.NumberOfFrames, 1);
-			int rows = getInt(dataset, Tags.Rows, 0);
-			int columns = getInt(dataset, Tags.Columns, 0);
-			int bitsAllocated = getInt(dataset, Tags.BitsAllocated, 16);
-			int samplesPerPixel = getInt(dataset, Tags.SamplesPerPixel, 1);
-			int planarConfiguration = getInt(dataset, Tags.PlanarConfiguration, 0);
-			String photometricInterpretation = getString(dataset, Tags.PhotometricInterpretation, "");
-			if ((rows == 0) || (columns == 0)) {
-				close(in);
-				logger.debug("Unable to get the rows and columns");
-				return AnonymizerStatus.SKIP(inFile, "Unable to get the rows and columns");
-			}
-			if ((bitsAllocated % 8) != 0) {
+			//Make sure the encoding and the pixel parameters are supported
+			String unsupported = checkPixels(dataset);
+			if (unsupported != null) {
 				close(in);
-				logger.debug("Unsupported BitsAllocated: "+bitsAllocated);
- 				return AnonymizerStatus.SKIP(inFile, "Unsupported BitsAllocated: "+bitsAllocated);
+				logger.debug(unsupported);
+				return AnonymizerStatus.SKIP(inFile, unsupported);
 			}
 
 			//Set the encoding
@@ -187,23 +166,7 @@ public class DICOMPixelAnonymizer {
 					parser.getReadLength());
 				logger.debug("Stream position after writing the Pixels element header: "
 								+parser.getStreamPosition()+" ["+Long.toHexString(parser.getStreamPosition())+"]");
-				if (!encoding.encapsulated) {
-					//Handle the non-encapsulated case
-					processUnencapsulatedPixels(parser,
-												out,
-												swap && (parser.getReadVR() == VRs.OW),
-												numberOfFrames, samplesPerPixel, planarConfiguration, photometricInterpretation,
-												rows, columns, bitsAllocated,
-												regions, test);
-					}
-				else {
-					//Handle the encapsulated case
-					processEncapsulatedPixels(parser,
-											  dataset,
-											  out,
-											  encoding,
-											  regions);
-				}
+				processPixels(parser, dataset, out, encoding, swap, regions, test);
 			}
 			logger.debug("Finished writing the pixels");
 			logger.debug("Stream position after processing the Pixels element: "
@@ -245,9 +208,14 @@ public class DICOMPixelAnonymizer {
 			out.close();
 			in.close();
 			outFile.delete();
-			tempFile.renameTo(outFile);
+			if (!tempFile.renameTo(outFile)) return AnonymizerStatus.OK(outFile,"");
+
+			//Hand the dataset to the caller so it does not have to parse the file again.
+			DicomObject result = null;
+			try { result = new DicomObject(outFile, dataset, true); }
+			catch (Exception ex) { logger.debug("Unable to create the DicomObject", ex); }
 			logger.debug("Returning AnonymizerStatus.OK");
-			return AnonymizerStatus.OK(outFile,"");
+			return AnonymizerStatus.OK(outFile,"",result);
 		}
 
 		catch (Exception e) {
@@ -273,6 +241,74 @@ public class DICOMPixelAnonymizer {
 		}
     }
 
+	/**
+	 * Check whether the pixels of a dataset can be anonymized.
+	 * @param dataset the dataset, parsed up to the pixels.
+	 * @return null if the pixels can be anonymized, or the reason why they cannot.
+	 */
+	static String checkPixels(Dataset dataset) {
+		FileMetaInfo fmi = dataset.getFileMetaInfo();
+		if (fmi != null) {
+			String transferSyntaxUID = fmi.getTransferSyntaxUID();
+			DcmEncodeParam encoding = DcmEncodeParam.valueOf(transferSyntaxUID);
+			if (encoding.encapsulated && !transferSyntaxUID.equals(JPEGBaseline)) {
+				return "Unsupported TransferSyntaxUID: "+transferSyntaxUID;
+			}
+		}
+		int rows = getInt(dataset, Tags.Rows, 0);
+		int columns = getInt(dataset, Tags.Columns, 0);
+		int bitsAllocated = getInt(dataset, Tags.BitsAllocated, 16);
+		if ((rows == 0) || (columns == 0)) return "Unable to get the rows and columns";
+		if ((bitsAllocated % 8) != 0) return "Unsupported BitsAllocated: "+bitsAllocated;
+		return null;
+	}
+
+	/**
+	 * Blank the regions of the value of the PixelData element, copying it from
+	 * the parser to the output stream. The parser must be positioned at the
+	 * start of the value, and the header of the element must already have been
+	 * written. The dataset must have been accepted by checkPixels.
+	 * @param parser the parser of the input file.
+	 * @param dataset the dataset of the object.
+	 * @param out the output stream.
+	 * @param encoding the encoding of the output stream.
+	 * @param swap true if the byte order of the input differs from that of the output.
+	 * @param regions the object containing the pixel areas to blank.
+	 * @param test true to highlight blanked regions; false to render them in black.
+	 * @throws Exception if the pixels cannot be processed.
+	 */
+	static void processPixels(
+					DcmParser parser,
+					Dataset dataset,
+					OutputStream out,
+					DcmEncodeParam encoding,
+					boolean swap,
+					Regions regions,
+					boolean test) throws Exception {
+		if (!encoding.encapsulated) {
+			//Handle the non-encapsulated case
+			processUnencapsulatedPixels(parser,
+										out,
+										swap && (parser.getReadVR() == VRs.OW),
+										getInt(dataset, Tags.NumberOfFrames, 1),
+										getInt(dataset, Tags.SamplesPerPixel, 1),
+										getInt(dataset, Tags.PlanarConfiguration, 0),
+										getString(dataset, Tags.PhotometricInterpretation, ""),
+										getInt(dataset, Tags.Rows, 0),
+										getInt(dataset, Tags.Columns, 0),
+										getInt(dataset, Tags.BitsAllocated, 16),
+										regions, test);
+		}
+		else {
+			//Handle the encapsulated case
+			processEncapsulatedPixels(parser,
+									  dataset,
+									  out,
+									  encoding,
+									  regions);
+		}
+	}
+
     private static void close(InputStream in) {
 		try { if (in != null) in.close(); }
 		catch (Exception ex) {
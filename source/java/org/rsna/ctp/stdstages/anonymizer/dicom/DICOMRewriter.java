@@ -0,0 +1,399 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.stdstages.anonymizer.dicom;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.Properties;
+
+import org.dcm4che.data.Dataset;
+import org.dcm4che.data.DcmDecodeParam;
+import org.dcm4che.data.DcmEncodeParam;
+import org.dcm4che.data.DcmObjectFactory;
+import org.dcm4che.data.DcmParser;
+import org.dcm4che.data.DcmParserFactory;
+import org.dcm4che.data.FileFormat;
+import org.dcm4che.data.FileMetaInfo;
+import org.dcm4che.dict.Tags;
+import org.dcm4che.dict.UIDs;
+import org.dcm4che.dict.VRs;
+
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.objects.ElementTransfer;
+import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
+import org.rsna.ctp.stdstages.anonymizer.IntegerTable;
+import org.rsna.util.FileUtil;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A single-pass rewriter for DICOM objects. The rewriter parses an object
+ * once, applies the header changes of any number of anonymizer and corrector
+ * steps to the parsed dataset, and then writes the object once, blanking
+ * the regions of a pixel anonymizer step while the pixels are streamed.
+ * This allows a run of consecutive DICOM-modifying stages to read and write
+ * a large object once instead of once per stage.
+ * <p>
+ * The steps are applied in the order in which they are called, and each
+ * step sees the dataset as modified by the steps before it, so the result
+ * is the same as that of calling DICOMAnonymizer, DICOMCorrector, and
+ * DICOMPixelAnonymizer in turn.
+ */
+public class DICOMRewriter {
+
+	static final Logger logger = Logger.getLogger(DICOMRewriter.class);
+	static final DcmParserFactory pFact = DcmParserFactory.getInstance();
+	static final DcmObjectFactory oFact = DcmObjectFactory.getInstance();
+
+	File inFile;
+	InputStream in;
+	DcmParser parser;
+	Dataset dataset;
+	DicomObject dob;
+	boolean hasFileMetaInfo;
+	boolean hasCharset;
+	boolean changed = false;
+	boolean headerChanged = false;
+	boolean anonymized = false;
+	LinkedList<DICOMAnonymizerContext> contexts = new LinkedList<DICOMAnonymizerContext>();
+	Regions regions = null;
+	boolean test = false;
+
+	/**
+	 * Parse an object up to the pixels, leaving the input file open
+	 * so the pixels and any following elements can be streamed.
+	 * @param inFile the file to rewrite.
+	 * @throws Exception if the file cannot be parsed as a DicomObject.
+	 */
+	public DICOMRewriter(File inFile) throws Exception {
+		this.inFile = inFile;
+		try {
+			in = new BufferedInputStream(new FileInputStream(inFile));
+			parser = pFact.newDcmParser(in);
+			FileFormat fileFormat = parser.detectFileFormat();
+			if (fileFormat == null) throw new IOException("Unrecognized file format: "+inFile);
+			dataset = oFact.newDataset();
+			parser.setDcmHandler(dataset.getDcmHandler());
+			parser.parseDcmFile(fileFormat, Tags.PixelData);
+
+			//Remember what the file had, since the DicomObject supplies
+			//defaults for the FileMetaInfo and the SpecificCharacterSet.
+			hasFileMetaInfo = (dataset.getFileMetaInfo() != null);
+			hasCharset = (dataset.getSpecificCharacterSet() != null);
+			if (!hasFileMetaInfo) {
+				dataset.setFileMetaInfo(oFact.newFileMetaInfo(dataset, UIDs.ImplicitVRLittleEndian));
+			}
+			dob = new DicomObject(inFile, dataset, (parser.getReadTag() == Tags.PixelData));
+		}
+		catch (Exception ex) {
+			close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Get the object being rewritten. The dataset of the object includes
+	 * the changes made by the steps applied so far, so the object can
+	 * be used to evaluate filter scripts and pixel signatures.
+	 * @return the object being rewritten.
+	 */
+	public DicomObject getDicomObject() {
+		return dob;
+	}
+
+	/**
+	 * Anonymize the dataset.
+	 * @param cmds the properties object containing the anonymization commands.
+	 * @param lkup the properties object containing the local lookup table; null
+	 * if local lookup is not to be used.
+	 * @param intTable the integer table containing integer remappings for elements.
+	 * @return OK if the dataset was anonymized, or the SKIP or QUARANTINE status
+	 * called for by the script. If the status is not OK, the dataset is unchanged.
+	 */
+	public AnonymizerStatus anonymize(Properties cmds, Properties lkup, IntegerTable intTable) {
+		return anonymize(new DICOMAnonymizerProfile(cmds), lkup, intTable);
+	}
+
+	/**
+	 * Anonymize the dataset, using a profile which has been computed for the script.
+	 * @param profile the profile of the anonymization commands.
+	 * @param lkup the properties object containing the local lookup table; null
+	 * if local lookup is not to be used.
+	 * @param intTable the integer table containing integer remappings for elements.
+	 * @return OK if the dataset was anonymized, or the SKIP or QUARANTINE status
+	 * called for by the script. If the status is not OK, the dataset is unchanged.
+	 */
+	public AnonymizerStatus anonymize(DICOMAnonymizerProfile profile, Properties lkup, IntegerTable intTable) {
+		Dataset origds = copy(dataset);
+		try {
+			contexts.add( DICOMAnonymizer.anonymizeDataset(profile, lkup, intTable, origds, dataset) );
+			changed = true;
+			headerChanged = true;
+			anonymized = true;
+			return AnonymizerStatus.OK(inFile, "");
+		}
+		catch (Exception e) {
+			//Undo any changes made before the exception.
+			dataset.clear();
+			dataset.putAll(origds);
+			dataset.setFileMetaInfo(origds.getFileMetaInfo());
+			return DICOMAnonymizer.getStatus(inFile, e);
+		}
+	}
+
+	/**
+	 * Correct the VRs of elements whose VRs do not match the dictionary.
+	 * @param fixPrivateElements true if private elements are to be corrected.
+	 * @param quarantineUncorrectedMismatches true if objects are to be
+	 * quarantined if any mismatches cannot be corrected.
+	 * @param logUncorrectedMismatches true if uncorrected mismatches are to be logged.
+	 * @return OK if the dataset was corrected, SKIP if no corrections were
+	 * required, or QUARANTINE if the dataset could not be corrected.
+	 */
+	public AnonymizerStatus correct(
+			boolean fixPrivateElements,
+			boolean quarantineUncorrectedMismatches,
+			boolean logUncorrectedMismatches) {
+		try {
+			boolean corrected = DICOMCorrector.correctDataset(inFile, dataset, dataset.getSpecificCharacterSet(),
+												 fixPrivateElements,
+												 quarantineUncorrectedMismatches,
+												 logUncorrectedMismatches);
+			if (!corrected) return AnonymizerStatus.SKIP(inFile, "");
+			changed = true;
+			headerChanged = true;
+			return AnonymizerStatus.OK(inFile, "");
+		}
+		catch (Exception unable) {
+			return AnonymizerStatus.QUARANTINE(inFile, "");
+		}
+	}
+
+	/**
+	 * Blank regions of the pixels when the object is written. Only one
+	 * set of regions can be blanked in a single pass.
+	 * @param regions the object containing the pixel areas to blank.
+	 * @param setBurnedInAnnotation true set the BurnedInAnnotation element to NO.
+	 * @param test true to highlight blanked regions; false to render them in black.
+	 * @return OK if the regions will be blanked, or SKIP if the
+	 * object is not an image or its pixels are not supported.
+	 */
+	public AnonymizerStatus blankRegions(Regions regions, boolean setBurnedInAnnotation, boolean test) {
+		if (!dob.isImage()) return AnonymizerStatus.SKIP(inFile, "Not an image");
+		if (this.regions != null) {
+			return AnonymizerStatus.SKIP(inFile, "Regions have already been set for this pass");
+		}
+		String unsupported = DICOMPixelAnonymizer.checkPixels(dataset);
+		if (unsupported != null) {
+			logger.debug(unsupported);
+			return AnonymizerStatus.SKIP(inFile, unsupported);
+		}
+		this.regions = regions;
+		this.test = test;
+		if (setBurnedInAnnotation) dataset.putCS(Tags.BurnedInAnnotation, "NO");
+		changed = true;
+		return AnonymizerStatus.OK(inFile, "");
+	}
+
+	/**
+	 * Write the rewritten object and close the input file. If none of the
+	 * steps changed the object, the output file is not written.
+	 * @param outFile the output file. It may be the same as the input file.
+	 * @return OK, with the DicomObject of the output file, if the object was
+	 * written; SKIP if the object was not changed; or QUARANTINE if the
+	 * object could not be written.
+	 */
+	public AnonymizerStatus write(File outFile) {
+		if (!changed) {
+			close();
+			return AnonymizerStatus.SKIP(inFile, "");
+		}
+		OutputStream out = null;
+		ElementTransfer transfer = null;
+		File tempFile = null;
+		byte[] buffer = new byte[65536];
+		try {
+			//Set the encoding. Objects without file meta information are
+			//written in the syntax that the anonymizer would have used.
+			DcmDecodeParam fileParam = parser.getDcmDecodeParam();
+			String prefEncodingUID = anonymized ? UIDs.ExplicitVRLittleEndian : UIDs.ImplicitVRLittleEndian;
+			if (hasFileMetaInfo) prefEncodingUID = dataset.getFileMetaInfo().getTransferSyntaxUID();
+			DcmEncodeParam encoding = DcmDecodeParam.valueOf(prefEncodingUID);
+			boolean swap = fileParam.byteOrder != encoding.byteOrder;
+
+			//If only the pixels were changed, do not add the default
+			//SpecificCharacterSet supplied by the DicomObject.
+			if (!hasCharset && !headerChanged) dataset.remove(Tags.SpecificCharacterSet);
+
+			//Write the dataset to a temporary file in the same directory
+			tempFile = File.createTempFile("DCMtemp-", ".rewrite", outFile.getParentFile());
+			FileOutputStream fileOut = new FileOutputStream(tempFile);
+			out = new BufferedOutputStream(fileOut, buffer.length);
+			transfer = new ElementTransfer(inFile, fileOut, out);
+			FileMetaInfo fmi = oFact.newFileMetaInfo(dataset, prefEncodingUID);
+			dataset.setFileMetaInfo(fmi);
+			fmi.write(out);
+			dataset.writeDataset(out, encoding);
+
+			//Write the pixels, blanking the regions if necessary
+			boolean isImage = (parser.getReadTag() == Tags.PixelData);
+			if (isImage) {
+				dataset.writeHeader(
+					out,
+					encoding,
+					parser.getReadTag(),
+					parser.getReadVR(),
+					parser.getReadLength());
+				if (regions != null) {
+					DICOMPixelAnonymizer.processPixels(parser, dataset, out, encoding, swap, regions, test);
+				}
+				else if (encoding.encapsulated) {
+					parser.parseHeader();
+					while (parser.getReadTag() == Tags.Item) {
+						dataset.writeHeader(
+							out,
+							encoding,
+							parser.getReadTag(),
+							parser.getReadVR(),
+							parser.getReadLength());
+						DICOMAnonymizer.writeValueTo(parser, buffer, out, false, transfer);
+						parser.parseHeader();
+					}
+					if (parser.getReadTag() != Tags.SeqDelimitationItem) {
+						throw new Exception("Unexpected Tag: " + Tags.toString(parser.getReadTag()));
+					}
+					dataset.writeHeader(out, encoding, Tags.SeqDelimitationItem, VRs.NONE, 0);
+				}
+				else {
+					DICOMAnonymizer.writeValueTo(parser, buffer, out, swap && (parser.getReadVR() == VRs.OW), transfer);
+				}
+				writePostPixelsElements(parser, out, encoding, swap, buffer, transfer);
+			}
+			out.flush();
+			out.close();
+			transfer.close();
+			close();
+
+			//Rename the temp file to the specified outFile.
+			if (outFile.exists() && !outFile.delete()) {
+				logger.warn("Unable to delete " + outFile);
+			}
+			if (!tempFile.renameTo(outFile)) {
+				logger.warn("Unable to rename "+ tempFile + " to " + outFile);
+				return AnonymizerStatus.OK(outFile, "");
+			}
+
+			//Hand the dataset to the caller so it does not have to parse the file again.
+			DicomObject result = null;
+			try { result = new DicomObject(outFile, dataset, isImage); }
+			catch (Exception ex) { logger.debug("Unable to create the DicomObject", ex); }
+			return AnonymizerStatus.OK(outFile, "", result);
+		}
+		catch (Exception e) {
+			logger.debug("Exception while rewriting "+inFile, e);
+			FileUtil.close(out);
+			if (transfer != null) transfer.close();
+			FileUtil.deleteAll(tempFile);
+			close();
+			return AnonymizerStatus.QUARANTINE(inFile, e.getMessage());
+		}
+	}
+
+	/**
+	 * Close the input file without writing the object.
+	 */
+	public void close() {
+		FileUtil.close(in);
+		in = null;
+	}
+
+	//Copy the elements which follow the pixels one at a time, applying
+	//the removals of all the anonymizer steps. This is done to allow
+	//streaming of large raw data elements that occur after the pixels.
+	private void writePostPixelsElements(
+					DcmParser parser,
+					OutputStream out,
+					DcmEncodeParam encoding,
+					boolean swap,
+					byte[] buffer,
+					ElementTransfer transfer) throws Exception {
+		long fileLength = inFile.length();
+		int lastGroup = 0;
+		Hashtable<Integer,String> creatorIndex = new Hashtable<Integer,String>();
+		int tag;
+		while ((parser.getStreamPosition() < fileLength)
+					&& (parser.parseHeader() != -1)
+					&& !parser.hasSeenEOF()
+					&& ((tag=parser.getReadTag()) != -1)
+					&& (tag != 0xFFFAFFFA)
+					&& (tag != 0xFFFCFFFC)) {
+			int len = parser.getReadLength();
+			int group = (tag >> 16) & 0xffff;
+			boolean isPrivate = ((tag & 0x10000) != 0);
+			boolean isCreator = ((tag & 0xFF00) == 0);
+			String creator = null;
+			byte[] creatorBytes = null;
+			if (isPrivate && isCreator) {
+				//Read the creator to index the elements of its block
+				if (lastGroup != group) {
+					creatorIndex = new Hashtable<Integer,String>();
+					lastGroup = group;
+				}
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				InputStream inStream = parser.getInputStream();
+				for (int i = 0; i < len; ++i) baos.write(inStream.read());
+				parser.setStreamPosition(parser.getStreamPosition() + len);
+				creatorBytes = baos.toByteArray();
+				creator = new String(creatorBytes).trim();
+				creatorIndex.put(Integer.valueOf(group), creator);
+			}
+			else if (isPrivate) creator = creatorIndex.get(Integer.valueOf(group));
+
+			boolean remove = false;
+			for (DICOMAnonymizerContext context : contexts) {
+				remove |= DICOMAnonymizer.removesPostPixelsElement(context, tag, creator);
+			}
+			if (remove) {
+				logger.debug("Skipping element: "+Tags.toString(tag));
+				if (creatorBytes == null) {
+					InputStream inStream = parser.getInputStream();
+					for (int i = 0; i < len; ++i) inStream.read();
+					parser.setStreamPosition(parser.getStreamPosition() + len);
+				}
+			}
+			else {
+				dataset.writeHeader(
+					out,
+					encoding,
+					parser.getReadTag(),
+					parser.getReadVR(),
+					parser.getReadLength());
+				if (creatorBytes != null) out.write(creatorBytes);
+				else DICOMAnonymizer.writeValueTo(parser, buffer, out, swap, transfer);
+			}
+		}
+	}
+
+	//Make a copy of a dataset, including its FileMetaInfo.
+	static Dataset copy(Dataset dataset) {
+		Dataset copy = oFact.newDataset();
+		copy.putAll(dataset);
+		copy.setFileMetaInfo(dataset.getFileMetaInfo());
+		return copy;
+	}
+
+}
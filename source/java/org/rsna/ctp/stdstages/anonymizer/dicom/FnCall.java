@@ -9,6 +9,7 @@ package org.rsna.ctp.stdstages.anonymizer.dicom;
 
 import java.util.LinkedList;
 import java.util.Properties;
+import java.util.regex.Pattern;
 import org.apache.log4j.Logger;
 import org.dcm4che.data.Dataset;
 import org.dcm4che.dict.Tags;
@@ -52,7 +53,18 @@ public class FnCall {
 	
 	/** the parsed function call. */
 	public String fnCall = "";
-	
+
+	//The compiled form of the call, set by ReplacementScript.
+	int function = 0;
+	ReplacementScript trueScript = null;
+	ReplacementScript falseScript = null;
+	Pattern pattern = null;
+
+	//The arguments with their quotes removed, and the
+	//arguments which are integers, or null if they are not.
+	String[] values = null;
+	Integer[] ints = null;
+
 	LinkedList<String> arglist;
 	int currentIndex = 0;
 
@@ -96,6 +108,16 @@ public class FnCall {
 		//okay, we have the arguments; save them
 		args = new String[arglist.size()];
 		arglist.toArray(args);
+		values = new String[args.length];
+		ints = new Integer[args.length];
+		for (int i=0; i<args.length; i++) {
+			values[i] = args[i];
+			if (values[i].startsWith("\"") && values[i].endsWith("\"")) {
+				values[i] = values[i].substring(1,values[i].length()-1);
+			}
+			try { ints[i] = Integer.valueOf(Integer.parseInt(args[i])); }
+			catch (Exception notInteger) { }
+		}
 		
 		//skip the, closing paren
 		currentIndex++;
@@ -145,6 +167,30 @@ public class FnCall {
 		}
 	}
 	
+	/**
+	 * Constructor; creates a call of a compiled function call
+	 * for a specific element, without parsing the call again.
+	 * @param fn the compiled function call.
+	 * @param context the context of the call.
+	 * @param thisTag the tag of the element currently being processed
+	 */
+	public FnCall(FnCall fn, DICOMAnonymizerContext context, int thisTag) {
+		this.context = context;
+		this.thisTag = thisTag;
+		this.name = fn.name;
+		this.args = fn.args;
+		this.trueCode = fn.trueCode;
+		this.falseCode = fn.falseCode;
+		this.length = fn.length;
+		this.fnCall = fn.fnCall;
+		this.function = fn.function;
+		this.trueScript = fn.trueScript;
+		this.falseScript = fn.falseScript;
+		this.pattern = fn.pattern;
+		this.values = fn.values;
+		this.ints = fn.ints;
+	}
+
 	//Get and argument, returning with currentIndex pointing to the closing ')'
 	private String getArg(String call) {
 		//skip initial whitespace
@@ -259,11 +305,18 @@ public class FnCall {
 	public String getArg(int arg) {
 		if (args == null) return "";
 		if (arg >= args.length) return "";
-		String argString = args[arg].trim();
-		if (argString.startsWith("\"") && argString.endsWith("\"")) {
-			argString = argString.substring(1,argString.length()-1);
-		}
-		return argString;
+		return values[arg];
+	}
+
+	/**
+	 * Get a specific argument as an integer.
+	 * @param arg the argument to get, counting from zero.
+	 * @return the value of the argument, or null if the argument
+	 * does not exist or is not an integer.
+	 */
+	public Integer getInt(int arg) {
+		if ((ints == null) || (arg >= ints.length)) return null;
+		return ints[arg];
 	}
 
 	/**
@@ -0,0 +1,137 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.stdstages.anonymizer.dicom;
+
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.regex.Pattern;
+import org.apache.log4j.Logger;
+
+/**
+ * The compiled form of the replacement script of an element.
+ * The script is parsed once into a sequence of steps, each of which is either
+ * a literal string or a function call whose name has been resolved to a function
+ * code, whose arguments have been decoded, and whose conditional clauses have
+ * themselves been compiled. The anonymizer evaluates the steps for each element
+ * without parsing the script again.
+ * <p>
+ * Compiled scripts are cached by the text of the script, so the scripts of
+ * a DAScript are compiled when the first object is anonymized after the
+ * version of the DAScript is loaded, and scripts which are unchanged in a new
+ * version of the DAScript are not compiled again.
+ */
+public class ReplacementScript {
+
+	static final Logger logger = Logger.getLogger(ReplacementScript.class);
+
+	static final Hashtable<String,ReplacementScript> scripts = new Hashtable<String,ReplacementScript>();
+	static final int maxScripts = 8192;
+
+	static final char escapeChar 	= '\\';
+	static final char functionChar 	= '@';
+
+	/** The text of the script. */
+	public final String script;
+
+	//The steps of the script. For each step, either
+	//the text or the call is non-null.
+	final String[] text;
+	final FnCall[] calls;
+
+	/**
+	 * Get the compiled form of a replacement script.
+	 * @param script the text of the script.
+	 * @return the compiled script.
+	 */
+	public static ReplacementScript getInstance(String script) {
+		if (script == null) script = "";
+		ReplacementScript rs = scripts.get(script);
+		if (rs == null) {
+			rs = new ReplacementScript(script);
+			if (scripts.size() >= maxScripts) scripts.clear();
+			scripts.put(script, rs);
+		}
+		return rs;
+	}
+
+	/**
+	 * Compile a replacement script. The script is parsed in exactly
+	 * the same way as it was when it was interpreted for each element:
+	 * a backslash escapes the next character, an '@' starts a function
+	 * call, and the first function call which cannot be parsed ends the
+	 * script. Calls to unknown functions are copied into the replacement
+	 * as literal text.
+	 * @param script the text of the script.
+	 */
+	protected ReplacementScript(String script) {
+		this.script = script;
+		LinkedList<String> textList = new LinkedList<String>();
+		LinkedList<FnCall> callList = new LinkedList<FnCall>();
+		StringBuffer sb = new StringBuffer();
+		char c;
+		int i = 0;
+		boolean escape = false;
+		while (i < script.length()) {
+			c = script.charAt(i++);
+			if (escape) {
+				sb.append(c);
+				escape = false;
+			}
+			else if (c == escapeChar) escape = true;
+			else if (c == functionChar) {
+				FnCall fnCall = new FnCall(script.substring(i), null, 0);
+				if (fnCall.length == -1) break;
+				i += fnCall.length;
+				fnCall.function = DICOMAnonymizer.getFunction(fnCall.name);
+				if (fnCall.function == DICOMAnonymizer.UNKNOWN) {
+					sb.append(functionChar + fnCall.getCall());
+				}
+				else {
+					compile(fnCall);
+					if (sb.length() > 0) {
+						textList.add(sb.toString());
+						callList.add(null);
+						sb.setLength(0);
+					}
+					textList.add(null);
+					callList.add(fnCall);
+				}
+			}
+			else sb.append(c);
+		}
+		if (sb.length() > 0) {
+			textList.add(sb.toString());
+			callList.add(null);
+		}
+		text = textList.toArray(new String[textList.size()]);
+		calls = callList.toArray(new FnCall[callList.size()]);
+	}
+
+	//Compile the clauses of a function call and the
+	//constant arguments which are used as patterns.
+	private void compile(FnCall fn) {
+		fn.trueScript = getInstance(fn.trueCode);
+		fn.falseScript = getInstance(fn.falseCode);
+		try {
+			if ((fn.function == DICOMAnonymizer.CONTENTS)
+					&& ((fn.args.length == 2) || (fn.args.length == 3))) {
+				fn.pattern = Pattern.compile(fn.getArg(1));
+			}
+			else if ((fn.function == DICOMAnonymizer.IF)
+					&& (fn.args.length >= 3) && fn.args[1].equals("matches")
+						&& !fn.getArg(2).startsWith("@")) {
+				fn.pattern = Pattern.compile(fn.getArg(2).trim());
+			}
+		}
+		catch (Exception ex) {
+			//Leave the pattern null so the error
+			//is reported when the call is executed.
+			logger.debug("Unable to compile the pattern in "+fn.fnCall);
+		}
+	}
+}
@@ -53,7 +53,15 @@ public class XMLAnonymizer {
 			Document xmlDocument = XmlUtil.getDocument(inFile);
 			AnonymizerStatus status = anonymize(xmlDocument, cmdFile, lookup);
 			if (status.isOK()) {
-				FileUtil.setText(outFile,XmlUtil.toString(xmlDocument));
+				//Write a new file and rename it rather than rewriting outFile
+				//in place, in case outFile is hard-linked into an export queue.
+				File tempFile = File.createTempFile("XMLtemp-", ".anon", outFile.getAbsoluteFile().getParentFile());
+				FileUtil.setText(tempFile,XmlUtil.toString(xmlDocument));
+				outFile.delete();
+				if (!tempFile.renameTo(outFile)) {
+					tempFile.delete();
+					return AnonymizerStatus.QUARANTINE(inFile,"Unable to save anonymized file");
+				}
 				return AnonymizerStatus.OK(outFile,"");
 			}
 			return AnonymizerStatus.QUARANTINE(inFile,status.getMessage());
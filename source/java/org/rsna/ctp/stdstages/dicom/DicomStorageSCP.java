@@ -14,6 +14,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
@@ -33,20 +35,27 @@ import org.dcm4che.dict.Status;
 import org.dcm4che.dict.Tags;
 import org.dcm4che.dict.UIDs;
 import org.dcm4che.dict.VRs;
+import org.dcm4che.net.AAssociateRQ;
 import org.dcm4che.net.AcceptorPolicy;
 import org.dcm4che.net.ActiveAssociation;
 import org.dcm4che.net.Association;
 import org.dcm4che.net.AssociationFactory;
+import org.dcm4che.net.AssociationListener;
 import org.dcm4che.net.DcmServiceBase;
 import org.dcm4che.net.DcmServiceRegistry;
 import org.dcm4che.net.Dimse;
+import org.dcm4che.net.PDU;
 import org.dcm4che.server.DcmHandler;
 import org.dcm4che.server.Server;
 import org.dcm4che.server.ServerFactory;
 import org.dcm4che.util.DcmProtocol;
+import org.rsna.ctp.pipeline.Backpressure;
+import org.rsna.ctp.pipeline.MetricsRegistry;
+import org.rsna.ctp.pipeline.StageMetrics;
 import org.rsna.ctp.stdstages.BlackList;
 import org.rsna.ctp.stdstages.WhiteList;
 import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.objects.FileDigest;
 import org.rsna.ctp.stdstages.DicomImportService;
 
 public class DicomStorageSCP extends DcmServiceBase {
@@ -91,6 +100,7 @@ public class DicomStorageSCP extends DcmServiceBase {
 	private WhiteList callingAETWhiteList = null;
 	private BlackList callingAETBlackList = null;
 	PCTable pcTable = null;
+	StageMetrics metrics = null;
 
 /**/List<String> recentUIDs;
 /**/List<Long> recentTimes;
@@ -141,6 +151,7 @@ public class DicomStorageSCP extends DcmServiceBase {
     protected void doCStore(ActiveAssociation assoc, Dimse rq, Command rspCmd)
         		throws IOException {
         InputStream in = rq.getDataAsStream();
+        boolean overloaded = false;
         try {
 			Command rqCmd = rq.getCommand();
 			Association a = assoc.getAssociation();
@@ -161,7 +172,15 @@ public class DicomStorageSCP extends DcmServiceBase {
 										+ "("+calledAET+":"+callingAET+")");
 			}
 
-			if (!accept) {
+			//Refuse the object if the system is overloaded, telling
+			//the SCU to try again later.
+			overloaded = accept && Backpressure.getInstance().isEngaged();
+
+			count("storeRequests");
+			if (!accept) count("storeRejected");
+			if (overloaded) count("storeOutOfResources");
+
+			if (!accept || overloaded) {
 				skipObject(in);
 			}
 			else {
@@ -230,7 +249,7 @@ public class DicomStorageSCP extends DcmServiceBase {
             try { Thread.sleep(rspDelay); }
             catch (Exception ignore) { boolean dummy = true; }
         }
-        rspCmd.putUS(Tags.Status, Status.Success);
+        rspCmd.putUS(Tags.Status, (overloaded ? Status.OutOfResources : Status.Success));
     }
 
     //Store the object in the temp directory and then queue it.
@@ -243,11 +262,15 @@ public class DicomStorageSCP extends DcmServiceBase {
 		File file = File.createTempFile("TMP-",".dcm",temp);
 		OutputStream out = null;
         try {
+			//Compute the digest of the file as it is written.
+			MessageDigest md = FileDigest.getMessageDigest();
 			out = new BufferedOutputStream(new FileOutputStream(file));
+			if (md != null) out = new DigestOutputStream(out, md);
             fmi.write(out);
             copy(in, out, -1);
             out.close();
             out = null;
+            if (md != null) FileDigest.put(file, md.digest());
             //Queue up the rest of the processing so we can return now.
             execSvc.execute( new Handler(file, calledAET, callingAET, connectionIP, time) );
         }
@@ -290,6 +313,7 @@ public class DicomStorageSCP extends DcmServiceBase {
         handler.setDimseTimeout(dimseTimeout);
         handler.setSoCloseDelay(soCloseDelay);
         handler.setPackPDVs(false);
+        handler.addAssociationListener(new AssociationCounter());
     }
 
     private void initPolicy() {
@@ -308,6 +332,29 @@ public class DicomStorageSCP extends DcmServiceBase {
         }
     }
 
+	//Count an event in the metrics of the DicomImportService.
+	//The metrics are obtained when they are first needed because
+	//the stage is registered after the SCP is created.
+	private void count(String event) {
+		if (metrics == null) metrics = MetricsRegistry.getInstance().getStageMetrics(dicomImportService);
+		if (metrics != null) metrics.count(event, 1);
+	}
+
+	//This class counts the associations requested by SCUs.
+	class AssociationCounter implements AssociationListener {
+		public void write(Association as, PDU pdu) { }
+		public void received(Association as, PDU pdu) {
+			if (pdu instanceof AAssociateRQ) count("associations");
+		}
+		public void write(Association as, Dimse dimse) { }
+		public void received(Association as, Dimse dimse) { }
+		public void error(Association as, IOException ex) {
+			count("associationErrors");
+		}
+		public void closing(Association as) { }
+		public void closed(Association as) { }
+	}
+
 	//This class does the AET update and DicomImportService
 	//notification in a separate thread to allow the SCP to
 	//reply to the SCU as soon as possible.
@@ -102,6 +102,7 @@ public class DicomStorageSCU {
     private static long anHour = 60 * 60 * 1000;
 
     private long lastTransmissionTime = 0;
+    private int lastResponseStatus = -1;
     private long associationTimeout = 0;
     private AssociationCloser associationCloser = null;
 
@@ -220,6 +221,7 @@ public class DicomStorageSCU {
 	 */
 	public synchronized Status send(DicomObject dicomObject) {
 		logger.debug("Exporting "+dicomObject.getFile().getName()+" to "+url.toString());
+		lastResponseStatus = -1;
 		DcmParser parser = dicomObject.getDcmParser();
 		Dataset ds = dicomObject.getDataset();
 
@@ -335,18 +337,23 @@ public class DicomStorageSCU {
 			Dimse request = aFact.newDimse(pc.pcid(), command, new MyDataSource(parser, ds, buffer));
 			Dimse response = active.invoke(request).get();
 			int status = response.getCommand().getStatus();
+			lastResponseStatus = status;
 			if (forceClose) close();
-			if (status == 0) {
+			Status result = getStatus(status);
+			if (result.equals(Status.OK)) {
 				lastFailureMessageTime = 0;
 				lastTransmissionTime = System.currentTimeMillis();
-				logger.debug("...transmission succeeded; returning Status.OK");
-				return Status.OK;
+				logger.debug("...transmission succeeded ("+Integer.toHexString(status)+"); returning Status.OK");
 			}
-			else { 
-				logger.debug("...transmission failed ("+status+"); returning Status.FAIL");
-				close(); 
-				return Status.FAIL; 
+			else if (result.equals(Status.RETRY)) {
+				logger.debug("...SCP temporarily unable to store ("+Integer.toHexString(status)+"); returning Status.RETRY");
+				close();
+			}
+			else {
+				logger.debug("...transmission failed ("+Integer.toHexString(status)+"); returning Status.FAIL");
+				close();
 			}
+			return result;
 		}
 		catch (Exception ex) {
 			close();
@@ -371,6 +378,34 @@ public class DicomStorageSCU {
 		return Status.RETRY;
     }
 
+	/**
+	 * Get the value of the Status element of the C-STORE response
+	 * received by the last call to send. This allows a caller to
+	 * distinguish an object refused by the SCP from an object which
+	 * could not be sent because of a network error, both of which
+	 * cause send to return Status.RETRY.
+	 * @return the status of the last C-STORE response, or -1 if
+	 * no response was received.
+	 */
+	public synchronized int getLastResponseStatus() {
+		return lastResponseStatus;
+	}
+
+	/**
+	 * Get the status of a transmission from the status of the C-STORE response.
+	 * Success (0000) and warning (0001, Bxxx) statuses indicate that the object
+	 * was stored. Out of Resources (A7xx) and Resource Limitation (0213) statuses
+	 * indicate that the SCP is temporarily unable to store the object, so the
+	 * transmission should be retried. All other statuses are failures.
+	 * @param status the value of the Status element of the C-STORE response.
+	 * @return Status.OK, Status.RETRY, or Status.FAIL.
+	 */
+	public static Status getStatus(int status) {
+		if ((status == 0) || (status == 1) || ((status & 0xF000) == 0xB000)) return Status.OK;
+		if (((status & 0xFF00) == 0xA700) || (status == 0x0213)) return Status.RETRY;
+		return Status.FAIL;
+	}
+
     private final class MyDataSource implements DataSource {
         final DcmParser parser;
         final Dataset ds;